@@ -6,8 +6,13 @@ import com.badlogic.gdx.graphics.g2d.TextureRegion
 import com.badlogic.gdx.math.MathUtils
 import com.badlogic.gdx.utils.Json
 import com.dcostap.engine.DebugUI
+import com.dcostap.engine.benchmarks.BroadphaseBenchmark
+import com.dcostap.engine.benchmarks.CollisionTreeBenchmark
+import com.dcostap.engine.benchmarks.PathfindingBenchmark
+import com.dcostap.engine.benchmarks.SpatialIndexBenchmark
 import com.dcostap.engine.utils.DebugLog
 import com.dcostap.engine.utils.ExportedImagesProcessor
+import com.dcostap.engine.utils.FixedTimestep
 import com.dcostap.engine.utils.Utils
 import com.dcostap.engine.utils.actions.ActionsUpdater
 import com.dcostap.engine.utils.font_loaders.smart_font_generator.SmartFontGenerator
@@ -171,6 +176,10 @@ class Engine : ApplicationListener {
             "cells" -> Engine.DEBUG_MAP_CELLS = !Engine.DEBUG_MAP_CELLS
             "atlas" -> reloadAtlas()
             "window" -> debugWindow = !debugWindow
+            "benchTree" -> (screen as? BaseScreen)?.let { CollisionTreeBenchmark.run(it) }
+            "benchSpatial" -> (screen as? BaseScreen)?.let { SpatialIndexBenchmark.run(it) }
+            "benchBroadphase" -> (screen as? BaseScreen)?.let { BroadphaseBenchmark.run(it) }
+            "benchPath" -> (screen as? BaseScreen)?.let { PathfindingBenchmark.run(it) }
         }
     }
 
@@ -179,6 +188,16 @@ class Engine : ApplicationListener {
     /** If true, it will ignore the app's delta */
     var useFixedDelta = false
 
+    /** If true, [BaseScreen]s get [BaseScreen.fixedUpdate] called at the tick rate of [fixedTimestep] each frame,
+     * with its fixed delta, besides the usual update and draw once per frame */
+    var useFixedTimestep = false
+        set(value) {
+            if (value != field) fixedTimestep.reset()
+            field = value
+        }
+
+    val fixedTimestep = FixedTimestep()
+
     lateinit var assets: GameAssets
         private set
 
@@ -221,6 +240,9 @@ class Engine : ApplicationListener {
         updateDelta()
         val delta = if (useFixedDelta) fixedDelta else smoothedDelta
 
+        if (useFixedTimestep)
+            fixedTimestep.advance(Gdx.graphics.deltaTime)
+
         actions.update(delta)
 
         try {
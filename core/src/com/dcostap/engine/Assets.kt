@@ -8,13 +8,14 @@ import com.badlogic.gdx.graphics.g2d.TextureRegion
 import com.badlogic.gdx.scenes.scene2d.ui.Skin
 import com.badlogic.gdx.scenes.scene2d.utils.NinePatchDrawable
 import com.badlogic.gdx.utils.Array
+import com.badlogic.gdx.utils.BooleanArray
 import com.badlogic.gdx.utils.Disposable
+import com.badlogic.gdx.utils.ObjectIntMap
 import com.badlogic.gdx.utils.ObjectSet
 import com.dcostap.engine.utils.Utils
 import com.dcostap.engine.utils.font_loaders.FontLoader
 import com.dcostap.printDebug
 import ktx.collections.GdxArray
-import ktx.collections.GdxMap
 
 /**
  * Created by Darius on 11/11/2017.
@@ -88,25 +89,36 @@ abstract class Assets(val textureAtlasFilename: String = "atlas/atlas.atlas") :
         return false
     }
 
+    /** Texture handles keep pointing to the region with the same name in the new atlas */
     fun reloadTextureAtlas() {
         textureAtlas = TextureAtlas(textureAtlasFilename)
-        cachedIndividualTexturesInsideGroups.clear()
         cachedTextureGroups.clear()
-        cachedTextures.clear()
         setupTextureAtlas()
     }
 
+    /** Gives a texture handle to each region of the atlas, see [getTextureHandle]. Handles already given (before
+     * [reloadTextureAtlas]) keep their number */
     open fun setupTextureAtlas() {
-        val regions = GdxMap<String, Int>()
+        for (handle in 0 until handleNames.size) {
+            if (!handleIsRawName[handle]) handleRegions[handle] = textureAtlas.findRegion(handleNames[handle])
+        }
+
         for (region in textureAtlas.regions) {
-            regions.put(region.name, regions.get(region.name, -1) + 1)
+            if (!handlesByName.containsKey(region.name)) addHandle(region.name, textureAtlas.findRegion(region.name), false)
         }
 
-        for (entry in regions.entries()) {
-            for (i in 0..entry.value) {
-                val finalName = entry.key + "_$i"
-                cachedIndividualTexturesInsideGroups.put(finalName, IndividualTextureInsideGroup(entry.key, i))
-            }
+        // when textures end with _# they are treated as a group by texturePacker; "name_#" are also given handles
+        val indexInsideGroup = ObjectIntMap<String>()
+        for (region in textureAtlas.regions) {
+            val i = indexInsideGroup.getAndIncrement(region.name, 0, 1)
+            val finalName = region.name + "_$i"
+            val handle = handlesByName.get(finalName, -1)
+            if (handle == -1) addHandle(finalName, region, false)
+            else handleRegions[handle] = region
+        }
+
+        for (handle in 0 until handleNames.size) {
+            if (handleIsRawName[handle]) handleRegions[handle] = resolveRawImageName(handleNames[handle])
         }
     }
 
@@ -146,44 +158,94 @@ abstract class Assets(val textureAtlasFilename: String = "atlas/atlas.atlas") :
      * Finds image in the atlas ignoring extensions. If the name ends with "_#" it loads it from the array that texturePacker creates
      */
     fun findRegionFromRawImageName(rawImageName: String): TextureRegion {
-        Utils.removeExtensionFromFilename(rawImageName)
+        return getTexture(getRawImageNameHandle(rawImageName))
+    }
 
-        val i = rawImageName.lastIndexOf('_')
-        if (i != -1) {
-            try {
-                val index = Integer.valueOf(rawImageName.substring(i + 1))!!
-                val realName = rawImageName.substring(0, i)
-                return textureAtlas.findRegion(realName, index)
-            } catch (exception: Exception) {
+    /** Handle of the image found like [findRegionFromRawImageName] does */
+    fun getRawImageNameHandle(rawImageName: String): Int {
+        val handle = rawHandlesByName.get(rawImageName, -1)
+        if (handle != -1) return handle
+
+        val region = resolveRawImageName(rawImageName)
+                ?: throw RuntimeException("Region not found on atlas, raw image name: $rawImageName\nAll regions: ${getRegionNames()}")
+        return addHandle(rawImageName, region, true)
+    }
+
+    private fun resolveRawImageName(rawImageName: String): TextureAtlas.AtlasRegion? {
+        val name = Utils.removeExtensionFromFilename(rawImageName)
 
+        val i = name.lastIndexOf('_')
+        if (i != -1) {
+            val index = name.substring(i + 1).toIntOrNull()
+            if (index != null) {
+                textureAtlas.findRegion(name.substring(0, i), index)?.also { return it }
             }
         }
 
-        return getTexture(rawImageName)
+        return resolveName(name)
     }
 
-    private class IndividualTextureInsideGroup(val groupName: String, val index: Int)
-
-    private val cachedTextures = HashMap<String, TextureAtlas.AtlasRegion>()
     private val cachedTextureGroups = HashMap<String, GdxArray<TextureAtlas.AtlasRegion>>()
 
-    /** When textures end with _# they are treated as a group by texturePacker. Original names are cached here
-     * so if you access a texture by its original name you still get the result. This helps with Tiled exported maps, which
-     * will refer to images in tilesets with their original name.
+    /** Region of each texture handle; null if it isn't on the atlas anymore after [reloadTextureAtlas] */
+    private val handleRegions = GdxArray<TextureAtlas.AtlasRegion?>()
+    private val handleNames = GdxArray<String>()
+    private val handleIsRawName = BooleanArray()
+
+    /** When textures end with _# they are treated as a group by texturePacker. Original names ("name_#") are given
+     * handles too so if you access a texture by its original name you still get the result. This helps with Tiled
+     * exported maps, which will refer to images in tilesets with their original name.
      *
      * This might give unexpected behavior if there are  multiple textures with same base name ("spr.png" & "spr_0.png") */
-    private val cachedIndividualTexturesInsideGroups = HashMap<String, IndividualTextureInsideGroup>()
+    private val handlesByName = ObjectIntMap<String>()
+    private val rawHandlesByName = ObjectIntMap<String>()
+
+    private fun addHandle(name: String, region: TextureAtlas.AtlasRegion?, isRawName: Boolean): Int {
+        val handle = handleRegions.size
+        handleRegions.add(region)
+        handleNames.add(name)
+        handleIsRawName.add(isRawName)
+        (if (isRawName) rawHandlesByName else handlesByName).put(name, handle)
+        return handle
+    }
+
+    private fun resolveName(name: String): TextureAtlas.AtlasRegion? {
+        val handle = handlesByName.get(name, -1)
+        if (handle != -1) return handleRegions[handle]
+
+        return textureAtlas.findRegion(name)
+    }
+
+    /**
+     * Texture handles are small ints given to each region of the atlas (and to each "name_#" of the groups
+     * texturePacker creates); [getTexture] with a handle is only an array access. Keep handles instead of names
+     * where textures are drawn each frame. They remain valid after [reloadTextureAtlas].
+     */
+    fun getTextureHandle(name: String): Int {
+        val handle = handlesByName.get(name, -1)
+        if (handle != -1) return handle
+
+        val region = textureAtlas.findRegion(name)
+                ?: throw RuntimeException("Region not found on atlas, name: $name\nAll regions: ${getRegionNames()}")
+        return addHandle(name, region, false)
+    }
+
+    fun getTexture(handle: Int): TextureAtlas.AtlasRegion {
+        return handleRegions[handle]
+                ?: throw RuntimeException("Region not found on atlas, name: ${handleNames[handle]} (texture handle $handle)")
+    }
 
     fun getTexture(name: String): TextureAtlas.AtlasRegion {
-        cachedIndividualTexturesInsideGroups.get(name)?.also {
-            return getTextures(it.groupName)[it.index]
-        }
+        return getTexture(getTextureHandle(name))
+    }
 
-        return cachedTextures.getOrElse(name) {
-            val texture = textureAtlas.findRegion(name) ?: throw RuntimeException("Region not found on atlas, name: $name\nAll regions: ${getRegionNames()}")
-            cachedTextures.put(name, texture)
-            texture
-        }
+    /** Handles of the regions of a group, in the same order as [getTextures]. For example, use them as the frames
+     * of an [com.dcostap.engine.utils.Animation] so it keeps working after [reloadTextureAtlas] */
+    fun getTextureHandles(name: String): GdxArray<Int> {
+        val regions = getTextures(name)
+        val handles = GdxArray<Int>(regions.size)
+        for (i in 0 until regions.size) handles.add(getTextureHandle(name + "_$i"))
+        return handles
     }
 
     fun getTextures(name: String): GdxArray<TextureAtlas.AtlasRegion> {
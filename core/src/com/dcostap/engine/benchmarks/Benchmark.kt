@@ -0,0 +1,45 @@
+package com.dcostap.engine.benchmarks
+
+import com.dcostap.engine.utils.Utils
+import com.dcostap.printDebug
+
+/**
+ * Tiny micro-benchmark runner, meant to be launched through debug commands while the game runs: Entities and maps
+ * need libGDX (and [com.dcostap.Engine.debugUI]) to be initialized, so they can't be benchmarked from a plain JVM.
+ *
+ * Each operation is run [warmupRuns] times without measuring, so that the JIT compiles it, then [runs] times.
+ * Results are printed with [printDebug], use [com.dcostap.saveDebugLog] to keep them.
+ */
+class Benchmark(val name: String, val warmupRuns: Int = 5, val runs: Int = 20) {
+    private val results = StringBuilder()
+
+    /** @return average milliseconds per run */
+    fun measure(operationName: String, operation: () -> Unit): Double {
+        for (i in 0 until warmupRuns) operation()
+
+        var best = Long.MAX_VALUE
+        var total = 0L
+        for (i in 0 until runs) {
+            val start = System.nanoTime()
+            operation()
+            val elapsed = System.nanoTime() - start
+
+            total += elapsed
+            best = Math.min(best, elapsed)
+        }
+
+        val average = total / runs.toDouble() / 1000000.0
+        results.append("  $operationName: avg ${Utils.formatNumber(average, 3, false)} ms; " +
+                "best ${Utils.formatNumber(best / 1000000.0, 3, false)} ms\n")
+        return average
+    }
+
+    fun addNote(note: String) {
+        results.append("  $note\n")
+    }
+
+    fun printResults() {
+        printDebug("____\nBenchmark: $name ($runs runs, $warmupRuns warm-up)\n${results}____")
+        results.setLength(0)
+    }
+}
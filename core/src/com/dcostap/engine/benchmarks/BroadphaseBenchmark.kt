@@ -0,0 +1,83 @@
+package com.dcostap.engine.benchmarks
+
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.math.RandomXS128
+import com.badlogic.gdx.math.Vector2
+import com.dcostap.engine.map.EntityTiledMap
+import com.dcostap.engine.map.entities.CollidingEntity
+import com.dcostap.engine.map.entities.Entity
+import com.dcostap.engine.utils.screens.BaseScreen
+import ktx.collections.GdxArray
+
+/**
+ * Compares the collision response of many moving [CollidingEntity]s querying the index on each step against reading
+ * their candidates from [com.dcostap.engine.map.BatchedBroadphase].
+ *
+ * Launch it with debug command "benchBroadphase". Scenes are random but seeded, so runs are comparable.
+ */
+object BroadphaseBenchmark {
+    val moverCounts = intArrayOf(100, 500, 2000)
+
+    var mapSize = 256
+    var wallCount = 2000
+    var delta = 1 / 60f
+
+    fun run(screen: BaseScreen) {
+        val benchmark = Benchmark("Batched broadphase")
+
+        for (moverCount in moverCounts) {
+            val map = createScene(screen, moverCount)
+            val movers = GdxArray<CollidingEntity>()
+            for (ent in map.entityList) if (ent is CollidingEntity) movers.add(ent)
+
+            var frame = 0
+            fun frame(batched: Boolean) {
+                // back and forth, so the scene stays the same
+                val sign = if (frame++ % 2 == 0) 1f else -1f
+
+                map.useBatchedBroadphase = batched
+                if (batched) map.broadphase.update(map.entityList, delta)
+
+                for (mover in movers) {
+                    mover.moveColliding(mover.speed.x * sign, mover.speed.y * sign, delta)
+                    map.collisionTreeForEntityColliding.addDynamicEntityThatMoved(mover)
+                }
+
+                map.removeAndAddEntities()
+            }
+
+            benchmark.measure("$moverCount movers, query per step") { frame(false) }
+            benchmark.measure("$moverCount movers, batched broadphase") { frame(true) }
+            benchmark.addNote("(mover pairs: ${map.broadphase.moverPairCount})")
+
+            map.useBatchedBroadphase = false
+            CollisionTreeBenchmark.disposeScene(map)
+        }
+
+        benchmark.printResults()
+    }
+
+    private fun createScene(screen: BaseScreen, moverCount: Int): EntityTiledMap {
+        val random = RandomXS128(1)
+        val map = EntityTiledMap(screen)
+        map.initMap(mapSize, mapSize, EntityTiledMap.defaultCollTreeCellSize)
+        map.doFloodFillForSolidCellsPathfinding = false
+
+        for (i in 0 until wallCount) {
+            val position = Vector2(random.nextFloat() * (mapSize - 2), random.nextFloat() * (mapSize - 2))
+            map.addEntity(Entity(position, Rectangle(0f, 0f, 1f + random.nextFloat(), 1f + random.nextFloat()), true, true)
+                    .also { it.showDebugTable = false })
+        }
+
+        for (i in 0 until moverCount) {
+            val position = Vector2(random.nextFloat() * (mapSize - 1), random.nextFloat() * (mapSize - 1))
+            val mover = object : CollidingEntity(position, Rectangle(0f, 0f, 0.8f, 0.8f), true) {}
+            mover.showDebugTable = false
+            mover.speed.set(random.nextFloat() * 8f - 4f, random.nextFloat() * 8f - 4f)
+            map.addEntity(mover)
+        }
+
+        map.removeAndAddEntities()
+        return map
+    }
+}
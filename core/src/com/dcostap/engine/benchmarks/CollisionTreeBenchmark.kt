@@ -0,0 +1,105 @@
+package com.dcostap.engine.benchmarks
+
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.math.RandomXS128
+import com.badlogic.gdx.math.Vector2
+import com.dcostap.engine.map.CollisionTree
+import com.dcostap.engine.map.EntityTiledMap
+import com.dcostap.engine.map.SpatialIndexType
+import com.dcostap.engine.map.entities.Entity
+import com.dcostap.engine.utils.screens.BaseScreen
+
+/**
+ * Measures camera-sized and wide queries on [com.dcostap.engine.map.CollisionTree], and compares the update of slowly
+ * moving dynamic Entities with cell range diffing against removing them from all their cells and adding them again.
+ *
+ * Launch it with debug command "benchTree". Scenes are random but seeded, so runs are comparable.
+ */
+object CollisionTreeBenchmark {
+    val entityCounts = intArrayOf(1000, 10000, 50000)
+
+    var mapSize = 512
+    var queriesPerRun = 100
+
+    fun run(screen: BaseScreen) {
+        val benchmark = Benchmark("CollisionTree queries")
+
+        for (entityCount in entityCounts) {
+            val map = createScene(screen, entityCount)
+            val tree = map.collisionTree as CollisionTree
+            val random = RandomXS128(1)
+            val camera = Rectangle(0f, 0f, 30f, 17f)
+            val wide = Rectangle(0f, 0f, 128f, 128f)
+            var found = 0
+
+            fun queries(rectangle: Rectangle) {
+                random.setSeed(1)
+                for (i in 0 until queriesPerRun) {
+                    rectangle.setPosition(random.nextFloat() * (mapSize - rectangle.width),
+                            random.nextFloat() * (mapSize - rectangle.height))
+                    found += tree.getPossibleCollidingEntities(rectangle, true).size
+                }
+            }
+
+            benchmark.measure("$entityCount entities, $queriesPerRun camera queries") { queries(camera) }
+            benchmark.measure("$entityCount entities, $queriesPerRun wide queries") { queries(wide) }
+            benchmark.addNote("(entities found: $found)")
+
+            // walkers: every dynamic Entity moves a fraction of a unit each frame, so most of them stay in their cells
+            var frame = 0
+            fun walk() {
+                val step = if (frame++ % 2 == 0) 0.05f else -0.05f
+                for (ent in map.entityList) {
+                    if (ent.isStatic) continue
+                    ent.x += step
+                    ent.y += step
+                    tree.addDynamicEntityThatMoved(ent)
+                }
+
+                tree.getPossibleCollidingEntities(camera, true)
+            }
+
+            for (diff in booleanArrayOf(true, false)) {
+                tree.diffCellRanges = diff
+                val mode = if (diff) "cell range diffing" else "remove & add"
+                benchmark.measure("$entityCount entities, dynamic Entities update, $mode") { walk() }
+            }
+
+            tree.diffCellRanges = true
+            disposeScene(map)
+        }
+
+        benchmark.printResults()
+    }
+
+    /** Map with [entityCount] small dynamic Entities scattered at random, plus some big static ones that occupy many cells
+     * @param mixedSizes if true, the small Entities are tiny (like projectiles) and the big ones are huge */
+    internal fun createScene(screen: BaseScreen, entityCount: Int, seed: Long = 1,
+                             spatialIndexType: SpatialIndexType = SpatialIndexType.GRID, mixedSizes: Boolean = false): EntityTiledMap {
+        val random = RandomXS128(seed)
+        val map = EntityTiledMap(screen)
+        map.initMap(mapSize, mapSize, EntityTiledMap.defaultCollTreeCellSize, spatialIndexType)
+        map.doFloodFillForSolidCellsPathfinding = false
+
+        for (i in 0 until entityCount) {
+            val isBig = i % 50 == 0
+            val size = when {
+                mixedSizes && isBig -> 60f + random.nextFloat() * 120f
+                mixedSizes -> 0.1f + random.nextFloat() * 0.2f
+                isBig -> 10f + random.nextFloat() * 30f
+                else -> 0.5f + random.nextFloat()
+            }
+            val position = Vector2(random.nextFloat() * (mapSize - size), random.nextFloat() * (mapSize - size))
+            map.addEntity(Entity(position, Rectangle(0f, 0f, size, size), false, isBig).also { it.showDebugTable = false })
+        }
+
+        map.removeAndAddEntities()
+        return map
+    }
+
+    internal fun disposeScene(map: EntityTiledMap) {
+        for (ent in map.entityList) map.removeEntity(ent)
+        map.removeAndAddEntities()
+        map.dispose()
+    }
+}
@@ -0,0 +1,187 @@
+package com.dcostap.engine.benchmarks
+
+import com.badlogic.gdx.math.RandomXS128
+import com.badlogic.gdx.utils.IntArray as GdxIntArray
+import com.dcostap.engine.map.EntityTiledMap
+import com.dcostap.engine.map.MapCell
+import com.dcostap.engine.utils.AStarSearch
+import com.dcostap.engine.utils.HierarchicalPath
+import com.dcostap.engine.utils.Pathfinder
+import com.dcostap.engine.utils.screens.BaseScreen
+import ktx.collections.GdxArray
+
+/**
+ * Compares [Pathfinder.findPath], with each [AStarSearch.Mode], and [Pathfinder.findPathLegacy] on mazes of [mapSize]
+ * cells: a perfect maze (only one path between two cells) and the same maze with some walls removed, so there are many
+ * paths. Jump Point Search gains little in mazes, so it is also compared on an open field with scattered walls.
+ * Hierarchical searches are measured both finding only the regions to go through and finding the whole path.
+ * Goals are at most [goalDistance] cells away from the start in each axis, so the legacy search finishes in time.
+ *
+ * Launch it with debug command "benchPath".
+ */
+object PathfindingBenchmark {
+    var mapSize = 256
+
+    var goalDistance = 40
+
+    var queriesPerRun = 20
+
+    fun run(screen: BaseScreen) {
+        val benchmark = Benchmark("Pathfinding", 2, 5)
+
+        val oldMaximumTries = Pathfinder.maximumTries
+        Pathfinder.maximumTries = mapSize * mapSize
+
+        for (scene in 0 until 3) {
+            val map = if (scene < 2) createMaze(screen, 1, scene == 1) else createField(screen, 1)
+            val random = RandomXS128(1)
+            val starts = GdxArray<MapCell>()
+            val goals = GdxArray<MapCell>()
+            for (i in 0 until queriesPerRun) {
+                val start = randomOpenCell(map, random, 0, 0, mapSize - 1)
+                starts.add(start)
+                goals.add(randomOpenCell(map, random, start.x, start.y, goalDistance))
+            }
+
+            var length = 0
+            val path = GdxArray<MapCell>()
+            val name = "${mapSize}x$mapSize " + when (scene) {
+                0 -> "maze"
+                1 -> "maze with loops"
+                else -> "open field"
+            }
+
+            if (scene < 2) {
+                benchmark.measure("$name, $queriesPerRun legacy searches") {
+                    length = 0
+                    for (i in 0 until queriesPerRun) length += Pathfinder.findPathLegacy(starts[i], goals[i])!!.size
+                }
+
+                benchmark.addNote("(total path length: $length)")
+            }
+
+            for (mode in AStarSearch.Mode.values()) {
+                benchmark.measure("$name, $queriesPerRun $mode searches") {
+                    length = 0
+                    for (i in 0 until queriesPerRun)
+                        length += Pathfinder.search.findPath(starts[i], goals[i], path, mode = mode).size
+                }
+
+                benchmark.addNote("(total path length: $length; " +
+                        "cells expanded by the last search: ${Pathfinder.search.lastExpandedCount})")
+            }
+
+            // the graph is built on the first search, during warm-up
+            val hierarchicalPath = HierarchicalPath()
+            benchmark.measure("$name, $queriesPerRun hierarchical searches, without refining") {
+                length = 0
+                for (i in 0 until queriesPerRun)
+                    length += Pathfinder.findHierarchicalPath(starts[i], goals[i], hierarchicalPath).waypoints.size
+            }
+
+            benchmark.measure("$name, $queriesPerRun hierarchical searches, refining all") {
+                length = 0
+                for (i in 0 until queriesPerRun) {
+                    path.clear()
+                    length += Pathfinder.findHierarchicalPath(starts[i], goals[i], hierarchicalPath).refineAll(path).size
+                }
+            }
+
+            benchmark.addNote("(total path length: $length)")
+
+            map.dispose()
+        }
+
+        Pathfinder.maximumTries = oldMaximumTries
+        benchmark.printResults()
+    }
+
+    /** Walls on even rows and columns, carved with a depth-first search from the cell (1, 1). With [withLoops], one
+     * in each 10 remaining walls between two corridors is also removed */
+    internal fun createMaze(screen: BaseScreen, seed: Long, withLoops: Boolean): EntityTiledMap {
+        val random = RandomXS128(seed)
+        val map = EntityTiledMap(screen)
+        map.initMap(mapSize, mapSize)
+
+        for (y in 0 until mapSize) {
+            for (x in 0 until mapSize) map.getMapCell(x, y).markedAsSolid = x % 2 == 0 || y % 2 == 0 || x == mapSize - 1 || y == mapSize - 1
+        }
+
+        val offsetsX = intArrayOf(2, -2, 0, 0)
+        val offsetsY = intArrayOf(0, 0, 2, -2)
+        val stack = GdxIntArray()
+        map.getMapCell(1, 1).markedAsSolid = false
+        stack.add(map.cellIndex(1, 1))
+        val visited = BooleanArray(mapSize * mapSize)
+        visited[map.cellIndex(1, 1)] = true
+
+        while (stack.size > 0) {
+            val current = stack.peek()
+            val x = current % mapSize
+            val y = current / mapSize
+
+            val first = random.nextInt(4)
+            var chosen = -1
+            for (i in 0 until 4) {
+                val direction = (first + i) % 4
+                val xx = x + offsetsX[direction]
+                val yy = y + offsetsY[direction]
+                if (xx < 1 || yy < 1 || xx >= mapSize - 1 || yy >= mapSize - 1) continue
+                if (visited[map.cellIndex(xx, yy)]) continue
+                chosen = direction
+                break
+            }
+
+            if (chosen == -1) {
+                stack.pop()
+                continue
+            }
+
+            val xx = x + offsetsX[chosen]
+            val yy = y + offsetsY[chosen]
+            map.getMapCell(x + offsetsX[chosen] / 2, y + offsetsY[chosen] / 2).markedAsSolid = false
+            visited[map.cellIndex(xx, yy)] = true
+            stack.add(map.cellIndex(xx, yy))
+        }
+
+        if (withLoops) {
+            for (y in 1 until mapSize - 1) {
+                for (x in 1 until mapSize - 1) {
+                    val isWallBetweenCorridors = (x % 2 == 0) != (y % 2 == 0)
+                    if (isWallBetweenCorridors && map.isSolid(x, y) && random.nextInt(10) == 0)
+                        map.getMapCell(x, y).markedAsSolid = false
+                }
+            }
+        }
+
+        return map
+    }
+
+    /** No walls but scattered 1 to 6 cells long walls, covering about a tenth of the map */
+    internal fun createField(screen: BaseScreen, seed: Long): EntityTiledMap {
+        val random = RandomXS128(seed)
+        val map = EntityTiledMap(screen)
+        map.initMap(mapSize, mapSize)
+
+        for (i in 0 until mapSize * mapSize / 35) {
+            val x = random.nextInt(mapSize)
+            val y = random.nextInt(mapSize)
+            val isHorizontal = random.nextBoolean()
+            for (j in 0 until 1 + random.nextInt(6)) {
+                val xx = if (isHorizontal) x + j else x
+                val yy = if (isHorizontal) y else y + j
+                if (map.isInsideMap(xx, yy)) map.getMapCell(xx, yy).markedAsSolid = true
+            }
+        }
+
+        return map
+    }
+
+    private fun randomOpenCell(map: EntityTiledMap, random: RandomXS128, centerX: Int, centerY: Int, distance: Int): MapCell {
+        while (true) {
+            val x = centerX - distance + random.nextInt(distance * 2 + 1)
+            val y = centerY - distance + random.nextInt(distance * 2 + 1)
+            if (map.isInsideMap(x, y) && !map.isSolid(x, y)) return map.getMapCell(x, y)
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.dcostap.engine.benchmarks
+
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.math.RandomXS128
+import com.badlogic.gdx.math.Vector2
+import com.dcostap.engine.map.entities.BoundingBoxLayer
+import com.dcostap.engine.map.entities.Entity
+import com.dcostap.engine.map.SpatialIndexType
+import com.dcostap.engine.utils.screens.BaseScreen
+import ktx.collections.GdxArray
+
+/**
+ * Compares the [com.dcostap.engine.map.SpatialIndex] implementations on the same scenes (see
+ * [CollisionTreeBenchmark.createScene]): camera-sized and wide queries, exact nearest Entities queries and the update
+ * of moving dynamic Entities.
+ *
+ * Launch it with debug command "benchSpatial".
+ */
+object SpatialIndexBenchmark {
+    val entityCounts = intArrayOf(1000, 10000, 50000)
+
+    var queriesPerRun = 100
+
+    fun run(screen: BaseScreen) {
+        val benchmark = Benchmark("SpatialIndex implementations")
+        val mapSize = CollisionTreeBenchmark.mapSize
+
+        for (mixedSizes in booleanArrayOf(false, true)) {
+            val sceneName = if (mixedSizes) "tiny & huge" else "similar sizes"
+
+            for (entityCount in entityCounts) {
+                for (type in SpatialIndexType.values()) {
+                    val map = CollisionTreeBenchmark.createScene(screen, entityCount, 1, type, mixedSizes)
+                    val index = map.collisionTree
+                    val random = RandomXS128(1)
+                    val camera = Rectangle(0f, 0f, 30f, 17f)
+                    val wide = Rectangle(0f, 0f, 128f, 128f)
+                    var found = 0
+
+                    fun queries(rectangle: Rectangle) {
+                        random.setSeed(1)
+                        for (i in 0 until queriesPerRun) {
+                            rectangle.setPosition(random.nextFloat() * (mapSize - rectangle.width),
+                                    random.nextFloat() * (mapSize - rectangle.height))
+                            found += index.getPossibleCollidingEntities(rectangle, true).size
+                        }
+                    }
+
+                    val point = Vector2()
+                    val nearest = GdxArray<Entity>()
+                    fun nearestQueries() {
+                        random.setSeed(1)
+                        for (i in 0 until queriesPerRun) {
+                            point.set(random.nextFloat() * mapSize, random.nextFloat() * mapSize)
+                            found += index.nearest(8, point, 64f, BoundingBoxLayer.default, nearest).size
+                        }
+                    }
+
+                    var frame = 0
+                    fun walk() {
+                        val step = if (frame++ % 2 == 0) 0.3f else -0.3f
+                        for (ent in map.entityList) {
+                            if (ent.isStatic) continue
+                            ent.x += step
+                            ent.y += step
+                            index.addDynamicEntityThatMoved(ent)
+                        }
+
+                        index.getPossibleCollidingEntities(camera, true)
+                    }
+
+                    val name = "$sceneName, $entityCount entities, $type"
+                    benchmark.measure("$name, $queriesPerRun camera queries") { queries(camera) }
+                    benchmark.measure("$name, $queriesPerRun wide queries") { queries(wide) }
+                    benchmark.measure("$name, $queriesPerRun nearest 8 queries") { nearestQueries() }
+                    benchmark.measure("$name, dynamic Entities update") { walk() }
+                    benchmark.addNote("(entities found: $found)")
+
+                    CollisionTreeBenchmark.disposeScene(map)
+                }
+            }
+        }
+
+        benchmark.printResults()
+    }
+}
@@ -0,0 +1,428 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.utils.FloatArray as GdxFloatArray
+import com.badlogic.gdx.utils.IntArray as GdxIntArray
+import com.dcostap.engine.map.JumpPointTable.Companion.isOpen
+import com.dcostap.engine.utils.IndexedMinHeap
+import ktx.collections.GdxArray
+
+/**
+ * Graph for hierarchical pathfinding (HPA*) on the regions of [EntityTiledMap.floodRegionSize] cells, used by
+ * [com.dcostap.engine.utils.Pathfinder.findHierarchicalPath]. Get it with [EntityTiledMap.getAbstractPathGraph].
+ *
+ * Where two regions touch, each run of cells open on both sides of the border is an entrance. Short entrances have one
+ * transition in the middle, long ones one at each end: a transition is a pair of nodes, one at each side of the border,
+ * joined by an edge. Nodes of the same region are joined by edges with the cost of the shortest path between them
+ * inside the region, found once and kept.
+ *
+ * A search only floods the regions of the start and the goal to join them to the graph, then searches the graph, so it
+ * costs about the same for any distance. The result is the list of nodes to go through; the cells between them are
+ * found later, one segment at a time, see [com.dcostap.engine.utils.HierarchicalPath].
+ *
+ * A change in a cell's solid state only finds again the edges of its region, and the entrances of the borders the cell
+ * is on (which changes the edges of the region on the other side too). Done on the next search.
+ *
+ * Paths are close to optimal but not always optimal, since they have to go through transitions. Regions joined only
+ * through corners, with [cutsCorners], aren't joined in the graph.
+ *
+ * @param cutsCorners whether diagonal moves can go between two solid cells, see
+ * [com.dcostap.engine.utils.Pathfinder.allowDiagonals]
+ */
+class AbstractPathGraph(val map: EntityTiledMap, val cutsCorners: Boolean) {
+    val regionSize = map.floodRegionSize
+    private val regionsX = (map.width + regionSize - 1) / regionSize
+    private val regionsY = (map.height + regionSize - 1) / regionSize
+    private val regionCount = regionsX * regionsY
+
+    // nodes: their cell, region, the node at the other side of the border, and edges to nodes of the same region
+    private val nodeCells = GdxIntArray()
+    private val nodeRegions = GdxIntArray()
+    private val nodePairs = GdxIntArray()
+    private val nodeEdges = GdxArray<GdxIntArray>()
+    private val nodeEdgeCosts = GdxArray<GdxFloatArray>()
+    private val freeNodes = GdxIntArray()
+
+    // nodes of each border, by the region left of it (vertical borders) or below it (horizontal borders)
+    private val verticalBorders = kotlin.Array(regionCount) { GdxIntArray() }
+    private val horizontalBorders = kotlin.Array(regionCount) { GdxIntArray() }
+    private val isVerticalBorderDirty = BooleanArray(regionCount) { true }
+    private val isHorizontalBorderDirty = BooleanArray(regionCount) { true }
+    private val isRegionDirty = BooleanArray(regionCount) { true }
+    private var isDirty = true
+
+    /** Nodes count, including free ones */
+    val nodeCount get() = nodeCells.size
+
+    // cost of reaching each cell of a region, by its position inside the region
+    private val regionCosts = FloatArray(regionSize * regionSize)
+    private val regionHeap = IndexedMinHeap().also { it.ensureCapacity(regionSize * regionSize) }
+    private val regionNodes = GdxIntArray()
+
+    // current search, on the nodes; the start and the goal are the two ids after the last node
+    private var g = FloatArray(0)
+    private var parent = IntArray(0)
+    private var goalCosts = FloatArray(0)
+    private var searchIds = IntArray(0)
+    private var closedIds = IntArray(0)
+    private var searchId = 0
+    private val heap = IndexedMinHeap()
+    private val startNodes = GdxIntArray()
+    private val startCosts = GdxFloatArray()
+    private val goalNodes = GdxIntArray()
+
+    /** Called by the map when the cell changed solid state */
+    fun onSolidChanged(x: Int, y: Int) {
+        val region = regionOf(x, y)
+        isRegionDirty[region] = true
+        isDirty = true
+
+        val localX = x % regionSize
+        val localY = y % regionSize
+        if (localX == regionSize - 1) isVerticalBorderDirty[region] = true
+        if (localX == 0 && x > 0) isVerticalBorderDirty[region - 1] = true
+        if (localY == regionSize - 1) isHorizontalBorderDirty[region] = true
+        if (localY == 0 && y > 0) isHorizontalBorderDirty[region - regionsX] = true
+    }
+
+    fun regionOf(x: Int, y: Int) = x / regionSize + (y / regionSize) * regionsX
+
+    /** Finds again what changed. Called before each search */
+    fun update() {
+        if (!isDirty) return
+        isDirty = false
+
+        for (region in 0 until regionCount) {
+            if (isVerticalBorderDirty[region]) {
+                isVerticalBorderDirty[region] = false
+                computeBorder(region, true)
+            }
+
+            if (isHorizontalBorderDirty[region]) {
+                isHorizontalBorderDirty[region] = false
+                computeBorder(region, false)
+            }
+        }
+
+        for (region in 0 until regionCount) {
+            if (isRegionDirty[region]) {
+                isRegionDirty[region] = false
+                computeRegionEdges(region)
+            }
+        }
+    }
+
+    /** Finds the transitions of the border on the right of the region (or above it, if not [vertical]) */
+    private fun computeBorder(region: Int, vertical: Boolean) {
+        val border = if (vertical) verticalBorders[region] else horizontalBorders[region]
+        for (i in 0 until border.size) freeNode(border[i])
+        border.clear()
+
+        val regionX = region % regionsX
+        val regionY = region / regionsX
+        if (vertical && regionX >= regionsX - 1) return
+        if (!vertical && regionY >= regionsY - 1) return
+
+        val otherRegion = if (vertical) region + 1 else region + regionsX
+        isRegionDirty[region] = true
+        isRegionDirty[otherRegion] = true
+
+        // cells of this region along the border, and the offset to the cell of the other region
+        val acrossX = if (vertical) 1 else 0
+        val acrossY = if (vertical) 0 else 1
+        val alongX = 1 - acrossX
+        val alongY = 1 - acrossY
+        val firstX = if (vertical) (regionX + 1) * regionSize - 1 else regionX * regionSize
+        val firstY = if (vertical) regionY * regionSize else (regionY + 1) * regionSize - 1
+        val length = if (vertical) Math.min(map.height - firstY, regionSize) else Math.min(map.width - firstX, regionSize)
+
+        var runStart = -1
+        for (i in 0..length) {
+            val x = firstX + alongX * i
+            val y = firstY + alongY * i
+            val isOpen = i < length && map.isOpen(x, y) && map.isOpen(x + acrossX, y + acrossY)
+            if (isOpen) {
+                if (runStart == -1) runStart = i
+                continue
+            }
+
+            if (runStart == -1) continue
+            val runEnd = i - 1
+            if (runEnd - runStart + 1 < LONG_ENTRANCE) {
+                val middle = (runStart + runEnd) / 2
+                addTransition(border, firstX + alongX * middle, firstY + alongY * middle, acrossX, acrossY, region, otherRegion)
+            } else {
+                addTransition(border, firstX + alongX * runStart, firstY + alongY * runStart, acrossX, acrossY, region, otherRegion)
+                addTransition(border, firstX + alongX * runEnd, firstY + alongY * runEnd, acrossX, acrossY, region, otherRegion)
+            }
+
+            runStart = -1
+        }
+    }
+
+    private fun addTransition(border: GdxIntArray, x: Int, y: Int, acrossX: Int, acrossY: Int, region: Int, otherRegion: Int) {
+        val node = newNode(map.cellIndex(x, y), region)
+        val other = newNode(map.cellIndex(x + acrossX, y + acrossY), otherRegion)
+        nodePairs[node] = other
+        nodePairs[other] = node
+        border.add(node)
+        border.add(other)
+    }
+
+    private fun newNode(cell: Int, region: Int): Int {
+        val node: Int
+        if (freeNodes.size > 0) {
+            node = freeNodes.pop()
+            nodeCells[node] = cell
+            nodeRegions[node] = region
+        } else {
+            node = nodeCells.size
+            nodeCells.add(cell)
+            nodeRegions.add(region)
+            nodePairs.add(-1)
+            nodeEdges.add(GdxIntArray(8))
+            nodeEdgeCosts.add(GdxFloatArray(8))
+        }
+
+        return node
+    }
+
+    /** Edges of other nodes to it are removed when their region is computed again, which always follows */
+    private fun freeNode(node: Int) {
+        nodeRegions[node] = -1
+        nodePairs[node] = -1
+        nodeEdges[node].clear()
+        nodeEdgeCosts[node].clear()
+        freeNodes.add(node)
+    }
+
+    /** Adds to [out] the nodes inside the region, from the borders around it */
+    private fun collectRegionNodes(region: Int, out: GdxIntArray) {
+        out.clear()
+        val regionX = region % regionsX
+        val regionY = region / regionsX
+        collectRegionNodes(region, verticalBorders[region], out)
+        collectRegionNodes(region, horizontalBorders[region], out)
+        if (regionX > 0) collectRegionNodes(region, verticalBorders[region - 1], out)
+        if (regionY > 0) collectRegionNodes(region, horizontalBorders[region - regionsX], out)
+    }
+
+    private fun collectRegionNodes(region: Int, border: GdxIntArray, out: GdxIntArray) {
+        for (i in 0 until border.size) {
+            if (nodeRegions[border[i]] == region) out.add(border[i])
+        }
+    }
+
+    private fun computeRegionEdges(region: Int) {
+        collectRegionNodes(region, regionNodes)
+        for (i in 0 until regionNodes.size) {
+            nodeEdges[regionNodes[i]].clear()
+            nodeEdgeCosts[regionNodes[i]].clear()
+        }
+
+        for (i in 0 until regionNodes.size) {
+            val node = regionNodes[i]
+            val cell = nodeCells[node]
+            floodRegionCosts(region, cell % map.width, cell / map.width)
+
+            for (j in 0 until regionNodes.size) {
+                if (i == j) continue
+                val other = regionNodes[j]
+                val cost = regionCosts[localIndex(nodeCells[other])]
+                if (cost == Float.POSITIVE_INFINITY) continue
+                nodeEdges[node].add(other)
+                nodeEdgeCosts[node].add(cost)
+            }
+        }
+    }
+
+    private fun localIndex(cell: Int): Int {
+        val x = cell % map.width
+        val y = cell / map.width
+        return x % regionSize + (y % regionSize) * regionSize
+    }
+
+    /** Fills [regionCosts] with the cost of the shortest path inside the region from the cell to each of its cells */
+    private fun floodRegionCosts(region: Int, fromX: Int, fromY: Int) {
+        val startX = (region % regionsX) * regionSize
+        val startY = (region / regionsX) * regionSize
+        val endX = Math.min(map.width, startX + regionSize) - 1
+        val endY = Math.min(map.height, startY + regionSize) - 1
+
+        java.util.Arrays.fill(regionCosts, Float.POSITIVE_INFINITY)
+        regionHeap.clear()
+
+        val from = (fromX - startX) + (fromY - startY) * regionSize
+        regionCosts[from] = 0f
+        regionHeap.add(from, 0f)
+
+        while (!regionHeap.isEmpty) {
+            val current = regionHeap.pop()
+            val x = startX + current % regionSize
+            val y = startY + current / regionSize
+            val cost = regionCosts[current]
+
+            for (offsetY in -1..1) {
+                for (offsetX in -1..1) {
+                    if (offsetX == 0 && offsetY == 0) continue
+                    val xx = x + offsetX
+                    val yy = y + offsetY
+                    if (xx < startX || yy < startY || xx > endX || yy > endY) continue
+                    if (!map.isOpen(xx, yy)) continue
+
+                    val isDiagonal = offsetX != 0 && offsetY != 0
+                    if (isDiagonal && !cutsCorners && (!map.isOpen(xx, y) || !map.isOpen(x, yy))) continue
+
+                    val newCost = cost + if (isDiagonal) 14.14f else 10f
+                    val local = (xx - startX) + (yy - startY) * regionSize
+                    if (newCost < regionCosts[local]) {
+                        regionCosts[local] = newCost
+                        regionHeap.add(local, newCost)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Searches the graph from the start to the goal. Call it from the main thread
+     * @param out cleared, then filled with the cells to go through: the start, the nodes and the goal
+     * @return false if the graph doesn't join them, or they are solid
+     */
+    fun findPath(start: MapCell, goal: MapCell, out: GdxArray<MapCell>): Boolean {
+        out.clear()
+        update()
+        if (start.isSolid || goal.isSolid) return false
+
+        val startId = nodeCount
+        val goalId = nodeCount + 1
+        ensureCapacity(nodeCount + 2)
+        nextSearch()
+
+        val goalCell = map.cellIndex(goal.x, goal.y)
+        val startRegion = regionOf(start.x, start.y)
+        val goalRegion = regionOf(goal.x, goal.y)
+
+        // costs from the goal to the nodes of its region, and to the start if it's in the same region
+        floodRegionCosts(goalRegion, goal.x, goal.y)
+        collectRegionNodes(goalRegion, goalNodes)
+        for (i in 0 until goalNodes.size) goalCosts[goalNodes[i]] = regionCosts[localIndex(nodeCells[goalNodes[i]])]
+        val directCost = if (startRegion == goalRegion) regionCosts[localIndex(map.cellIndex(start.x, start.y))]
+        else Float.POSITIVE_INFINITY
+
+        floodRegionCosts(startRegion, start.x, start.y)
+        collectRegionNodes(startRegion, startNodes)
+        startCosts.clear()
+        for (i in 0 until startNodes.size) startCosts.add(regionCosts[localIndex(nodeCells[startNodes[i]])])
+
+        reach(startId)
+        g[startId] = 0f
+        heap.add(startId, heuristic(map.cellIndex(start.x, start.y), goalCell))
+
+        var found = false
+        while (!heap.isEmpty) {
+            val current = heap.pop()
+            if (current == goalId) {
+                found = true
+                break
+            }
+
+            closedIds[current] = searchId
+
+            if (current == startId) {
+                for (i in 0 until startNodes.size) relax(current, startNodes[i], startCosts[i], goalCell)
+                if (directCost != Float.POSITIVE_INFINITY) relax(current, goalId, directCost, goalCell)
+                continue
+            }
+
+            relax(current, nodePairs[current], 10f, goalCell)
+
+            val edges = nodeEdges[current]
+            val costs = nodeEdgeCosts[current]
+            for (i in 0 until edges.size) relax(current, edges[i], costs[i], goalCell)
+
+            val goalCost = goalCosts[current]
+            if (goalCost != Float.POSITIVE_INFINITY) relax(current, goalId, goalCost, goalCell)
+        }
+
+        heap.clear()
+        for (i in 0 until goalNodes.size) goalCosts[goalNodes[i]] = Float.POSITIVE_INFINITY
+        if (!found) return false
+
+        var node = goalId
+        while (node != -1) {
+            val cell = when (node) {
+                goalId -> goal
+                startId -> start
+                else -> map.getMapCellAt(nodeCells[node])
+            }
+
+            // both nodes of a region's corner may be on the same cell
+            if (out.size == 0 || out.peek() !== cell) out.add(cell)
+            node = parent[node]
+        }
+
+        out.reverse()
+        return true
+    }
+
+    private fun relax(from: Int, to: Int, cost: Float, goalCell: Int) {
+        if (to == -1) return
+        reach(to)
+        if (closedIds[to] == searchId) return
+
+        val newG = g[from] + cost
+        if (newG < g[to]) {
+            g[to] = newG
+            parent[to] = from
+            val cell = if (to == nodeCount + 1) goalCell else nodeCells[to]
+            heap.add(to, newG + heuristic(cell, goalCell))
+        }
+    }
+
+    private fun heuristic(cell: Int, goalCell: Int): Float {
+        val xDistance = Math.abs(cell % map.width - goalCell % map.width).toFloat()
+        val yDistance = Math.abs(cell / map.width - goalCell / map.width).toFloat()
+        return if (xDistance > yDistance) {
+            14 * yDistance + 10 * (xDistance - yDistance)
+        } else {
+            14 * xDistance + 10 * (yDistance - xDistance)
+        }
+    }
+
+    private fun ensureCapacity(ids: Int) {
+        heap.ensureCapacity(ids)
+        if (ids <= g.size) return
+
+        val capacity = Math.max(ids, g.size * 2)
+        g = FloatArray(capacity)
+        parent = IntArray(capacity)
+        val oldSize = goalCosts.size
+        goalCosts = goalCosts.copyOf(capacity)
+        java.util.Arrays.fill(goalCosts, oldSize, capacity, Float.POSITIVE_INFINITY)
+        searchIds = IntArray(capacity)
+        closedIds = IntArray(capacity)
+        searchId = 0
+    }
+
+    private fun nextSearch() {
+        searchId++
+        if (searchId == 0) { // overflow, old marks could be mistaken for this search
+            java.util.Arrays.fill(searchIds, 0)
+            java.util.Arrays.fill(closedIds, 0)
+            searchId = 1
+        }
+    }
+
+    /** Initializes the node the first time this search reaches it */
+    private fun reach(node: Int) {
+        if (searchIds[node] == searchId) return
+        searchIds[node] = searchId
+        g[node] = Float.POSITIVE_INFINITY
+        parent[node] = -1
+    }
+
+    private companion object {
+        /** Entrances at least this long have two transitions */
+        const val LONG_ENTRANCE = 6
+    }
+}
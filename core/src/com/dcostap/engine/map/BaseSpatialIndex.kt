@@ -0,0 +1,636 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.graphics.Color
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.math.Vector2
+import com.badlogic.gdx.utils.IntArray as GdxIntArray
+import com.dcostap.Engine
+import com.dcostap.engine.map.entities.BoundingBox
+import com.dcostap.engine.map.entities.BoundingBoxLayer
+import com.dcostap.engine.map.entities.Entity
+import com.dcostap.printDebug
+import ktx.collections.GdxArray
+import java.util.*
+
+/**
+ * Part of the [SpatialIndex] implementations they all share: ids of the BBs, bookkeeping of dynamic Entities and all
+ * the query overloads. Implementations only need to store the ids and find them back.
+ *
+ * Each BoundingBox added gets an int id (saved in [BoundingBox.treeIds] on the slot [treeSlot]). Ids of removed BBs are
+ * reused, so implementations can keep the information of each BB in arrays indexed by the id; those arrays must be
+ * resized on [onBoxCapacityChanged].
+ *
+ * @param treeSlot index on [BoundingBox.treeIds] where this index saves the ids. Each index a BB may be added to at the
+ * same time needs a different slot
+ */
+abstract class BaseSpatialIndex(protected val entityTiledMap: EntityTiledMap, val treeSlot: Int) : SpatialIndex {
+    private val dynamicEntitiesThatMoved = GdxArray<Entity>()
+    private val addedDynamicEntities = GdxArray<Entity>()
+
+    private val dummyEntityArray = GdxArray<Entity>()
+    private val collEntitiesArray = GdxArray<Entity>()
+
+    /** BB of each id. Ids of removed BBs are reused, see [freeBoxIds] */
+    protected val boxes = GdxArray<BoundingBox?>()
+    private val freeBoxIds = GdxIntArray()
+
+    /** Size of the arrays indexed by id */
+    protected var boxCapacity = initialBoxCapacity
+        private set
+
+    init {
+        if (treeSlot < 0 || treeSlot >= BoundingBox.maxTreeSlots)
+            throw IllegalArgumentException("treeSlot $treeSlot is out of range, max slots: ${BoundingBox.maxTreeSlots}")
+    }
+
+    /** Called when a new id is assigned; the rectangle is the BB in the world */
+    protected abstract fun insertBox(id: Int, rectangle: Rectangle)
+
+    /** Called when the BB of an id already inserted moved */
+    protected abstract fun moveBox(id: Int, rectangle: Rectangle)
+
+    /** Called before the id is freed */
+    protected abstract fun removeBox(id: Int)
+
+    /**
+     * Finds the ids of the layer that may touch the area; each one must be passed to [reportBox] once.
+     * Must not keep state in the index between calls, so queries can be nested and run from several threads.
+     * BBs held in more than one place can be reported only from the first place of the area holding them.
+     */
+    protected abstract fun queryBoxes(x: Float, y: Float, width: Float, height: Float, layer: BoundingBoxLayer,
+                                      excludeDynamicEntities: Boolean, excludeStaticEntities: Boolean,
+                                      entityArrayToPopulate: GdxArray<Entity>)
+
+    /** Arrays indexed by id must be resized to the new capacity */
+    protected open fun onBoxCapacityChanged(capacity: Int) {}
+
+    /** Adds the Entity of the id to the results of a query, unless it is filtered out
+     * @param queryArea area of the query, for debugging */
+    protected fun reportBox(id: Int, queryArea: Float, excludeDynamicEntities: Boolean, excludeStaticEntities: Boolean,
+                            entityArrayToPopulate: GdxArray<Entity>) {
+        val bb = boxes[id]!!
+        if ((excludeDynamicEntities && !bb.isStatic) || (excludeStaticEntities && bb.isStatic))
+            return
+
+        entityArrayToPopulate.add(bb.entity)
+
+        // try to ignore camera checks for debug purposes
+        if (Engine.DEBUG_COLLISION_TREE_UPDATES && queryArea < 12) {
+            bb.entity.debugFlashingRect.flashColor(Color.RED, 0.3f)
+        }
+    }
+
+    override fun getPossibleCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, boundingBoxesName: String,
+                                              filter: (Entity) -> Boolean): GdxArray<Entity> {
+        return getPossibleCollidingEntities(rectangle, includeDynamicEntities, BoundingBoxLayer.get(boundingBoxesName), filter)
+    }
+
+    override fun getPossibleCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                              filter: (Entity) -> Boolean): GdxArray<Entity> {
+        dummyEntityArray.clear()
+        return getPossibleCollidingEntities(rectangle, includeDynamicEntities, layer, dummyEntityArray, filter)
+    }
+
+    override fun getPossibleCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                              out: GdxArray<Entity>, filter: (Entity) -> Boolean): GdxArray<Entity> {
+        checkRectangle(rectangle)
+        return queryArea(rectangle.x, rectangle.y, rectangle.width, rectangle.height, includeDynamicEntities, layer, out, filter)
+    }
+
+    private fun queryArea(x: Float, y: Float, width: Float, height: Float, includeDynamicEntities: Boolean,
+                          layer: BoundingBoxLayer, out: GdxArray<Entity>, filter: (Entity) -> Boolean): GdxArray<Entity> {
+        if (includeDynamicEntities)
+            updateDynamicEntitiesThatMoved()
+
+        val start = out.size
+        queryBoxes(x, y, width, height, layer, !includeDynamicEntities, false, out)
+        keepFrom(out, start, filter)
+
+        return out
+    }
+
+    /** Removes the Entities of [out] from [start] onwards which don't pass the filter, keeping the order */
+    private inline fun keepFrom(out: GdxArray<Entity>, start: Int, filter: (Entity) -> Boolean) {
+        var kept = start
+        for (i in start until out.size) {
+            val ent = out[i]
+            if (filter(ent)) out[kept++] = ent
+        }
+
+        out.truncate(kept)
+    }
+
+    override fun getPossibleCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, boundingBoxesName: String,
+                                              filter: (Entity) -> Boolean): GdxArray<Entity> {
+        return getPossibleCollidingEntities(x, y, includeDynamicEntities, BoundingBoxLayer.get(boundingBoxesName), filter)
+    }
+
+    override fun getPossibleCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                              filter: (Entity) -> Boolean): GdxArray<Entity> {
+        dummyEntityArray.clear()
+        return getPossibleCollidingEntities(x, y, includeDynamicEntities, layer, dummyEntityArray, filter)
+    }
+
+    override fun getPossibleCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                              out: GdxArray<Entity>, filter: (Entity) -> Boolean): GdxArray<Entity> {
+        return queryArea(x, y, 1f / Engine.PPM, 1f / Engine.PPM, includeDynamicEntities, layer, out, filter)
+    }
+
+    override fun getPossibleCollidingEntities(point: Vector2, includeDynamicEntities: Boolean, boundingBoxesName: String,
+                                              filter: (Entity) -> Boolean): GdxArray<Entity> {
+        return getPossibleCollidingEntities(point.x, point.y, includeDynamicEntities, BoundingBoxLayer.get(boundingBoxesName), filter)
+    }
+
+    override fun getPossibleCollidingEntities(point: Vector2, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                              filter: (Entity) -> Boolean): GdxArray<Entity> {
+        return getPossibleCollidingEntities(point.x, point.y, includeDynamicEntities, layer, filter)
+    }
+
+    override fun getCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, boundingBoxesName: String,
+                                      filter: (Entity) -> Boolean): GdxArray<Entity> {
+        return getCollidingEntities(rectangle, includeDynamicEntities, BoundingBoxLayer.get(boundingBoxesName), filter)
+    }
+
+    override fun getCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                      filter: (Entity) -> Boolean): GdxArray<Entity> {
+        collEntitiesArray.clear()
+        return getCollidingEntities(rectangle, includeDynamicEntities, layer, collEntitiesArray, filter)
+    }
+
+    override fun getCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                      out: GdxArray<Entity>, filter: (Entity) -> Boolean): GdxArray<Entity> {
+        val start = out.size
+        getPossibleCollidingEntities(rectangle, includeDynamicEntities, layer, out, filter)
+        keepFrom(out, start) { rectangle.overlaps(it.getBoundingBox(layer)) }
+        return out
+    }
+
+    override fun getCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, boundingBoxesName: String,
+                                      filter: (Entity) -> Boolean): GdxArray<Entity> {
+        return getCollidingEntities(x, y, includeDynamicEntities, BoundingBoxLayer.get(boundingBoxesName), filter)
+    }
+
+    override fun getCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                      filter: (Entity) -> Boolean): GdxArray<Entity> {
+        collEntitiesArray.clear()
+        return getCollidingEntities(x, y, includeDynamicEntities, layer, collEntitiesArray, filter)
+    }
+
+    override fun getCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                      out: GdxArray<Entity>, filter: (Entity) -> Boolean): GdxArray<Entity> {
+        val start = out.size
+        getPossibleCollidingEntities(x, y, includeDynamicEntities, layer, out, filter)
+        keepFrom(out, start) { it.getBoundingBox(layer).contains(x, y) }
+        return out
+    }
+
+    override fun getCollidingEntities(point: Vector2, includeDynamicEntities: Boolean, boundingBoxesName: String,
+                                      filter: (Entity) -> Boolean): GdxArray<Entity> {
+        return getCollidingEntities(point.x, point.y, includeDynamicEntities, BoundingBoxLayer.get(boundingBoxesName), filter)
+    }
+
+    override fun getCollidingEntities(point: Vector2, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                      filter: (Entity) -> Boolean): GdxArray<Entity> {
+        return getCollidingEntities(point.x, point.y, includeDynamicEntities, layer, filter)
+    }
+
+    override fun getClosestEntities(rectangle: Rectangle, maxDistance: Int, boundingBoxName: String): GdxArray<Entity> {
+        return getClosestEntities(rectangle, maxDistance, BoundingBoxLayer.get(boundingBoxName))
+    }
+
+    private var closestCenterX = 0f
+    private var closestCenterY = 0f
+    private var closestLayer = BoundingBoxLayer.default
+    private val closestComparator = Comparator<Entity> { a, b ->
+        java.lang.Float.compare(distanceToClosestCenter(a), distanceToClosestCenter(b))
+    }
+
+    private fun distanceToClosestCenter(ent: Entity): Float {
+        val rect = ent.getBoundingBox(closestLayer)
+        return Vector2.dst2(closestCenterX, closestCenterY, rect.x + rect.width / 2f, rect.y + rect.height / 2f)
+    }
+
+    /** Searches the rectangle grown by maxDistance, then sorts the results by the distance between centers */
+    override fun getClosestEntities(rectangle: Rectangle, maxDistance: Int, layer: BoundingBoxLayer): GdxArray<Entity> {
+        val entities = dummyEntityArray
+        entities.clear()
+
+        queryBoxes(rectangle.x - maxDistance, rectangle.y - maxDistance,
+                rectangle.width + maxDistance * 2, rectangle.height + maxDistance * 2, layer, false, false, entities)
+
+        closestCenterX = rectangle.x + rectangle.width / 2f
+        closestCenterY = rectangle.y + rectangle.height / 2f
+        closestLayer = layer
+        entities.sort(closestComparator)
+
+        return entities
+    }
+
+    override fun nearest(k: Int, point: Vector2, maxDistance: Float, boundingBoxName: String, out: GdxArray<Entity>,
+                         filter: (Entity) -> Boolean): GdxArray<Entity> {
+        return nearest(k, point, maxDistance, BoundingBoxLayer.get(boundingBoxName), out, filter)
+    }
+
+    /**
+     * Searches squares around the point, doubling their size each time. Each Entity is only considered on the square
+     * where its BB's Chebyshev distance falls between the previous square's half-size and this one's, so it is
+     * considered once. Since the Euclidean distance is never smaller than the Chebyshev one, the search stops as soon
+     * as the k-th best is closer than the half-size of the last square searched.
+     */
+    override fun nearest(k: Int, point: Vector2, maxDistance: Float, layer: BoundingBoxLayer, out: GdxArray<Entity>,
+                         filter: (Entity) -> Boolean): GdxArray<Entity> {
+        if (maxDistance.isInfinite() || maxDistance.isNaN())
+            throw IllegalArgumentException("maxDistance must be finite, it was $maxDistance")
+
+        out.clear()
+        if (k <= 0 || maxDistance < 0) return out
+
+        updateDynamicEntitiesThatMoved()
+
+        val scratch = obtainScratch()
+        try {
+            val heap = scratch.heap
+            heap.reset(k)
+
+            val found = scratch.found
+            var previousHalfSize = -1f
+            var halfSize = Math.min(cellSize.toFloat(), maxDistance)
+
+            while (true) {
+                found.clear()
+                queryBoxes(point.x - halfSize, point.y - halfSize, halfSize * 2, halfSize * 2, layer, false, false, found)
+
+                for (i in 0 until found.size) {
+                    val ent = found[i]
+                    val rect = ent.getBoundingBox(layer)
+                    val dx = Math.max(0f, Math.max(rect.x - point.x, point.x - (rect.x + rect.width)))
+                    val dy = Math.max(0f, Math.max(rect.y - point.y, point.y - (rect.y + rect.height)))
+
+                    // only the Entities whose Chebyshev distance falls in this square's band
+                    val chebyshev = Math.max(dx, dy)
+                    if (chebyshev <= previousHalfSize || chebyshev > halfSize) continue
+
+                    val distance = Math.sqrt((dx * dx + dy * dy).toDouble()).toFloat()
+                    if (distance > maxDistance) continue
+                    if (heap.isFull && distance >= heap.farthestDistance) continue
+                    if (!filter(ent)) continue
+
+                    heap.offer(ent, distance)
+                }
+
+                // unseen Entities are farther than halfSize
+                if (heap.isFull && heap.farthestDistance <= halfSize) break
+                if (halfSize >= maxDistance) break
+
+                previousHalfSize = halfSize
+                halfSize = Math.min(halfSize * 2, maxDistance)
+            }
+
+            heap.drainClosestFirst(out)
+        } finally {
+            freeScratch(scratch)
+        }
+
+        return out
+    }
+
+    override fun raycast(origin: Vector2, direction: Vector2, maxDistance: Float, boundingBoxName: String, hit: RaycastHit,
+                         filter: (Entity) -> Boolean): Boolean {
+        return raycast(origin, direction, maxDistance, BoundingBoxLayer.get(boundingBoxName), hit, filter)
+    }
+
+    override fun segmentQuery(start: Vector2, end: Vector2, boundingBoxName: String, hit: RaycastHit,
+                              filter: (Entity) -> Boolean): Boolean {
+        return segmentQuery(start, end, BoundingBoxLayer.get(boundingBoxName), hit, filter)
+    }
+
+    override fun segmentQuery(start: Vector2, end: Vector2, layer: BoundingBoxLayer, hit: RaycastHit,
+                              filter: (Entity) -> Boolean): Boolean {
+        val directionX = end.x - start.x
+        val directionY = end.y - start.y
+        val length = Math.sqrt((directionX * directionX + directionY * directionY).toDouble()).toFloat()
+        if (length == 0f) {
+            hit.reset()
+            return false
+        }
+
+        return raycast(start.x, start.y, directionX / length, directionY / length, length, layer, hit, filter)
+    }
+
+    override fun raycast(origin: Vector2, direction: Vector2, maxDistance: Float, layer: BoundingBoxLayer, hit: RaycastHit,
+                         filter: (Entity) -> Boolean): Boolean {
+        if (maxDistance.isInfinite() || maxDistance.isNaN())
+            throw IllegalArgumentException("maxDistance must be finite, it was $maxDistance")
+
+        val length = direction.len()
+        if (length == 0f) throw IllegalArgumentException("Raycast direction can't be zero")
+
+        return raycast(origin.x, origin.y, direction.x / length, direction.y / length, maxDistance, layer, hit, filter)
+    }
+
+    /** Walks cells of [cellSize] with a [GridTraversal], searching each one. Since cells are visited in order, the
+     * search stops on the first cell where the closest hit found is inside of it
+     * @param directionX direction must be normalized */
+    private fun raycast(originX: Float, originY: Float, directionX: Float, directionY: Float, maxDistance: Float,
+                        layer: BoundingBoxLayer, hit: RaycastHit, filter: (Entity) -> Boolean): Boolean {
+        hit.reset()
+        updateDynamicEntitiesThatMoved()
+
+        val scratch = obtainScratch()
+        try {
+            val traversal = scratch.traversal
+            val found = scratch.found
+            val size = cellSize.toFloat()
+            traversal.start(originX, originY, directionX, directionY, size)
+
+            var closest = Float.MAX_VALUE
+            while (traversal.distanceEnter <= maxDistance) {
+                found.clear()
+                queryBoxes(traversal.cellX * size, traversal.cellY * size, size, size, layer, false, false, found)
+
+                for (i in 0 until found.size) {
+                    val ent = found[i]
+                    val distance = rayEntersRectangle(ent.getBoundingBox(layer), originX, originY, directionX, directionY,
+                            Math.min(maxDistance, closest), scratch)
+                    if (distance < 0 || distance >= closest || !filter(ent)) continue
+
+                    closest = distance
+                    hit.entity = ent
+                    hit.distance = distance
+                    hit.normal.set(scratch.normalX, scratch.normalY)
+                }
+
+                // Entities of next cells can't be closer
+                if (closest <= traversal.distanceExit) break
+                traversal.step()
+            }
+        } finally {
+            freeScratch(scratch)
+        }
+
+        if (hit.hasHit) hit.point.set(originX + directionX * hit.distance, originY + directionY * hit.distance)
+        return hit.hasHit
+    }
+
+    /** Slab test.
+     * @return distance where the ray enters the rectangle (0 if it starts inside), or -1 if it doesn't before maxDistance.
+     * Saves the normal of the side entered in [QueryScratch.normalX], [QueryScratch.normalY] */
+    private fun rayEntersRectangle(rect: Rectangle, originX: Float, originY: Float, directionX: Float, directionY: Float,
+                                   maxDistance: Float, scratch: QueryScratch): Float {
+        var enter = 0f
+        var exit = maxDistance
+        var normalX = 0f
+        var normalY = 0f
+
+        if (directionX == 0f) {
+            if (originX < rect.x || originX > rect.x + rect.width) return -1f
+        } else {
+            var near = (rect.x - originX) / directionX
+            var far = (rect.x + rect.width - originX) / directionX
+            if (near > far) { val temp = near; near = far; far = temp }
+
+            if (near > enter) {
+                enter = near
+                normalX = -Math.signum(directionX)
+            }
+            exit = Math.min(exit, far)
+            if (enter > exit) return -1f
+        }
+
+        if (directionY == 0f) {
+            if (originY < rect.y || originY > rect.y + rect.height) return -1f
+        } else {
+            var near = (rect.y - originY) / directionY
+            var far = (rect.y + rect.height - originY) / directionY
+            if (near > far) { val temp = near; near = far; far = temp }
+
+            if (near > enter) {
+                enter = near
+                normalX = 0f
+                normalY = -Math.signum(directionY)
+            }
+            exit = Math.min(exit, far)
+            if (enter > exit) return -1f
+        }
+
+        scratch.normalX = normalX
+        scratch.normalY = normalY
+        return enter
+    }
+
+    override fun addDynamicEntityThatMoved(entity: Entity) {
+        dynamicEntitiesThatMoved.add(entity)
+    }
+
+    /**
+     * Use to update dynamic entities that moved, to get correct collision information as Dynamic Entities can move anytime
+     */
+    override fun updateDynamicEntitiesThatMoved() {
+        // already done by the map before updating in parallel; Entities moving meanwhile are added after
+        if (entityTiledMap.isUpdatingInParallel) return
+
+        // by index: Array iterators are shared by the Array
+        for (i in 0 until dynamicEntitiesThatMoved.size) {
+            updateEntity(dynamicEntitiesThatMoved[i])
+        }
+    }
+
+    /**
+     * Doesn't reset [Entity.hasMoved], since more than one index may check it; the owner of the indexes must do it
+     * once all of them are updated
+     */
+    override fun resetDynamicEntities(updatedDynamicEntityList: GdxArray<Entity>) {
+        // backwards, so the Entity swapped in place of a removed one was already checked
+        for (i in addedDynamicEntities.size - 1 downTo 0) {
+            val entity = addedDynamicEntities[i]
+            if (entity.isAddedToMap && !entity.isKilled) continue
+
+            removeEntity(entity)
+            addedDynamicEntities.denseRemove(entity, treeSlot) { it.dynamicIndexPositions }
+        }
+
+        for (ent in updatedDynamicEntityList) {
+            if (!addedDynamicEntities.denseContains(ent, treeSlot) { it.dynamicIndexPositions }) {
+                addEntity(ent)
+                addedDynamicEntities.denseAdd(ent, treeSlot) { it.dynamicIndexPositions }
+            } else if (ent.hasMoved()) {
+                updateEntity(ent)
+            }
+        }
+
+        dynamicEntitiesThatMoved.clear()
+    }
+
+    override fun addStaticEntity(ent: Entity) {
+        addEntity(ent)
+    }
+
+    override fun removeStaticEntity(ent: Entity) {
+        removeEntity(ent)
+    }
+
+    private fun addEntity(ent: Entity) {
+        for (boundingBox in ent.boundingBoxes.values()) {
+            checkRectangle(boundingBox.rect)
+            insertBox(registerBox(boundingBox), boundingBox.rect)
+        }
+    }
+
+    /** Moves the BBs of an Entity already added to where they are now */
+    private fun updateEntity(ent: Entity) {
+        for (boundingBox in ent.boundingBoxes.values()) {
+            val id = boundingBox.treeIds[treeSlot]
+            checkRectangle(boundingBox.rect)
+            if (id == -1)
+                insertBox(registerBox(boundingBox), boundingBox.rect)
+            else
+                moveBox(id, boundingBox.rect)
+        }
+    }
+
+    private fun removeEntity(ent: Entity) {
+        for (boundingBox in ent.boundingBoxes.values()) {
+            val id = boundingBox.treeIds[treeSlot]
+            if (id == -1) continue
+
+            removeBox(id)
+            unregisterBox(id)
+        }
+    }
+
+    private fun registerBox(boundingBox: BoundingBox): Int {
+        if (boundingBox.treeIds[treeSlot] != -1)
+            throw RuntimeException("BoundingBox ${boundingBox.name} of ${boundingBox.entity} was added twice to a SpatialIndex")
+
+        val id: Int
+        if (freeBoxIds.size > 0) {
+            id = freeBoxIds.pop()
+            boxes[id] = boundingBox
+        } else {
+            id = boxes.size
+            boxes.add(boundingBox)
+            ensureBoxCapacity(boxes.size)
+        }
+
+        boundingBox.treeIds[treeSlot] = id
+        return id
+    }
+
+    private fun unregisterBox(id: Int) {
+        boxes[id]!!.treeIds[treeSlot] = -1
+        boxes[id] = null
+        freeBoxIds.add(id)
+    }
+
+    private fun ensureBoxCapacity(capacity: Int) {
+        if (capacity <= boxCapacity) return
+        boxCapacity = Math.max(capacity, boxCapacity * 2)
+        onBoxCapacityChanged(boxCapacity)
+    }
+
+    protected fun checkRectangle(rectangle: Rectangle) {
+        if (rectangle.width < 0 || rectangle.height < 0)
+            printDebug("Collision checking with a Rectangle with negative height or width. This will yield wrong results.\n" +
+                    "Use Rectangle's extension function 'fixNegatives()'")
+    }
+
+    /** @return buffers for one running query of this thread; give them back with [freeScratch] */
+    private fun obtainScratch(): QueryScratch {
+        val free = freeScratches.get()
+        return if (free.size > 0) free.pop() else QueryScratch()
+    }
+
+    private fun freeScratch(scratch: QueryScratch) {
+        scratch.found.clear()
+        freeScratches.get().add(scratch)
+    }
+
+    private companion object {
+        const val initialBoxCapacity = 64
+
+        /** Buffers of the queries not keeping state in the index, per thread; more than one when nested */
+        val freeScratches = object : ThreadLocal<GdxArray<QueryScratch>>() {
+            override fun initialValue() = GdxArray<QueryScratch>()
+        }
+    }
+}
+
+/** Buffers used while running [BaseSpatialIndex.nearest] or [BaseSpatialIndex.raycast] */
+private class QueryScratch {
+    val found = GdxArray<Entity>()
+    val heap = NearestHeap()
+    val traversal = GridTraversal()
+    var normalX = 0f
+    var normalY = 0f
+}
+
+/** Bounded max-heap of the best candidates of [BaseSpatialIndex.nearest], the farthest one on top */
+private class NearestHeap {
+    private var entities = arrayOfNulls<Entity>(16)
+    private var distances = FloatArray(16)
+    private var size = 0
+    private var capacity = 0
+
+    val isFull get() = size == capacity
+    val farthestDistance get() = distances[0]
+
+    fun reset(capacity: Int) {
+        if (entities.size < capacity) {
+            entities = arrayOfNulls(capacity)
+            distances = FloatArray(capacity)
+        }
+
+        this.capacity = capacity
+        size = 0
+    }
+
+    fun offer(ent: Entity, distance: Float) {
+        if (size == capacity) removeTop()
+
+        // sift up
+        var i = size++
+        while (i > 0) {
+            val parent = (i - 1) / 2
+            if (distances[parent] >= distance) break
+            entities[i] = entities[parent]
+            distances[i] = distances[parent]
+            i = parent
+        }
+
+        entities[i] = ent
+        distances[i] = distance
+    }
+
+    /** Empties the heap into [out], closest first */
+    fun drainClosestFirst(out: GdxArray<Entity>) {
+        out.setSize(size)
+        while (size > 0) {
+            out[size - 1] = entities[0]
+            removeTop()
+        }
+    }
+
+    private fun removeTop() {
+        size--
+        val lastEntity = entities[size]
+        val lastDistance = distances[size]
+        entities[size] = null
+        if (size == 0) return
+
+        // sift down
+        var i = 0
+        while (true) {
+            var child = i * 2 + 1
+            if (child >= size) break
+            if (child + 1 < size && distances[child + 1] > distances[child]) child++
+            if (distances[child] <= lastDistance) break
+
+            entities[i] = entities[child]
+            distances[i] = distances[child]
+            i = child
+        }
+
+        entities[i] = lastEntity
+        distances[i] = lastDistance
+    }
+}
@@ -0,0 +1,253 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.utils.IntArray as GdxIntArray
+import com.dcostap.engine.map.entities.BoundingBoxLayer
+import com.dcostap.engine.map.entities.CollidingEntity
+import com.dcostap.engine.map.entities.Entity
+import ktx.collections.GdxArray
+import java.util.*
+
+/**
+ * Finds the possible colliding Entities of all moving [CollidingEntity]s at once, at the start of the frame, so their
+ * collision response doesn't query [EntityTiledMap.collisionTreeForEntityColliding] on each step.
+ * Enable it with [EntityTiledMap.useBatchedBroadphase].
+ *
+ * Each mover gets a box covering its BBs from where it is to where its speed takes it this frame. Movers are checked
+ * against each other with sweep and prune: boxes sorted by their left side, so each one is only compared with the
+ * following ones until they start past its right side; each pair of movers is found once. Then each mover queries the
+ * index once for the rest of Entities.
+ *
+ * Candidates of each mover are kept in one Array, mover after mover ([candidateStart] has where each one starts).
+ * [Entity.updateCollidingState] reads them while the Entity's BB is inside its box; otherwise it queries the index.
+ *
+ * Candidates are only valid while Entities are where they were predicted: if a mover leaves its box, or a dynamic
+ * Entity that isn't a mover moves, the results are discarded until the next frame. So it pays off when most of the
+ * dynamic Entities move through [CollidingEntity.speed].
+ */
+class BatchedBroadphase(private val entityTiledMap: EntityTiledMap) {
+    private val movers = GdxArray<Entity>()
+
+    // box of each mover
+    private var minX = FloatArray(64)
+    private var minY = FloatArray(64)
+    private var maxX = FloatArray(64)
+    private var maxY = FloatArray(64)
+
+    /** Left side of each mover's box and its index, packed to be sorted as longs */
+    private var sortKeys = LongArray(64)
+
+    private val pairsA = GdxIntArray()
+    private val pairsB = GdxIntArray()
+
+    private val worldCandidates = GdxArray<Entity>()
+    private var worldStart = IntArray(65)
+
+    private var candidates = arrayOfNulls<Entity>(64)
+    private var candidateCount = 0
+    private var candidateStart = IntArray(65)
+    private var candidateFill = IntArray(64)
+
+    /** False when the candidates of this frame no longer hold, see [invalidate] */
+    var isValid = false
+        private set
+
+    /** Movers of the last [update] */
+    val moverCount get() = movers.size
+
+    /** Pairs of movers whose boxes overlap, found on the last [update] */
+    val moverPairCount get() = pairsA.size
+
+    private val sweptBox = Rectangle()
+
+    /** Distance added to the boxes, since collision response may move a bit further than the speed */
+    var margin = 0.05f
+
+    /** @param entities the ones being updated this frame */
+    fun update(entities: GdxArray<Entity>, delta: Float) {
+        clear()
+
+        for (ent in entities) {
+            if (ent !is CollidingEntity || ent.isStatic || ent.onlyCollideAgainstMapCells) continue
+            ent.broadphaseIndex = movers.size
+            movers.add(ent)
+        }
+
+        val count = movers.size
+        ensureCapacity(count)
+
+        for (i in 0 until count) {
+            val ent = movers[i] as CollidingEntity
+            sweep(i, ent.getBoundingBox(ent.collidingLayer), ent.speed.x * delta, ent.speed.y * delta, true)
+            sweep(i, ent.getBoundingBox(BoundingBoxLayer.default), ent.speed.x * delta, ent.speed.y * delta, false)
+            sortKeys[i] = (sortableBits(minX[i]).toLong() shl 32) or i.toLong()
+        }
+
+        findMoverPairs(count)
+        findWorldCandidates(count)
+        buildCandidates(count)
+
+        isValid = true
+    }
+
+    /** Grows the box of the mover to cover the rectangle moved by dx, dy */
+    private fun sweep(i: Int, rect: Rectangle, dx: Float, dy: Float, first: Boolean) {
+        val left = rect.x + Math.min(0f, dx) - margin
+        val bottom = rect.y + Math.min(0f, dy) - margin
+        val right = rect.x + rect.width + Math.max(0f, dx) + margin
+        val top = rect.y + rect.height + Math.max(0f, dy) + margin
+
+        if (first) {
+            minX[i] = left; minY[i] = bottom; maxX[i] = right; maxY[i] = top
+        } else {
+            minX[i] = Math.min(minX[i], left); minY[i] = Math.min(minY[i], bottom)
+            maxX[i] = Math.max(maxX[i], right); maxY[i] = Math.max(maxY[i], top)
+        }
+    }
+
+    private fun findMoverPairs(count: Int) {
+        Arrays.sort(sortKeys, 0, count)
+
+        for (s in 0 until count) {
+            val a = sortKeys[s].toInt()
+            for (t in s + 1 until count) {
+                val b = sortKeys[t].toInt()
+                if (minX[b] > maxX[a]) break
+                if (minY[b] > maxY[a] || maxY[b] < minY[a]) continue
+
+                pairsA.add(a)
+                pairsB.add(b)
+            }
+        }
+    }
+
+    /** Entities that aren't movers found by each mover's box; movers are found by [findMoverPairs] */
+    private fun findWorldCandidates(count: Int) {
+        val index = entityTiledMap.collisionTreeForEntityColliding
+        for (i in 0 until count) {
+            worldStart[i] = worldCandidates.size
+
+            val start = worldCandidates.size
+            sweptBox.set(minX[i], minY[i], maxX[i] - minX[i], maxY[i] - minY[i])
+            index.getPossibleCollidingEntities(sweptBox, true, BoundingBoxLayer.default, worldCandidates)
+
+            // remove movers, keeping the order
+            var kept = start
+            for (c in start until worldCandidates.size) {
+                val ent = worldCandidates[c]
+                if (!isMover(ent)) worldCandidates[kept++] = ent
+            }
+            worldCandidates.truncate(kept)
+        }
+
+        worldStart[count] = worldCandidates.size
+    }
+
+    private fun buildCandidates(count: Int) {
+        for (i in 0 until count) candidateFill[i] = worldStart[i + 1] - worldStart[i]
+        for (p in 0 until pairsA.size) {
+            // only movers in the index are found by others
+            if (movers[pairsB[p]].providesCollidingInfo) candidateFill[pairsA[p]]++
+            if (movers[pairsA[p]].providesCollidingInfo) candidateFill[pairsB[p]]++
+        }
+
+        candidateStart[0] = 0
+        for (i in 0 until count) candidateStart[i + 1] = candidateStart[i] + candidateFill[i]
+
+        val total = candidateStart[count]
+        if (candidates.size < total) candidates = arrayOfNulls(Math.max(total, candidates.size * 2))
+        candidateCount = total
+
+        for (i in 0 until count) {
+            var fill = candidateStart[i]
+            for (c in worldStart[i] until worldStart[i + 1]) candidates[fill++] = worldCandidates[c]
+            candidateFill[i] = fill
+        }
+
+        for (p in 0 until pairsA.size) {
+            val a = pairsA[p]
+            val b = pairsB[p]
+            if (movers[b].providesCollidingInfo) candidates[candidateFill[a]++] = movers[b]
+            if (movers[a].providesCollidingInfo) candidates[candidateFill[b]++] = movers[a]
+        }
+    }
+
+    private fun isMover(ent: Entity): Boolean {
+        val i = ent.broadphaseIndex
+        return i >= 0 && i < movers.size && movers[i] === ent
+    }
+
+    /**
+     * Adds the candidates of the Entity to [out], if it is a mover and its BB of the layer is still inside its box
+     * @param includeDynamicEntities if false, dynamic candidates are skipped
+     * @return false if the candidates can't be used; [out] isn't modified then
+     */
+    fun getCandidates(entity: Entity, layer: BoundingBoxLayer, includeDynamicEntities: Boolean, out: GdxArray<Entity>): Boolean {
+        if (!isValid || !isMover(entity)) return false
+
+        val i = entity.broadphaseIndex
+        if (!isInsideBox(i, entity.getBoundingBox(layer))) return false
+
+        for (c in candidateStart[i] until candidateStart[i + 1]) {
+            val candidate = candidates[c]!!
+            if (includeDynamicEntities || candidate.isStatic) out.add(candidate)
+        }
+
+        return true
+    }
+
+    private fun isInsideBox(i: Int, rect: Rectangle): Boolean {
+        return rect.x >= minX[i] && rect.y >= minY[i] && rect.x + rect.width <= maxX[i] && rect.y + rect.height <= maxY[i]
+    }
+
+    /** Called after an Entity is updated; discards the candidates if it moved somewhere they don't cover */
+    fun onEntityUpdated(entity: Entity) {
+        if (!isValid || entity.isStatic || !entity.hasMoved()) return
+
+        if (isMover(entity)) {
+            val ent = entity as CollidingEntity
+            if (isInsideBox(ent.broadphaseIndex, ent.getBoundingBox(BoundingBoxLayer.default))
+                    && isInsideBox(ent.broadphaseIndex, ent.getBoundingBox(ent.collidingLayer)))
+                return
+        } else if (!entity.providesCollidingInfo) return
+
+        invalidate()
+    }
+
+    /** Candidates are no longer used this frame; Entities query the index again */
+    fun invalidate() {
+        isValid = false
+    }
+
+    fun clear() {
+        for (ent in movers) ent.broadphaseIndex = -1
+        movers.clear()
+        pairsA.clear()
+        pairsB.clear()
+        worldCandidates.clear()
+        Arrays.fill(candidates, 0, candidateCount, null)
+        candidateCount = 0
+        isValid = false
+    }
+
+    private fun ensureCapacity(count: Int) {
+        if (count <= minX.size) return
+        val capacity = Math.max(count, minX.size * 2)
+        minX = FloatArray(capacity)
+        minY = FloatArray(capacity)
+        maxX = FloatArray(capacity)
+        maxY = FloatArray(capacity)
+        sortKeys = LongArray(capacity)
+        worldStart = IntArray(capacity + 1)
+        candidateStart = IntArray(capacity + 1)
+        candidateFill = IntArray(capacity)
+    }
+
+    private companion object {
+        /** Bits of the float as an int with the same order */
+        fun sortableBits(value: Float): Int {
+            val bits = java.lang.Float.floatToIntBits(value)
+            return if (bits < 0) bits xor 0x7fffffff else bits
+        }
+    }
+}
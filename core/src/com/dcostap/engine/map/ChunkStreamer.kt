@@ -0,0 +1,335 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.math.MathUtils
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.utils.Disposable
+import com.badlogic.gdx.utils.JsonValue
+import com.badlogic.gdx.utils.async.AsyncExecutor
+import com.badlogic.gdx.utils.async.AsyncResult
+import com.dcostap.engine.map.entities.Entity
+import com.dcostap.engine.map.map_loading.ChunkProvider
+import com.dcostap.engine.map.map_loading.EntityLoaderFromClass
+import com.dcostap.engine.map.map_loading.JsonMapLoader
+import com.dcostap.engine.utils.JsonSavedObject
+import ktx.collections.GdxArray
+
+/**
+ * Keeps only the part of the map around the camera loaded, splitting it in square chunks of [chunkSize] cells.
+ * Set it as the map's [EntityTiledMap.chunkStreamer] so it is updated at the start of each frame.
+ *
+ * Chunks hold the tiles and [MapCell.markedAsSolid] of their cells and the static Entities whose position is inside,
+ * (so their BBs in the spatial indexes too). Dynamic Entities are never unloaded. The map keeps its size and its
+ * MapCells; use [SpatialIndexType.SPARSE_HASH_GRID] so empty parts of the map take no memory in the indexes.
+ *
+ * Chunks whose area gets closer than [loadBorder] cells to the camera are read by the [ChunkProvider] on a worker
+ * thread. The main thread then commits them: adds their tiles and creates their Entities. Chunks farther than
+ * [unloadBorder] cells are saved back: Entities are serialized and removed, cells are cleared, and the provider writes
+ * the result on the worker thread. Both commits and saves are split in small steps, and each frame only does steps
+ * for up to [commitBudgetMillis].
+ *
+ * Reads and writes run in order on one thread, so a chunk that comes back while being written is read after.
+ *
+ * @param saveVersion passed to [Entity.loadEntity]
+ */
+class ChunkStreamer @JvmOverloads constructor(val map: EntityTiledMap, val chunkSize: Int, val provider: ChunkProvider,
+                                              val entityLoaderFromClass: EntityLoaderFromClass? = null,
+                                              val saveVersion: String = "0") : Disposable
+{
+    enum class ChunkState {
+        UNLOADED,
+        /** Being read by the provider */
+        READING,
+        /** Read, being added to the map */
+        COMMITTING,
+        LOADED,
+        /** Being removed from the map and saved */
+        SAVING
+    }
+
+    /** Cells around the camera whose chunks are loaded */
+    var loadBorder = chunkSize
+
+    /** Cells around the camera out of which chunks are unloaded; bigger than [loadBorder] so chunks near the border
+     * aren't loaded and unloaded repeatedly */
+    var unloadBorder = chunkSize * 2
+
+    /** Max time spent each frame committing and saving chunks on the main thread */
+    var commitBudgetMillis = 2f
+
+    val chunksX = MathUtils.ceil(map.width / chunkSize.toFloat())
+    val chunksY = MathUtils.ceil(map.height / chunkSize.toFloat())
+
+    private val chunks = Array(chunksX * chunksY) { Chunk(it % chunksX, it / chunksX) }
+
+    private val reading = GdxArray<Chunk>()
+    private val loaded = GdxArray<Chunk>()
+
+    /** Chunks being committed or saved, in order */
+    private val pendingWork = GdxArray<Chunk>()
+
+    private val executor = AsyncExecutor(1)
+
+    private val area = Rectangle()
+    private val chunkRectangle = Rectangle()
+
+    private inner class Chunk(val x: Int, val y: Int) {
+        var state = ChunkState.UNLOADED
+        var read: AsyncResult<JsonValue?>? = null
+
+        // committing: data read, and the next cell or Entity of it to add
+        var data: JsonValue? = null
+        var cursor: JsonValue? = null
+        var committingEntities = false
+
+        /** Static Entities of the map whose position is inside the chunk, loaded or not */
+        val staticEntities = GdxArray<Entity>()
+
+        // saving: Entities to save, the next Entity or row of cells to save, and the result
+        val entities = GdxArray<Entity>()
+        var entityCursor = 0
+        var rowCursor = 0
+        var saved: JsonSavedObject? = null
+
+        val startX get() = x * chunkSize
+        val startY get() = y * chunkSize
+        val endX get() = Math.min(map.width, startX + chunkSize)
+        val endY get() = Math.min(map.height, startY + chunkSize)
+    }
+
+    fun getChunkState(chunkX: Int, chunkY: Int) = chunks[chunkX + chunkY * chunksX].state
+
+    /** Whether no chunk is being read, committed or saved */
+    val isIdle get() = reading.size == 0 && pendingWork.size == 0
+
+    fun update() {
+        map.getCameraRectangle(area, loadBorder)
+        forEachChunkIn(area) { if (it.state == ChunkState.UNLOADED) startReading(it) }
+
+        pollReads()
+
+        map.getCameraRectangle(area, unloadBorder)
+        val itr = loaded.iterator()
+        while (itr.hasNext()) {
+            val chunk = itr.next()
+            if (chunkRectangle(chunk).overlaps(area)) continue
+
+            itr.remove()
+            startSaving(chunk)
+        }
+
+        doPendingWork((commitBudgetMillis * 1000000).toLong())
+    }
+
+    private inline fun forEachChunkIn(rectangle: Rectangle, action: (Chunk) -> Unit) {
+        val minX = Math.max(0, MathUtils.floor(rectangle.x / chunkSize))
+        val minY = Math.max(0, MathUtils.floor(rectangle.y / chunkSize))
+        val maxX = Math.min(chunksX - 1, MathUtils.floor((rectangle.x + rectangle.width) / chunkSize))
+        val maxY = Math.min(chunksY - 1, MathUtils.floor((rectangle.y + rectangle.height) / chunkSize))
+
+        for (y in minY..maxY) {
+            for (x in minX..maxX) {
+                action(chunks[x + y * chunksX])
+            }
+        }
+    }
+
+    private fun chunkRectangle(chunk: Chunk): Rectangle {
+        return chunkRectangle.set(chunk.startX.toFloat(), chunk.startY.toFloat(),
+                (chunk.endX - chunk.startX).toFloat(), (chunk.endY - chunk.startY).toFloat())
+    }
+
+    private fun startReading(chunk: Chunk) {
+        chunk.state = ChunkState.READING
+        val x = chunk.x
+        val y = chunk.y
+        chunk.read = executor.submit { provider.readChunk(x, y) }
+        reading.add(chunk)
+    }
+
+    private fun pollReads() {
+        val itr = reading.iterator()
+        while (itr.hasNext()) {
+            val chunk = itr.next()
+            if (!chunk.read!!.isDone) continue
+
+            itr.remove()
+            chunk.data = chunk.read!!.get()
+            chunk.read = null
+
+            chunk.state = ChunkState.COMMITTING
+            chunk.committingEntities = false
+            chunk.cursor = chunk.data?.get("cells")?.child
+            pendingWork.add(chunk)
+        }
+    }
+
+    private fun startSaving(chunk: Chunk) {
+        chunk.state = ChunkState.SAVING
+        chunk.saved = JsonSavedObject()
+        chunk.entityCursor = 0
+        chunk.rowCursor = chunk.startY
+
+        // copied, since removing them from the map removes them from the chunk
+        chunk.entities.clear()
+        chunk.entities.addAll(chunk.staticEntities)
+
+        pendingWork.add(chunk)
+    }
+
+    /** Does steps of the chunks with pending work, in order, until the time runs out */
+    private fun doPendingWork(budgetNanos: Long) {
+        val deadline = if (budgetNanos == Long.MAX_VALUE) Long.MAX_VALUE else System.nanoTime() + budgetNanos
+        while (pendingWork.size > 0) {
+            val chunk = pendingWork.first()
+            val finished = if (chunk.state == ChunkState.COMMITTING) commitStep(chunk) else saveStep(chunk)
+            if (finished) pendingWork.removeIndex(0)
+
+            if (System.nanoTime() >= deadline) break
+        }
+    }
+
+    /** Adds one cell or Entity of the chunk to the map
+     * @return whether the chunk is fully committed */
+    private fun commitStep(chunk: Chunk): Boolean {
+        val cursor = chunk.cursor
+        if (cursor == null) {
+            if (!chunk.committingEntities) {
+                chunk.committingEntities = true
+                chunk.cursor = chunk.data?.get("entities")?.child
+                return false
+            }
+
+            chunk.data = null
+            chunk.state = ChunkState.LOADED
+            loaded.add(chunk)
+            return true
+        }
+
+        chunk.cursor = cursor.next
+        if (chunk.committingEntities) commitEntity(cursor) else commitCell(cursor)
+        return false
+    }
+
+    private fun commitCell(cellInfo: JsonValue) {
+        val x = cellInfo.getInt("x")
+        val y = cellInfo.getInt("y")
+        if (!map.isInsideMap(x, y)) return
+
+        val cell = map.getMapCell(x, y)
+        cell.markedAsSolid = cellInfo.getBoolean("markedAsSolid", false)
+
+        val tiles = cellInfo.get("tiles") ?: return
+        for (tile in tiles) {
+            cell.addTile(Tile.load(tile, map))
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun commitEntity(entInfo: JsonValue) {
+        val clazz = Class.forName(entInfo.getString("class")) as Class<Entity>
+        val ent = entityLoaderFromClass?.loadEntity(clazz) ?: clazz.getDeclaredConstructor().newInstance()
+        map.addEntity(ent)
+        ent.loadEntity(entInfo, saveVersion)
+    }
+
+    /** Saves and removes one Entity, or saves and clears one row of cells of the chunk
+     * @return whether the chunk is fully saved */
+    private fun saveStep(chunk: Chunk): Boolean {
+        val saved = chunk.saved!!
+
+        if (chunk.entityCursor < chunk.entities.size) {
+            val ent = chunk.entities[chunk.entityCursor++]
+            if (!ent.isKilled) {
+                saved.getOrAddChild("entities").addChild("ent", ent.saveEntity())
+                map.removeEntity(ent)
+            }
+            return false
+        }
+
+        if (chunk.rowCursor < chunk.endY) {
+            val y = chunk.rowCursor++
+            for (x in chunk.startX until chunk.endX) {
+                val cell = map.getMapCell(x, y)
+                if (cell.getTiles().size == 0 && !cell.markedAsSolid) continue
+
+                saved.getOrAddChild("cells").addChild("cell", cell.save())
+                cell.clearTiles()
+                cell.markedAsSolid = false
+            }
+            return false
+        }
+
+        chunk.entities.clear()
+        chunk.saved = null
+        chunk.state = ChunkState.UNLOADED
+
+        val x = chunk.x
+        val y = chunk.y
+        executor.submit { provider.writeChunk(x, y, saved) }
+        return true
+    }
+
+    /** Called by the map when a static Entity is added to it */
+    internal fun onStaticEntityAdded(ent: Entity) {
+        getChunkAt(ent)?.staticEntities?.denseAdd(ent, EntityTiledMap.CHUNK_LIST) { it.mapListPositions }
+    }
+
+    /** Called by the map when a static Entity is removed from it. Static Entities can't move, so it is still in the
+     * chunk of its position */
+    internal fun onStaticEntityRemoved(ent: Entity) {
+        getChunkAt(ent)?.staticEntities?.denseRemove(ent, EntityTiledMap.CHUNK_LIST) { it.mapListPositions }
+    }
+
+    /** Finds again the chunk of each static Entity in the map. Called by the map when this is set as its
+     * [EntityTiledMap.chunkStreamer] */
+    internal fun collectStaticEntities() {
+        for (chunk in chunks) {
+            for (i in 0 until chunk.staticEntities.size) chunk.staticEntities[i].mapListPositions[EntityTiledMap.CHUNK_LIST] = -1
+            chunk.staticEntities.clear()
+        }
+
+        for (i in 0 until map.entityList.size) {
+            val ent = map.entityList[i]
+            if (ent.isStatic) onStaticEntityAdded(ent)
+        }
+    }
+
+    /** @return the chunk where the Entity's position is, null if outside of the map */
+    private fun getChunkAt(ent: Entity): Chunk? {
+        val x = MathUtils.floor(ent.position.x)
+        val y = MathUtils.floor(ent.position.y)
+        if (!map.isInsideMap(x, y)) return null
+        return chunks[x / chunkSize + (y / chunkSize) * chunksX]
+    }
+
+    private fun JsonValue.getOrAddChild(name: String): JsonValue {
+        return get(name) ?: JsonSavedObject().also { addChild(name, it) }
+    }
+
+    /** Considers all chunks loaded, for maps whose content was loaded in full (for example with [JsonMapLoader]):
+     * chunks far from the camera will then be saved and unloaded as usual */
+    fun markAllLoaded() {
+        for (chunk in chunks) {
+            if (chunk.state != ChunkState.UNLOADED) continue
+            chunk.state = ChunkState.LOADED
+            loaded.add(chunk)
+        }
+    }
+
+    /** Commits the chunks being read and saves all loaded ones, without time limit. Waits for reads to finish */
+    fun unloadAll() {
+        for (chunk in reading) chunk.read!!.get()
+        pollReads()
+
+        doPendingWork(Long.MAX_VALUE)
+        for (chunk in loaded) startSaving(chunk)
+        loaded.clear()
+        doPendingWork(Long.MAX_VALUE)
+    }
+
+    /** Unloads all chunks, then waits for the provider to write them */
+    override fun dispose() {
+        unloadAll()
+        executor.dispose()
+    }
+}
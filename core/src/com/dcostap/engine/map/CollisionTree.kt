@@ -1,74 +1,142 @@
 package com.dcostap.engine.map
 
 import com.badlogic.gdx.graphics.Color
-import com.badlogic.gdx.math.GridPoint2
 import com.badlogic.gdx.math.MathUtils
 import com.badlogic.gdx.math.Rectangle
-import com.badlogic.gdx.math.Vector2
-import com.badlogic.gdx.utils.Pool
-import com.dcostap.Engine
-import com.dcostap.engine.map.entities.BoundingBox
+import com.dcostap.engine.map.entities.BoundingBoxLayer
 import com.dcostap.engine.map.entities.Entity
 import com.dcostap.engine.utils.GameDrawer
-import com.dcostap.printDebug
 import ktx.collections.GdxArray
+import java.util.*
 
 /**
  * Created by Darius on 20/10/2017.
  *
- * Holds entities in cells, each one with configurable size with [cellSize]
+ * [SpatialIndex] that holds entities in cells, each one with configurable size with [cellSize]
  * Cells occupy the entire provided map's size, creating as many cells as necessary to fill it
  *
- * Holds dynamic and static entities as separate groups
- * - Dynamic entities _that moved_ are removed & added on each frame. Before that, method resetDynamicEntities() must be called
- * - Static entities are added only when created, until they are removed
- * - Note: Dynamic entities can move, Static entities can't!
+ * Each cell is a bucket of BB ids (see [BaseSpatialIndex]), and each id remembers the range of cells it occupies, so
+ * updating or removing a BB never needs to search for its cells. When a dynamic BB moves only the cells it entered or
+ * left are modified; nothing is done if it still occupies the same cells.
+ *
+ * Each [BoundingBoxLayer] has its own buckets, so a query of one layer never visits BBs of other layers.
+ *
+ * A BB in several cells is only reported from the first cell of the query it occupies (the one at the max of both
+ * ranges' start), so queries avoid duplicates without marking BBs, and don't modify the tree.
+ *
+ * Cells outside of the map only exist while they hold BBs: they are kept in a hash map keyed by their coordinates
+ * (see [SparseCells]), so Entities outside of the map are found as fast as the ones inside. Use [SparseHashGrid]
+ * for maps without fixed size.
  *
  * All coordinates not related to arrays of cells are in game units
  */
-class CollisionTree(val cellSize: Int, mapSizeX: Int, mapSizeY: Int, private val entityTiledMap: EntityTiledMap) {
-    private val dynamicEntitiesThatMoved = GdxArray<Entity>()
+class CollisionTree(override val cellSize: Int, mapSizeX: Int, mapSizeY: Int, entityTiledMap: EntityTiledMap,
+                    treeSlot: Int = 0) : BaseSpatialIndex(entityTiledMap, treeSlot) {
+    override val type get() = SpatialIndexType.GRID
 
-    private val dummyGridPoint1 = GridPoint2()
-    private val dummyGridPoint2 = GridPoint2()
-    private val dummyTreeCellSet = GdxArray<CollisionTreeCell>()
-    private val dummyEntityArray = GdxArray<Entity>()
-    private val dummyEntityArray2 = GdxArray<Entity>()
-    private val dummyTreeCellArray = GdxArray<CollisionTreeCell>()
+    private val sizeX: Int = MathUtils.ceil(mapSizeX / cellSize.toFloat())
+    private val sizeY: Int = MathUtils.ceil(mapSizeY / cellSize.toFloat())
+    private val cellNumber = sizeX * sizeY
 
-    private val dynamicBBsPosition = HashMap<BoundingBox, GdxArray<CollisionTreeCell>>()
-    private val addedDynamicEntities = GdxArray<Entity>()
+    /** Buckets of each layer, indexed by [BoundingBoxLayer.id]; created when the first BB of the layer is added */
+    private val layerCells = GdxArray<LayerCells?>()
 
-    private val rectangleOrigin = GridPoint2()
-    private val rectangleEnd = GridPoint2()
+    // range of cells occupied by each id, in tree cell coordinates (may be outside of the map)
+    private var boxMinX = IntArray(boxCapacity)
+    private var boxMinY = IntArray(boxCapacity)
+    private var boxMaxX = IntArray(boxCapacity)
+    private var boxMaxY = IntArray(boxCapacity)
 
-    private val collisionTreePool = CollisionTreePool()
+    /** Only for benchmarking: if false, BBs that moved are removed from all their cells and added again,
+     * which is how the tree used to do it */
+    internal var diffCellRanges = true
 
-    private var cellNumber = 0
-    private val sizeX: Int = MathUtils.ceil(mapSizeX / cellSize.toFloat())
-    private val sizeY: Int = MathUtils.ceil(mapSizeY / cellSize.toFloat())
+    private val closestEntities = GdxArray<Entity>()
 
-    private val treeCells: GdxArray<GdxArray<CollisionTreeCell>>
-    private val outsideCell = CollisionTreeCell(GridPoint2(-1, -1), true)
+    // BBs already found by getClosestEntities: an id whose stamp equals the current one was found in this search
+    private var closestStamp = 0
+    private var boxStamp = IntArray(boxCapacity)
 
-    private val engine get() = entityTiledMap.screen.engine
+    override fun onBoxCapacityChanged(capacity: Int) {
+        boxStamp = Arrays.copyOf(boxStamp, capacity)
+        boxMinX = Arrays.copyOf(boxMinX, capacity)
+        boxMinY = Arrays.copyOf(boxMinY, capacity)
+        boxMaxX = Arrays.copyOf(boxMaxX, capacity)
+        boxMaxY = Arrays.copyOf(boxMaxY, capacity)
+    }
 
-    init {
-        treeCells = GdxArray(sizeX)
-        for (x in 0 until sizeX) {
-            val yArray = GdxArray<CollisionTreeCell>(sizeY)
-            for (y in 0 until sizeY) {
-                yArray.add(CollisionTreeCell(GridPoint2(x, y), false))
-                cellNumber++
-            }
-            treeCells.add(yArray)
-        }
+    private fun layerCellsOrNull(layer: BoundingBoxLayer): LayerCells? {
+        return if (layer.id < layerCells.size) layerCells[layer.id] else null
+    }
+
+    private fun layerCells(layer: BoundingBoxLayer): LayerCells {
+        if (layerCells.size <= layer.id) layerCells.setSize(layer.id + 1)
+        return layerCells[layer.id] ?: LayerCells(cellNumber).also { layerCells[layer.id] = it }
     }
 
     private fun isTreeCellPositionInsideTree(x: Int, y: Int): Boolean {
         return (x >= 0 && y >= 0 && x < sizeX && y < sizeY)
     }
 
+    private fun treeCellX(x: Float) = MathUtils.floor(x / cellSize)
+
+    private fun treeCellY(y: Float) = MathUtils.floor(y / cellSize)
+
+    /** Calls [inside] with the index of each cell of the range inside of the map, and [outside] with the coordinates
+     * of each cell of the range outside of it */
+    private inline fun forEachCell(minX: Int, minY: Int, maxX: Int, maxY: Int,
+                                   inside: (Int) -> Unit, outside: (Int, Int) -> Unit) {
+        for (y in Math.max(0, minY)..Math.min(sizeY - 1, maxY)) {
+            for (x in Math.max(0, minX)..Math.min(sizeX - 1, maxX)) {
+                inside(x + y * sizeX)
+            }
+        }
+
+        if (rangeReachesOutside(minX, minY, maxX, maxY))
+            forEachOutsideCell(minX, minY, maxX, maxY, outside)
+    }
+
+    /** Like [forEachCell], but skips the cells that are also inside the range [exMinX]-[exMaxY] */
+    private inline fun forEachCellNotIn(minX: Int, minY: Int, maxX: Int, maxY: Int,
+                                        exMinX: Int, exMinY: Int, exMaxX: Int, exMaxY: Int,
+                                        inside: (Int) -> Unit, outside: (Int, Int) -> Unit) {
+        for (y in Math.max(0, minY)..Math.min(sizeY - 1, maxY)) {
+            val rowExcluded = y >= exMinY && y <= exMaxY
+            for (x in Math.max(0, minX)..Math.min(sizeX - 1, maxX)) {
+                if (rowExcluded && x >= exMinX && x <= exMaxX) continue
+                inside(x + y * sizeX)
+            }
+        }
+
+        if (rangeReachesOutside(minX, minY, maxX, maxY)) {
+            forEachOutsideCell(minX, minY, maxX, maxY) { x, y ->
+                if (y < exMinY || y > exMaxY || x < exMinX || x > exMaxX) outside(x, y)
+            }
+        }
+    }
+
+    /** Calls the action with the coordinates of each cell of the range outside of the map */
+    private inline fun forEachOutsideCell(minX: Int, minY: Int, maxX: Int, maxY: Int, action: (Int, Int) -> Unit) {
+        for (y in minY..maxY) {
+            if (y < 0 || y >= sizeY) {
+                for (x in minX..maxX) action(x, y)
+            } else {
+                for (x in minX..Math.min(-1, maxX)) action(x, y)
+                for (x in Math.max(sizeX, minX)..maxX) action(x, y)
+            }
+        }
+    }
+
+    private fun rangeReachesOutside(minX: Int, minY: Int, maxX: Int, maxY: Int): Boolean {
+        return minX < 0 || minY < 0 || maxX >= sizeX || maxY >= sizeY
+    }
+
+    private fun outsideCellCount(minX: Int, minY: Int, maxX: Int, maxY: Int): Long {
+        val insideWidth = Math.max(0, Math.min(sizeX - 1, maxX) - Math.max(0, minX) + 1)
+        val insideHeight = Math.max(0, Math.min(sizeY - 1, maxY) - Math.max(0, minY) + 1)
+        return (maxX - minX + 1).toLong() * (maxY - minY + 1) - insideWidth.toLong() * insideHeight
+    }
+
     /**
      * Returns list of Entities surrounding input Rectangle, based on input maxDistance
      *
@@ -87,22 +155,29 @@ class CollisionTree(val cellSize: Int, mapSizeX: Int, mapSizeY: Int, private val
      * the (possibly) closest ones. Also being allowed to specify the maximum distance, the array is limited in size
      *
      * Warning: Don't keep references to the returned Array, as it is reused in this object
+     *
+     * @see nearest for an exact search
      */
-    @JvmOverloads fun getClosestEntities(rectangle: Rectangle, maxDistance: Int, boundingBoxName: String = "default"): GdxArray<Entity> {
+    override fun getClosestEntities(rectangle: Rectangle, maxDistance: Int, layer: BoundingBoxLayer): GdxArray<Entity> {
         // get tiled position
-        dummyGridPoint2.set(MathUtils.floor(rectangle.x), MathUtils.floor(rectangle.x))
-        getTreeCellCoordsFromMapCellCoords(dummyGridPoint2)
-        val startingCell = getTreeCellFromTreeCellCoords(dummyGridPoint2.x, dummyGridPoint2.y)
+        val startX = treeCellX(rectangle.x)
+        val startY = treeCellY(rectangle.y)
 
         var exit = false
         var count = 0
-        val entities = dummyEntityArray
+        val entities = closestEntities
         entities.clear()
 
         // input rectangle is outside
-        if (startingCell == outsideCell) return entities
+        if (!isTreeCellPositionInsideTree(startX, startY)) return entities
+        val cells = layerCellsOrNull(layer) ?: return entities
+
+        if (closestStamp == Int.MAX_VALUE) {
+            Arrays.fill(boxStamp, 0)
+            closestStamp = 0
+        }
+        val stamp = ++closestStamp
 
-        val position = dummyGridPoint1
         var x = 0
         var y = 0
         var amount = 1
@@ -111,12 +186,13 @@ class CollisionTree(val cellSize: Int, mapSizeX: Int, mapSizeY: Int, private val
 
         // spiral loop around the start cell
         while (true) {
-            position.set(startingCell.position.x + x, startingCell.position.y + y)
+            val positionX = startX + x
+            val positionY = startY + y
 
             // stop when you checked all cells
             if (count == cellNumber) {
                 exit = true
-            } else if (isTreeCellPositionInsideTree(position.x, position.y)) {
+            } else if (isTreeCellPositionInsideTree(positionX, positionY)) {
                 count++
 
                 // stop when the outer ring of cells is farther that the maxDistance
@@ -125,9 +201,13 @@ class CollisionTree(val cellSize: Int, mapSizeX: Int, mapSizeY: Int, private val
                 if ((cycle - 1) * cellSize > maxDistance && cycle != 0)
                     exit = true
 
-                for (bb in treeCells[position.x][position.y].boundingBoxes) {
-                    if (bb.name.equals(boundingBoxName)) {
-                        entities.add(bb.entity)
+                val cell = positionX + positionY * sizeX
+                val bucket = cells.boxes[cell]
+                for (i in 0 until cells.count[cell]) {
+                    val id = bucket[i]
+                    if (boxStamp[id] != stamp) {
+                        boxStamp[id] = stamp
+                        entities.add(boxes[id]!!.entity)
                     }
                 }
             }
@@ -154,233 +234,116 @@ class CollisionTree(val cellSize: Int, mapSizeX: Int, mapSizeY: Int, private val
         }
     }
 
-    /** Searches possible colliding Entities with bounding boxes with the name. Ignores entities without a bounding box with that name.
-     * Don't keep references to the returned Array, as it is reused in this object
-     *
-     * Includes Entities outside of the map (if the input rectangle is outside of the map) */
-    @JvmOverloads fun getPossibleCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, boundingBoxesName: String = "default",
-                                     filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
-    {
-        if (includeDynamicEntities)
-            updateDynamicEntitiesThatMoved()
-
-        val entities = dummyEntityArray
-        val entities2 = dummyEntityArray2
-
-        entities.clear(); entities2.clear()
-
-        getEntitiesFromTreeCellsOccupiedByRectangle(rectangle, boundingBoxesName, entities2, !includeDynamicEntities, false)
-
-        for (ent in entities2) if (filter(ent)) entities.add(ent)
-
-        return entities
-    }
-
-    private val dummyRectangle = Rectangle()
-
-    /** Not really exact, point is replicated with a rectangle of size 1x1 pixels; point being the origin */
-    @JvmOverloads fun getPossibleCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, boundingBoxesName: String = "default",
-                                     filter: (Entity) -> Boolean = {true}): GdxArray<Entity> {
-        dummyRectangle.set(x, y, 1f / Engine.PPM, 1f / Engine.PPM)
-        return getPossibleCollidingEntities(dummyRectangle, includeDynamicEntities, boundingBoxesName, filter)
-    }
-
-    @JvmOverloads fun getPossibleCollidingEntities(point: Vector2, includeDynamicEntities: Boolean, boundingBoxesName: String = "default",
-                                     filter: (Entity) -> Boolean = {true})
-            : GdxArray<Entity> {
-        return getPossibleCollidingEntities(point.x, point.y, includeDynamicEntities, boundingBoxesName, filter)
+    /** Whether the cell is the first one of the query range occupied by the id; the only one it is reported from */
+    private fun isFirstCellOfQuery(id: Int, x: Int, y: Int, minX: Int, minY: Int): Boolean {
+        return x == Math.max(minX, boxMinX[id]) && y == Math.max(minY, boxMinY[id])
     }
 
-    private val collEntitiesArray = GdxArray<Entity>()
-
-    @JvmOverloads fun getCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, boundingBoxesName: String = "default",
-                             filter: (Entity) -> Boolean = {true}): GdxArray<Entity> {
-        collEntitiesArray.clear()
-        for (ent in getPossibleCollidingEntities(rectangle, includeDynamicEntities, boundingBoxesName, filter)) {
-            if (rectangle.overlaps(ent.getBoundingBox(boundingBoxesName))) {
-                collEntitiesArray.add(ent)
+    override fun queryBoxes(x: Float, y: Float, width: Float, height: Float, layer: BoundingBoxLayer,
+                            excludeDynamicEntities: Boolean, excludeStaticEntities: Boolean,
+                            entityArrayToPopulate: GdxArray<Entity>) {
+        val cells = layerCellsOrNull(layer) ?: return
+
+        val area = width * height
+        val minX = treeCellX(x)
+        val minY = treeCellY(y)
+        val maxX = treeCellX(x + width)
+        val maxY = treeCellY(y + height)
+
+        for (cellY in Math.max(0, minY)..Math.min(sizeY - 1, maxY)) {
+            for (cellX in Math.max(0, minX)..Math.min(sizeX - 1, maxX)) {
+                val cell = cellX + cellY * sizeX
+                val bucket = cells.boxes[cell]
+                for (i in 0 until cells.count[cell]) {
+                    val id = bucket[i]
+                    if (!isFirstCellOfQuery(id, cellX, cellY, minX, minY)) continue
+                    reportBox(id, area, excludeDynamicEntities, excludeStaticEntities, entityArrayToPopulate)
+                }
             }
         }
-        return collEntitiesArray
-    }
 
-    @JvmOverloads fun getCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, boundingBoxesName: String = "default",
-                             filter: (Entity) -> Boolean = {true}): GdxArray<Entity> {
-        collEntitiesArray.clear()
-        for (ent in getPossibleCollidingEntities(x, y, includeDynamicEntities, boundingBoxesName, filter)) {
-            if (ent.getBoundingBox(boundingBoxesName).contains(x, y)) {
-                collEntitiesArray.add(ent)
+        val outside = cells.outside
+        if (outside == null || outside.size == 0 || !rangeReachesOutside(minX, minY, maxX, maxY)) return
+
+        // big ranges outside of the map: cheaper to check the cells with BBs
+        if (outsideCellCount(minX, minY, maxX, maxY) > outside.size) {
+            for (b in 0 until outside.size) {
+                val bucket = outside.bucketAt(b)
+                val cellX = SparseCells.keyX(bucket.key)
+                val cellY = SparseCells.keyY(bucket.key)
+                if (cellX < minX || cellX > maxX || cellY < minY || cellY > maxY) continue
+
+                for (i in 0 until bucket.size) {
+                    val id = bucket.ids[i]
+                    if (!isFirstCellOfQuery(id, cellX, cellY, minX, minY)) continue
+                    reportBox(id, area, excludeDynamicEntities, excludeStaticEntities, entityArrayToPopulate)
+                }
             }
-        }
-
-        return collEntitiesArray
-    }
-
-    @JvmOverloads fun getCollidingEntities(point: Vector2, includeDynamicEntities: Boolean, boundingBoxesName: String = "default",
-                             filter: (Entity) -> Boolean = {true}): GdxArray<Entity> {
-        return getCollidingEntities(point.x, point.y, includeDynamicEntities, boundingBoxesName, filter)
-    }
-
-    /** Searches Entities by specific bounding box with a name
-     * @param boundingBoxName The name of the bounding boxes to search for. Entities without a BB with this name are ignored */
-    private fun getEntitiesFromTreeCellsOccupiedByRectangle(rectangle: Rectangle, boundingBoxName: String = "default",
-                                                    entityArrayToPopulate: GdxArray<Entity>,
-                                                    excludeDynamicEntities: Boolean, excludeStaticEntities: Boolean)
-    {
-        for (treeCell in getTreeCellsOverlappedByRectangle(rectangle)) {
-            for (bb in treeCell.boundingBoxes) {
-                if (bb.name != boundingBoxName) continue
-                if ((excludeDynamicEntities && !bb.isStatic) || (excludeStaticEntities && bb.isStatic))
-                    continue
-
-                if (entityArrayToPopulate.contains(bb.entity, true)) continue
-                entityArrayToPopulate.add(bb.entity)
-
-                // try to ignore camera checks for debug purposes
-                if (Engine.DEBUG_COLLISION_TREE_UPDATES && rectangle.area() < 12) {
-                    bb.entity.debugFlashingRect.flashColor(Color.RED, 0.3f)
+        } else {
+            forEachOutsideCell(minX, minY, maxX, maxY) { cellX, cellY ->
+                val bucket = outside.get(cellX, cellY)
+                if (bucket != null) {
+                    for (i in 0 until bucket.size) {
+                        val id = bucket.ids[i]
+                        if (!isFirstCellOfQuery(id, cellX, cellY, minX, minY)) continue
+                        reportBox(id, area, excludeDynamicEntities, excludeStaticEntities, entityArrayToPopulate)
+                    }
                 }
             }
         }
     }
 
-    fun addDynamicEntityThatMoved(entity: Entity) {
-        dynamicEntitiesThatMoved.add(entity)
-    }
-
-    /**
-     * Use to update dynamic entities that moved, to get correct collision information as Dynamic Entities can move anytime
-     */
-    private fun updateDynamicEntitiesThatMoved() {
-        for (entity in dynamicEntitiesThatMoved) {
-            addEntity(entity, true, true)
-            addEntity(entity, true, false)
-        }
-    }
-
-    fun resetDynamicEntities(updatedDynamicEntityList: GdxArray<Entity>) {
-        val itr = addedDynamicEntities.iterator()
-        while (itr.hasNext()) {
-            val entity = itr.next()
-            if (!entity.hasMoved() && (entity.isAddedToMap && !entity.isKilled)) continue
-
-            entity.resetHasMoved()
-            addEntity(entity, true, true)
-            itr.remove()
-        }
-
-        for (ent in updatedDynamicEntityList) {
-            if (ent.hasMoved() || !addedDynamicEntities.contains(ent, true)) {
-                addEntity(ent, true, false)
-                addedDynamicEntities.add(ent)
-            }
-        }
+    /** Saves the range of cells the rectangle occupies and adds the id to all of them */
+    override fun insertBox(id: Int, rectangle: Rectangle) {
+        boxMinX[id] = treeCellX(rectangle.x)
+        boxMinY[id] = treeCellY(rectangle.y)
+        boxMaxX[id] = treeCellX(rectangle.x + rectangle.width)
+        boxMaxY[id] = treeCellY(rectangle.y + rectangle.height)
 
-        dynamicEntitiesThatMoved.clear()
+        val cells = layerCells(boxes[id]!!.layer)
+        forEachCell(boxMinX[id], boxMinY[id], boxMaxX[id], boxMaxY[id],
+                { cells.add(it, id) }, { x, y -> cells.outsideCells().add(x, y, id) })
     }
 
-    private fun addEntity(ent: Entity, isDynamic: Boolean, remove: Boolean) {
-        dummyTreeCellArray.clear()
-
-        if (isDynamic && remove) {
-            removeDynamicEnt(ent)
+    /** Removes the id only from the cells it left and adds it only to the cells it entered */
+    override fun moveBox(id: Int, rectangle: Rectangle) {
+        if (!diffCellRanges) {
+            removeBox(id)
+            insertBox(id, rectangle)
             return
         }
 
-        // find out which cells the Entity occupies
-        for (boundingBox in ent.boundingBoxes.values()) {
-            val cells = getTreeCellsOverlappedByRectangle(boundingBox.rect)
-            for (treeCell in cells) {
-                if (remove) {
-                    treeCell.boundingBoxes.removeValue(boundingBox, true)
-                } else {
-                    treeCell.boundingBoxes.add(boundingBox)
-                }
-            }
-
-            // only happens on add
-            if (isDynamic) {
-                addDynamicEntBB(cells, boundingBox)
-            }
-        }
-    }
-
-    private fun removeDynamicEnt(ent: Entity) {
-        for (boundingBox in ent.boundingBoxes.values()) {
-            // todo: make sure that commenting this apparently not needed line didn't break the collision tree :D
-            //if (!dynamicBBsPosition.containsKey(boundingBox)) continue
-            val bbCells = dynamicBBsPosition.get(boundingBox)
-            for (cell in bbCells!!) {
-                cell.boundingBoxes.removeValue(boundingBox, true)
-            }
-
-            collisionTreePool.free(bbCells)
-            dynamicBBsPosition.remove(boundingBox)
-        }
-    }
-
-    private fun addDynamicEntBB(cells: GdxArray<CollisionTreeCell>, boundingBox: BoundingBox) {
-        val newArray = collisionTreePool.obtain()
-        newArray.clear()
-        newArray.addAll(cells)
-        dynamicBBsPosition.put(boundingBox, newArray)
-    }
-
-    /**
-     * Don't keep references to the returned Array nor its contents, as they are reused in this object
-     *
-     * @param rectangle Positioned and sized in game map units
-     */
-    private fun getTreeCellsOverlappedByRectangle(rectangle: Rectangle): GdxArray<CollisionTreeCell> {
-        val returnedCells = dummyTreeCellSet
-        returnedCells.clear()
-
-        if (rectangle.width < 0 || rectangle.height < 0)
-            printDebug("Collision checking with a Rectangle with negative height or width. This will yield wrong results.\n" +
-                    "Use Rectangle's extension function 'fixNegatives()'")
-
-        rectangleOrigin.set(rectangle.x.toInt(), rectangle.y.toInt())
-        rectangleEnd.set(((rectangle.x + rectangle.width).toInt()), ((rectangle.y + rectangle.height).toInt()))
+        val minX = treeCellX(rectangle.x)
+        val minY = treeCellY(rectangle.y)
+        val maxX = treeCellX(rectangle.x + rectangle.width)
+        val maxY = treeCellY(rectangle.y + rectangle.height)
 
-        val cell1 = getTreeCellCoordsFromMapCellCoords(rectangleOrigin)
-        val cell2 = getTreeCellCoordsFromMapCellCoords(rectangleEnd)
-
-        for (x in cell1.x..cell2.x) {
-            for (y in cell1.y..cell2.y) {
-                returnedCells.add(getTreeCellFromTreeCellCoords(x, y))
-            }
-        }
-
-        return returnedCells
-    }
+        val oldMinX = boxMinX[id]
+        val oldMinY = boxMinY[id]
+        val oldMaxX = boxMaxX[id]
+        val oldMaxY = boxMaxY[id]
 
-    /**
-     * Modifies input vector
-     */
-    private fun getTreeCellCoordsFromMapCellCoords(mapCellCoords: GridPoint2): GridPoint2 {
-        // outside coords are all transformed to -1, -1 or sizeX, sizeY (first outside coordinate on all sides)
-        // this avoids unnecessary loops if looping over all range of coords
-        return mapCellCoords.set(Math.min(Math.max(-1f, (mapCellCoords.x / cellSize.toFloat())), sizeX.toFloat()).toInt(),
-                Math.min(Math.max(-1f, (mapCellCoords.y / cellSize.toFloat())), sizeY.toFloat()).toInt())
-    }
+        if (minX == oldMinX && minY == oldMinY && maxX == oldMaxX && maxY == oldMaxY) return
 
-    private fun getTreeCellFromTreeCellCoords(treeCellX: Int, treeCellY: Int): CollisionTreeCell {
-        if (isTreeCellPositionInsideTree(treeCellX, treeCellY)) {
-            return treeCells[treeCellX][treeCellY]
-        } else {
-            return outsideCell
-        }
-    }
+        val cells = layerCells(boxes[id]!!.layer)
+        forEachCellNotIn(oldMinX, oldMinY, oldMaxX, oldMaxY, minX, minY, maxX, maxY,
+                { cells.remove(it, id) }, { x, y -> cells.outsideCells().remove(x, y, id) })
+        forEachCellNotIn(minX, minY, maxX, maxY, oldMinX, oldMinY, oldMaxX, oldMaxY,
+                { cells.add(it, id) }, { x, y -> cells.outsideCells().add(x, y, id) })
 
-    fun addStaticEntity(ent: Entity) {
-        addEntity(ent, false, false)
+        boxMinX[id] = minX
+        boxMinY[id] = minY
+        boxMaxX[id] = maxX
+        boxMaxY[id] = maxY
     }
 
-    fun removeStaticEntity(ent: Entity) {
-        addEntity(ent, false, true)
+    override fun removeBox(id: Int) {
+        val cells = layerCells(boxes[id]!!.layer)
+        forEachCell(boxMinX[id], boxMinY[id], boxMaxX[id], boxMaxY[id],
+                { cells.remove(it, id) }, { x, y -> cells.outsideCells().remove(x, y, id) })
     }
 
-    fun debugDrawCellBounds(gameDrawer: GameDrawer) {
+    override fun debugDrawCellBounds(gameDrawer: GameDrawer) {
         gameDrawer.color = Color.RED
         gameDrawer.alpha = 0.3f
 
@@ -395,13 +358,42 @@ class CollisionTree(val cellSize: Int, mapSizeX: Int, mapSizeY: Int, private val
         gameDrawer.resetAlpha()
     }
 
-    class CollisionTreeCell(val position: GridPoint2, val isOutside: Boolean) {
-        val boundingBoxes = GdxArray<BoundingBox>()
-    }
+    /** Ids of the BBs of one layer inside each cell; only the first [count] ids of each bucket are valid.
+     * Cells outside of the map are in [outside], created when first needed */
+    private class LayerCells(cellCount: Int) {
+        val boxes = Array(cellCount) { emptyBucket }
+        val count = IntArray(cellCount)
+        var outside: SparseCells? = null
+
+        fun outsideCells() = outside ?: SparseCells().also { outside = it }
+
+        fun add(cell: Int, id: Int) {
+            var bucket = boxes[cell]
+            val size = count[cell]
+            if (size == bucket.size) {
+                bucket = Arrays.copyOf(bucket, Math.max(4, size * 2))
+                boxes[cell] = bucket
+            }
 
-    private class CollisionTreePool : Pool<GdxArray<CollisionTreeCell>>(10) {
-        override fun newObject(): GdxArray<CollisionTreeCell> {
-            return GdxArray<CollisionTreeCell>()
+            bucket[size] = id
+            count[cell] = size + 1
         }
+
+        /** Order inside the bucket isn't kept: last id is swapped into the removed position */
+        fun remove(cell: Int, id: Int) {
+            val bucket = boxes[cell]
+            val last = count[cell] - 1
+            for (i in 0..last) {
+                if (bucket[i] == id) {
+                    bucket[i] = bucket[last]
+                    count[cell] = last
+                    return
+                }
+            }
+        }
+    }
+
+    private companion object {
+        val emptyBucket = IntArray(0)
     }
 }
@@ -0,0 +1,275 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.graphics.Color
+import com.badlogic.gdx.utils.IntArray as GdxIntArray
+import com.dcostap.Engine
+import ktx.collections.GdxArray
+
+/**
+ * Tells whether two cells of the map are connected by cells that aren't solid, anywhere on the map, so pathfinding can
+ * give up early on unreachable goals. Kept by the map as [EntityTiledMap.connectivity].
+ *
+ * The map is split in square regions of [EntityTiledMap.floodRegionSize] cells. Inside each region, cells that aren't
+ * solid are grouped by flood fill into nodes, connected through their sides. Nodes are joined by edges where they touch
+ * other nodes, in other regions or, only by a corner, in the same one: edges only touching by corners are marked as
+ * diagonal. The components of that graph are the components of the whole map.
+ *
+ * When a cell changes solid state only its region is flood filled again, and its edges found again; this is done on the
+ * map's update or on the next query. The components of the graph are then found again, but the graph is much smaller
+ * than the map. Queries are just comparing the components of both cells.
+ *
+ * There are two kinds of components: moving only through the sides of cells, like [com.dcostap.engine.utils.Pathfinder]
+ * does without diagonals (it doesn't cut corners), and also through corners, like it does with diagonals.
+ */
+class ConnectivityIndex(val map: EntityTiledMap) {
+    private var regionSize = 0
+    private var regionsX = 0
+    private var regionsY = 0
+
+    /** Node of each cell, by [EntityTiledMap.cellIndex]; -1 when solid */
+    private var cellNodes = IntArray(0)
+
+    /** Nodes of each region */
+    private var regionNodes = kotlin.Array(0) { GdxIntArray() }
+
+    /** Edges of each node: the other node shifted 1 bit left, with the lowest bit set if it only touches by a corner */
+    private val nodeEdges = GdxArray<GdxIntArray>()
+    private val freeNodes = GdxIntArray()
+
+    private var sideComponents = IntArray(0)
+    private var cornerComponents = IntArray(0)
+
+    private var needsFullBuild = true
+    private var componentsDirty = true
+    private val dirtyRegions = GdxIntArray()
+    private var isRegionDirty = BooleanArray(0)
+
+    private val stack = GdxIntArray()
+
+    /** Whether it is up to date; no query is done on the map until then */
+    val isBuilt get() = !needsFullBuild && dirtyRegions.size == 0 && !componentsDirty
+
+    /** Called by the map when the cell changed solid state */
+    fun onSolidChanged(x: Int, y: Int) {
+        if (needsFullBuild) return
+
+        val region = regionOf(x, y)
+        if (isRegionDirty[region]) return
+        isRegionDirty[region] = true
+        dirtyRegions.add(region)
+    }
+
+    /** Everything will be found again on the next update or query. Done when [EntityTiledMap.floodRegionSize] changes */
+    fun invalidateAll() {
+        needsFullBuild = true
+    }
+
+    /** Brings the index up to date. Called on the map's update */
+    fun update() {
+        if (isBuilt) return
+        if (needsFullBuild) build()
+
+        for (i in 0 until dirtyRegions.size) {
+            val region = dirtyRegions[i]
+            isRegionDirty[region] = false
+            labelRegion(region)
+        }
+
+        dirtyRegions.clear()
+
+        if (componentsDirty) findComponents()
+    }
+
+    /**
+     * @param throughCorners whether moving diagonally between two cells is allowed even if the cells beside are solid
+     * @return the component of the cell, -1 if it is solid. Cells in different components can't reach each other
+     */
+    fun getComponent(x: Int, y: Int, throughCorners: Boolean = false): Int {
+        update()
+        val node = cellNodes[map.cellIndex(x, y)]
+        if (node == -1) return -1
+        return if (throughCorners) cornerComponents[node] else sideComponents[node]
+    }
+
+    /** @return false if both cells aren't solid and can't reach each other. When any of them is solid, true */
+    fun areConnected(cell: MapCell, otherCell: MapCell, throughCorners: Boolean = false): Boolean {
+        val component = getComponent(cell.x, cell.y, throughCorners)
+        val otherComponent = getComponent(otherCell.x, otherCell.y, throughCorners)
+        return component == -1 || otherComponent == -1 || component == otherComponent
+    }
+
+    /** Region the cell belongs to */
+    fun regionOf(x: Int, y: Int) = x / regionSize + (y / regionSize) * regionsX
+
+    private fun build() {
+        needsFullBuild = false
+
+        regionSize = Math.max(1, map.floodRegionSize)
+        regionsX = (map.width + regionSize - 1) / regionSize
+        regionsY = (map.height + regionSize - 1) / regionSize
+
+        cellNodes = IntArray(map.width * map.height) { -1 }
+        regionNodes = kotlin.Array(regionsX * regionsY) { GdxIntArray() }
+        isRegionDirty = BooleanArray(regionsX * regionsY)
+        dirtyRegions.clear()
+
+        nodeEdges.clear()
+        freeNodes.clear()
+
+        for (region in 0 until regionsX * regionsY) labelRegion(region)
+    }
+
+    /** Floods the cells of the region again, replacing its nodes and their edges */
+    private fun labelRegion(region: Int) {
+        componentsDirty = true
+
+        val nodes = regionNodes[region]
+        for (i in 0 until nodes.size) removeNode(nodes[i])
+        nodes.clear()
+
+        val startX = (region % regionsX) * regionSize
+        val startY = (region / regionsX) * regionSize
+        val endX = Math.min(map.width, startX + regionSize)
+        val endY = Math.min(map.height, startY + regionSize)
+
+        for (yy in startY until endY) {
+            for (xx in startX until endX) cellNodes[map.cellIndex(xx, yy)] = -1
+        }
+
+        for (yy in startY until endY) {
+            for (xx in startX until endX) {
+                val index = map.cellIndex(xx, yy)
+                if (cellNodes[index] != -1 || map.isSolid(xx, yy)) continue
+
+                val node = newNode()
+                nodes.add(node)
+                cellNodes[index] = node
+                stack.add(index)
+
+                while (stack.size > 0) {
+                    val current = stack.pop()
+                    val x = current % map.width
+                    val y = current / map.width
+
+                    if (Engine.DEBUG_CELL_FLOOD_FILL)
+                        map.getMapCellAt(current).debugFlashingRect.flashColor(Color.RED, 0.4f)
+
+                    if (x > startX) flood(x - 1, y, node)
+                    if (x < endX - 1) flood(x + 1, y, node)
+                    if (y > startY) flood(x, y - 1, node)
+                    if (y < endY - 1) flood(x, y + 1, node)
+                }
+            }
+        }
+
+        // edges with the nodes around each cell; cells of other regions not yet flooded have no node, and will add
+        // the edge when they are
+        for (yy in startY until endY) {
+            for (xx in startX until endX) {
+                val node = cellNodes[map.cellIndex(xx, yy)]
+                if (node == -1) continue
+
+                for (offsetY in -1..1) {
+                    for (offsetX in -1..1) {
+                        if (offsetX == 0 && offsetY == 0) continue
+                        val x = xx + offsetX
+                        val y = yy + offsetY
+                        if (!map.isInsideMap(x, y) || map.isSolid(x, y)) continue
+
+                        val other = cellNodes[map.cellIndex(x, y)]
+                        if (other == -1 || other == node) continue
+
+                        val throughCorner = offsetX != 0 && offsetY != 0
+                        addEdge(node, other, throughCorner)
+                        addEdge(other, node, throughCorner)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun flood(x: Int, y: Int, node: Int) {
+        val index = map.cellIndex(x, y)
+        if (cellNodes[index] != -1 || map.isSolid(x, y)) return
+        cellNodes[index] = node
+        stack.add(index)
+    }
+
+    private fun newNode(): Int {
+        if (freeNodes.size > 0) return freeNodes.pop()
+        nodeEdges.add(GdxIntArray(4))
+        return nodeEdges.size - 1
+    }
+
+    /** Frees the node, removing its edges from the nodes it touched */
+    private fun removeNode(node: Int) {
+        val edges = nodeEdges[node]
+        for (i in 0 until edges.size) {
+            val otherEdges = nodeEdges[edges[i] ushr 1]
+            for (j in 0 until otherEdges.size) {
+                if (otherEdges[j] ushr 1 == node) {
+                    otherEdges.removeIndex(j)
+                    break
+                }
+            }
+        }
+
+        edges.clear()
+        freeNodes.add(node)
+    }
+
+    /** Adds the edge if missing; an edge through the side replaces one through a corner */
+    private fun addEdge(node: Int, other: Int, throughCorner: Boolean) {
+        val edges = nodeEdges[node]
+        val edge = (other shl 1) or (if (throughCorner) 1 else 0)
+        for (i in 0 until edges.size) {
+            if (edges[i] ushr 1 == other) {
+                if (!throughCorner) edges[i] = edge
+                return
+            }
+        }
+
+        edges.add(edge)
+    }
+
+    private fun findComponents() {
+        componentsDirty = false
+
+        if (sideComponents.size < nodeEdges.size) {
+            sideComponents = IntArray(nodeEdges.size * 2)
+            cornerComponents = IntArray(nodeEdges.size * 2)
+        }
+
+        findComponents(sideComponents, false)
+        findComponents(cornerComponents, true)
+    }
+
+    private fun findComponents(components: IntArray, throughCorners: Boolean) {
+        java.util.Arrays.fill(components, -1)
+        var component = 0
+
+        for (region in regionNodes) {
+            for (i in 0 until region.size) {
+                val start = region[i]
+                if (components[start] != -1) continue
+
+                components[start] = component
+                stack.add(start)
+                while (stack.size > 0) {
+                    val edges = nodeEdges[stack.pop()]
+                    for (e in 0 until edges.size) {
+                        val edge = edges[e]
+                        if (!throughCorners && edge and 1 != 0) continue
+
+                        val other = edge ushr 1
+                        if (components[other] != -1) continue
+                        components[other] = component
+                        stack.add(other)
+                    }
+                }
+
+                component++
+            }
+        }
+    }
+}
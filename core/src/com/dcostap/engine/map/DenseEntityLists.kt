@@ -0,0 +1,35 @@
+package com.dcostap.engine.map
+
+import com.dcostap.engine.map.entities.Entity
+import ktx.collections.GdxArray
+
+/*
+ * Arrays of Entities where each Entity knows its position, so removing one is a swap with the last one instead of
+ * searching it. The position of the Entity in each list is kept on an IntArray of the Entity, on a slot for that list.
+ * Removing changes the order of the list.
+ */
+
+internal inline fun GdxArray<Entity>.denseAdd(ent: Entity, slot: Int, positions: (Entity) -> IntArray) {
+    positions(ent)[slot] = size
+    add(ent)
+}
+
+/** @return false if the Entity wasn't in the list */
+internal inline fun GdxArray<Entity>.denseRemove(ent: Entity, slot: Int, positions: (Entity) -> IntArray): Boolean {
+    val i = positions(ent)[slot]
+    if (i < 0 || i >= size || this[i] !== ent) return false
+
+    val last = pop()
+    if (last !== ent) {
+        this[i] = last
+        positions(last)[slot] = i
+    }
+
+    positions(ent)[slot] = -1
+    return true
+}
+
+internal inline fun GdxArray<Entity>.denseContains(ent: Entity, slot: Int, positions: (Entity) -> IntArray): Boolean {
+    val i = positions(ent)[slot]
+    return i >= 0 && i < size && this[i] === ent
+}
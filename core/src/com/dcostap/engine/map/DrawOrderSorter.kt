@@ -0,0 +1,249 @@
+package com.dcostap.engine.map
+
+import com.dcostap.engine.map.entities.Entity
+import ktx.collections.GdxArray
+import java.util.*
+
+/**
+ * Sorts what [EntityTiledMap] draws each frame in the same order as [ComparatorByDepthAndYPosition], without a
+ * comparator and without allocating.
+ *
+ * Each drawable gets a 64-bit key packing its depth, y and yDepth (see [drawOrderKey]), so each comparison is one
+ * comparison of longs. Then:
+ * - Tiles come by rows from the top, so tiles of the same depth already come sorted. They are split by depth and
+ * the groups are joined by depth, with no sorting.
+ * - The rest (Entities and others) start in the order Entities had the last frame, followed by the new ones. That is
+ * nearly sorted most frames, so an insertion sort is used; if it finds too much disorder, a radix sort is used instead.
+ * - Both lists are merged, tiles first when keys are equal.
+ *
+ * Depth is clamped to 15 bits and yDepth to 16 bits (see [drawOrderKey]).
+ */
+internal class DrawOrderSorter {
+    // tiles of each depth, in order of arrival
+    private val tileDepths = GdxArray<TileGroup>()
+    private val tileGroupPool = GdxArray<TileGroup>()
+
+    private class TileGroup {
+        var key = 0L
+        val tiles = GdxArray<DrawableSortable>()
+        var lastKey = Long.MIN_VALUE
+    }
+
+    private var keys = LongArray(64)
+    private var items = arrayOfNulls<DrawableSortable>(64)
+    private var count = 0
+
+    private var tempKeys = LongArray(64)
+    private var tempItems = arrayOfNulls<DrawableSortable>(64)
+
+    /** Entities sorted the last frame */
+    private val previousOrder = GdxArray<Entity>()
+    private var frame = 0L
+
+    /**
+     * Sorts [drawables] in place
+     * @param tileCount the first drawables are tiles, added cell by cell from the top row to the bottom one, and
+     * from left to right in each row. Tiles not following that order are sorted as the rest.
+     */
+    fun sort(drawables: GdxArray<DrawableSortable>, tileCount: Int) {
+        frame++
+        count = 0
+        ensureCapacity(drawables.size)
+
+        for (i in 0 until tileCount) addTile(drawables[i])
+        addPreviouslySorted(drawables, tileCount)
+        for (i in tileCount until drawables.size) {
+            val drawable = drawables[i]
+            if (drawable is Entity && drawable.drawOrderSorter === this && drawable.drawOrderFrame == frame) continue
+            add(drawable)
+        }
+
+        if (!insertionSort()) radixSort()
+
+        previousOrder.clear()
+        for (i in 0 until count) {
+            val item = items[i]
+            if (item is Entity) previousOrder.add(item)
+        }
+
+        merge(drawables)
+    }
+
+    private fun addTile(tile: DrawableSortable) {
+        val key = drawOrderKey(tile)
+        val group = getTileGroup(key ushr DEPTH_SHIFT)
+        if (key < group.lastKey) {
+            add(tile, key)
+            return
+        }
+
+        group.lastKey = key
+        group.tiles.add(tile)
+    }
+
+    private fun getTileGroup(depthKey: Long): TileGroup {
+        for (i in tileDepths.size - 1 downTo 0) {
+            if (tileDepths[i].key == depthKey) return tileDepths[i]
+        }
+
+        val group = if (tileGroupPool.size > 0) tileGroupPool.pop() else TileGroup()
+        group.key = depthKey
+        group.lastKey = Long.MIN_VALUE
+        tileDepths.add(group)
+        return group
+    }
+
+    /** Adds the Entities of the last frame that are also drawn this one, in the order they had */
+    private fun addPreviouslySorted(drawables: GdxArray<DrawableSortable>, tileCount: Int) {
+        for (i in tileCount until drawables.size) {
+            val drawable = drawables[i] as? Entity ?: continue
+            if (drawable.drawOrderSorter === this && drawable.drawOrderFrame == frame - 1)
+                drawable.drawOrderFrame = frame
+        }
+
+        for (i in 0 until previousOrder.size) {
+            val ent = previousOrder[i]
+            if (ent.drawOrderFrame == frame) add(ent)
+        }
+    }
+
+    private fun add(drawable: DrawableSortable, key: Long = drawOrderKey(drawable)) {
+        if (drawable is Entity) {
+            drawable.drawOrderSorter = this
+            drawable.drawOrderFrame = frame
+        }
+
+        keys[count] = key
+        items[count] = drawable
+        count++
+    }
+
+    /** @return false if it gave up because too many moves were needed; items stay in some order then */
+    private fun insertionSort(): Boolean {
+        var movesLeft = count * 4L + 64
+
+        for (i in 1 until count) {
+            val key = keys[i]
+            if (keys[i - 1] <= key) continue
+
+            val item = items[i]
+            var j = i - 1
+            while (j >= 0 && keys[j] > key) {
+                keys[j + 1] = keys[j]
+                items[j + 1] = items[j]
+                j--
+            }
+
+            keys[j + 1] = key
+            items[j + 1] = item
+
+            movesLeft -= i - 1 - j
+            if (movesLeft < 0) return false
+        }
+
+        return true
+    }
+
+    /** Stable LSD radix sort of the keys, one byte at a time, skipping bytes that are the same in all keys */
+    private fun radixSort() {
+        val counts = radixCounts
+        var shift = 0
+        while (shift < 64) {
+            Arrays.fill(counts, 0)
+            for (i in 0 until count) counts[((keys[i] ushr shift) and 0xFF).toInt()]++
+
+            if (counts[((keys[0] ushr shift) and 0xFF).toInt()] != count) {
+                var sum = 0
+                for (b in 0 until 256) {
+                    val c = counts[b]
+                    counts[b] = sum
+                    sum += c
+                }
+
+                for (i in 0 until count) {
+                    val position = counts[((keys[i] ushr shift) and 0xFF).toInt()]++
+                    tempKeys[position] = keys[i]
+                    tempItems[position] = items[i]
+                }
+
+                val swapKeys = keys; keys = tempKeys; tempKeys = swapKeys
+                val swapItems = items; items = tempItems; tempItems = swapItems
+            }
+
+            shift += 8
+        }
+    }
+
+    private val radixCounts = IntArray(256)
+
+    /** Writes tiles and the sorted rest back to [drawables] */
+    private fun merge(drawables: GdxArray<DrawableSortable>) {
+        // tile groups by their depth
+        for (i in 1 until tileDepths.size) {
+            val group = tileDepths[i]
+            var j = i - 1
+            while (j >= 0 && tileDepths[j].key > group.key) {
+                tileDepths[j + 1] = tileDepths[j]
+                j--
+            }
+            tileDepths[j + 1] = group
+        }
+
+        drawables.clear()
+
+        var item = 0
+        for (g in 0 until tileDepths.size) {
+            val tiles = tileDepths[g].tiles
+            for (t in 0 until tiles.size) {
+                val tile = tiles[t]
+                val tileKey = drawOrderKey(tile)
+                while (item < count && keys[item] < tileKey) drawables.add(items[item++])
+                drawables.add(tile)
+            }
+
+            tiles.clear()
+            tileGroupPool.add(tileDepths[g])
+        }
+
+        tileDepths.clear()
+        while (item < count) drawables.add(items[item++])
+
+        Arrays.fill(items, 0, count, null)
+        Arrays.fill(tempItems, 0, count, null)
+        count = 0
+    }
+
+    private fun ensureCapacity(size: Int) {
+        if (size <= keys.size) return
+        val capacity = Math.max(size, keys.size * 2)
+        keys = LongArray(capacity)
+        items = arrayOfNulls(capacity)
+        tempKeys = LongArray(capacity)
+        tempItems = arrayOfNulls(capacity)
+    }
+
+    companion object {
+        private const val DEPTH_SHIFT = 48
+
+        /**
+         * Key of the drawable's draw order: lower keys are drawn first, like [ComparatorByDepthAndYPosition].
+         * From the highest bits: depth (15 bits, reversed), y (32 bits, reversed) and yDepth (16 bits, reversed)
+         */
+        fun drawOrderKey(drawable: DrawableSortable): Long {
+            val depth = Math.min(16383, Math.max(-16384, drawable.getDrawingRepresentativeDepth()))
+            val yDepth = Math.min(32767, Math.max(-32768, drawable.getDrawingRepresentativeYDepth()))
+
+            val depthPart = (16383 - depth).toLong()
+            val yPart = 0xFFFFFFFFL - (sortableBits(drawable.getDrawingRepresentativeY()).toLong() and 0xFFFFFFFFL)
+            val yDepthPart = (32767 - yDepth).toLong()
+
+            return (depthPart shl DEPTH_SHIFT) or (yPart shl 16) or yDepthPart
+        }
+
+        /** Bits of the float as an unsigned int with the same order */
+        private fun sortableBits(value: Float): Int {
+            val bits = java.lang.Float.floatToIntBits(value)
+            return if (bits < 0) bits.inv() else bits or Int.MIN_VALUE
+        }
+    }
+}
@@ -5,9 +5,12 @@ import com.badlogic.gdx.graphics.OrthographicCamera
 import com.badlogic.gdx.math.GridPoint2
 import com.badlogic.gdx.math.MathUtils
 import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.math.Vector2
 import com.badlogic.gdx.utils.*
 import com.badlogic.gdx.utils.Array
+import com.badlogic.gdx.utils.IntArray as GdxIntArray
 import com.dcostap.Engine
+import com.dcostap.engine.map.entities.CollidingEntity
 import com.dcostap.engine.map.entities.Entity
 import com.dcostap.engine.map.map_loading.*
 import com.dcostap.engine.utils.*
@@ -16,7 +19,8 @@ import com.dcostap.engine.utils.screens.BaseScreen
 import com.dcostap.printDebug
 import ktx.collections.*
 import java.util.*
-import kotlin.collections.HashMap
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
 
 /**
  * Created by Darius on 14/09/2017.
@@ -47,12 +51,23 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
 {
     companion object {
         const val defaultCollTreeCellSize = 15
+
+        // slots of the map's lists on Entity.mapListPositions
+        private const val ENTITY_LIST = 0
+        private const val DYNAMIC_LIST = 1
+        private const val DYNAMIC_DRAW_LIST = 2
+        private const val NO_CULLING_LIST = 3
+        /** Static Entities of each chunk of the [chunkStreamer] */
+        internal const val CHUNK_LIST = 4
+        internal const val mapListCount = 5
     }
 
     val worldViewport get() = screen.worldViewport
     private val worldCamera: OrthographicCamera = worldViewport.camera as OrthographicCamera
     val inputController: InputController get() = screen.inputController
 
+    /** All Entities added. Don't modify it: each Entity keeps its position in it, so removing is swapping it with the
+     * last one (see [denseRemove]); that also means the order changes when Entities are removed */
     val entityList = Array<Entity>()
     private val dynamicEntityList = Array<Entity>()
     private val dynamicEntityListDraw = Array<Entity>()
@@ -62,7 +77,11 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
     var customProperties = CustomProperties()
 
     private val drawingCameraBoundsBorder = 2
-    private lateinit var mapCells: HashMap<GridPoint2, MapCell>
+    /** All cells, indexed by [cellIndex] */
+    private lateinit var mapCells: kotlin.Array<MapCell>
+
+    /** Bit [cellIndex] of the cell is set if it [MapCell.isSolid], so solid checks don't need the MapCells */
+    private lateinit var solidBits: LongArray
     var width: Int = 0
         private set
     var height: Int = 0
@@ -70,13 +89,96 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
 
     /** This collTree may not include some entities if [Entity.providesCollidingInfo] is false, so in that case you can selectively
      * ignore Entities that will never be useful as colliders for others. */
-    lateinit var collisionTreeForEntityColliding: CollisionTree
+    lateinit var collisionTreeForEntityColliding: SpatialIndex
         private set
 
     /** This collTree is used internally by the map for culling and drawing, and includes all Entities */
-    lateinit var collisionTree: CollisionTree
+    lateinit var collisionTree: SpatialIndex
+
+    /** If true, the possible colliding Entities of all moving [CollidingEntity]s are found at once at the start of each
+     * frame, instead of querying [collisionTreeForEntityColliding] on each step of their collision response.
+     * @see BatchedBroadphase */
+    var useBatchedBroadphase = false
+        set(value) {
+            if (!value) broadphase.clear()
+            field = value
+        }
+
+    val broadphase = BatchedBroadphase(this)
+
+    /** If not null, loads and unloads parts of the map around the camera on each update. Disposed with the map */
+    var chunkStreamer: ChunkStreamer? = null
+        set(value) {
+            field = value
+            value?.collectStaticEntities()
+        }
+
+    /** If not null, decides which Entities are updated each frame depending on their distance to the camera, instead
+     * of the deactivation rectangle. All Entities are woken up when it is set */
+    var updateTiers: EntityUpdateTiers? = null
+        set(value) {
+            field = value
+            value?.wakeAll()
+        }
+
+    /** If not null, tiles are drawn by it, from vertices it keeps for each part of the map. Create it after [initMap] */
+    var staticTileRenderer: StaticTileRenderer? = null
+
+    /**
+     * If true, Entities with [Entity.isParallelSafe] are updated at the same time on several threads, before the rest
+     * of Entities are updated one by one on the main thread.
+     *
+     * While updating in parallel, [addEntity], [removeEntity] and changes to [MapCell.markedAsSolid] are kept in
+     * command buffers, one for each group of [parallelUpdateGroupSize] Entities. After all are updated the buffers are
+     * applied on the main thread group after group, so the result doesn't depend on how threads ran. Entities that
+     * moved are then updated on the spatial indexes as usual.
+     *
+     * Before that, [connectivity], the jump point tables and the spatial indexes are brought up to date, so
+     * [com.dcostap.engine.utils.Pathfinder.findPath] and the queries of the indexes only read them from the worker
+     * threads. Meanwhile, the BBs of an Entity are seen by the others as they were when the parallel update started,
+     * see [BoundingBox.rect].
+     */
+    var useParallelUpdate = false
+
+    /** Entities updated by each parallel task, in the order of the update list */
+    var parallelUpdateGroupSize = 64
+
+    /** Threads used when [useParallelUpdate] is true; changes apply the next time the pool is created */
+    var parallelUpdateThreads = Runtime.getRuntime().availableProcessors()
+
+    private var parallelUpdatePool: ForkJoinPool? = null
+    private val parallelEntities = Array<Entity>()
+    private val commandBuffers = Array<MapCommandBuffer>()
+    private val currentCommandBuffer = ThreadLocal<MapCommandBuffer>()
+
+    /** Buffer of the parallel task running on this thread, null outside of the parallel update */
+    internal val commandBuffer: MapCommandBuffer? get() = currentCommandBuffer.get()
+
+    /** Whether it is called from a thread updating Entities in parallel, see [useParallelUpdate] */
+    val isUpdatingInParallel get() = currentCommandBuffer.get() != null
+
+    /** Whether parallel-safe Entities are being updated right now, on any thread. Set by the main thread */
+    internal var isInParallelPhase = false
+        private set
+
+    /** Entity being updated by the parallel task running on this thread */
+    private val currentParallelEntity = ThreadLocal<Entity>()
+
+    internal fun isUpdatedOnThisThread(ent: Entity) = currentParallelEntity.get() === ent
+
+    /**
+     * If true and [Engine.useFixedTimestep] is enabled, dynamic Entities are drawn between their position at the start
+     * of the last update and their current one, according to [FixedTimestep.alpha]. So movement looks smooth when the
+     * map is updated less often than drawn.
+     *
+     * Their [Entity.position] is only changed while drawing, and restored right after.
+     */
+    var interpolateFixedTimestep = true
+
+    private var tickId = 0L
+    private val interpolatedEntities = Array<Entity>()
+    private val interpolatedRealPositions = Array<Vector2>()
 
-    private val dummyGridPoint = GridPoint2()
     private val dummyCellArray = Array<MapCell>()
     private val dummyEntityArray = Array<Entity>()
 
@@ -141,24 +243,21 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
      * It might be a bit expensive for maps with many entities */
     private val noCulling = GdxArray<Entity>()
 
-    /** Call after creating map! */
-    open fun initMap(mapWidth: Int, mapHeight: Int, collisionTreeCellSize: Int = defaultCollTreeCellSize) {
+    /** Call after creating map!
+     * @param spatialIndexType implementation used for both [collisionTree] and [collisionTreeForEntityColliding] */
+    open fun initMap(mapWidth: Int, mapHeight: Int, collisionTreeCellSize: Int = defaultCollTreeCellSize,
+                     spatialIndexType: SpatialIndexType = SpatialIndexType.GRID) {
         if (isInitiated)
             throw RuntimeException("Tried to initiate a map that was already initiated.")
 
-        mapCells = HashMap(mapWidth * mapHeight)
-
-        for (x in 0 until mapWidth) {
-            for (y in 0 until mapHeight) {
-                mapCells.put(GridPoint2(x, y), MapCell(x, y, 1, this))
-            }
-        }
-
         this.width = mapWidth
         this.height = mapHeight
 
-        this.collisionTreeForEntityColliding = CollisionTree(collisionTreeCellSize, mapWidth, mapHeight, this)
-        this.collisionTree = CollisionTree(collisionTreeCellSize, mapWidth, mapHeight, this)
+        solidBits = LongArray((mapWidth * mapHeight + 63) / 64)
+        mapCells = kotlin.Array(mapWidth * mapHeight) { MapCell(it % mapWidth, it / mapWidth, 1, this) }
+
+        this.collisionTreeForEntityColliding = spatialIndexType.create(collisionTreeCellSize, mapWidth, mapHeight, this, 0)
+        this.collisionTree = spatialIndexType.create(collisionTreeCellSize, mapWidth, mapHeight, this, 1)
 
         isInitiated = true
     }
@@ -169,227 +268,345 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
     }
 
     open fun getMapCell(position: GridPoint2): MapCell {
-        if (!isInsideMap(position.x.toFloat(), position.y.toFloat()))
-            throw IllegalArgumentException("cell position: $position is outside of map!")
-        return mapCells.get(position)!!
+        return getMapCell(position.x, position.y)
     }
 
     open fun getMapCell(x: Int, y: Int): MapCell {
-        return getMapCell(dummyGridPoint.set(x, y))
+        if (!isInsideMap(x, y))
+            throw IllegalArgumentException("cell position: ($x, $y) is outside of map!")
+        return mapCells[x + y * width]
     }
 
-    private var maxUsedIndex = 0L
-        set(value) {
-            if (value < -1L) { // avoid overflow
-                field = 0L // dummy value in case it's in the middle of a floodFill
-                didFullFloodFill = false // reset it in update
-            } else {
-                field = value
+    /** Cell by its [cellIndex] */
+    fun getMapCellAt(index: Int): MapCell = mapCells[index]
+
+    /** Index of the cell in the map's flat storage; cells of a row are consecutive. Doesn't check the cell is inside */
+    fun cellIndex(x: Int, y: Int) = x + y * width
+
+    /** Same as [MapCell.isSolid], but without accessing the MapCell. Cells outside of the map aren't solid */
+    fun isSolid(x: Int, y: Int): Boolean {
+        if (!isInsideMap(x, y)) return false
+        val index = x + y * width
+        return solidBits[index ushr 6] and (1L shl index) != 0L
+    }
+
+    /** Whether any cell the rectangle touches is solid, checking only [solidBits] */
+    fun isAnyCellSolid(rectangle: Rectangle): Boolean {
+        val startX = Math.max(0, MathUtils.floor(rectangle.x))
+        val startY = Math.max(0, MathUtils.floor(rectangle.y))
+        val endX = Math.min(width - 1, MathUtils.floor(rectangle.x + rectangle.width))
+        val endY = Math.min(height - 1, MathUtils.floor(rectangle.y + rectangle.height))
+
+        for (yy in startY..endY) {
+            for (xx in startX..endX) {
+                val index = xx + yy * width
+                if (solidBits[index ushr 6] and (1L shl index) != 0L) return true
             }
         }
 
-    private fun floodFillFull() {
-        val unexploredCells = GdxMap<Int, MapCell>()
-        var indexFill = 0L
+        return false
+    }
 
-        fun indexToX(index: Int): Int {
-            return index % width
-        }
+    /** Called by the cell when its [MapCell.isSolid] may have changed */
+    internal fun updateSolidBit(cell: MapCell) {
+        val index = cell.x + cell.y * width
+        val word = index ushr 6
+        solidBits[word] = if (cell.isSolid) solidBits[word] or (1L shl index) else solidBits[word] and (1L shl index).inv()
+
+        if (doFloodFillForSolidCellsPathfinding) connectivity.onSolidChanged(cell.x, cell.y)
+        for (table in jumpPointTables) table?.onSolidChanged(cell.x, cell.y)
+        for (graph in abstractPathGraphs) graph?.onSolidChanged(cell.x, cell.y)
+        flowFields.onSolidChanged(cell.x, cell.y)
+        pathfinding.onSolidChanged()
+    }
 
-        fun indexToY(index: Int): Int {
-            return MathUtils.floor(index / width.toFloat())
-        }
+    private val jumpPointTables = arrayOfNulls<JumpPointTable>(2)
 
-        fun xyToIndex(x: Int, y: Int): Int {
-            return x + (y * width)
-        }
+    /** Jump distances of the map for [com.dcostap.engine.utils.AStarSearch.Mode.JPS_PLUS], created the first time
+     * and then kept up to date with the solid state of the cells */
+    fun getJumpPointTable(cutsCorners: Boolean): JumpPointTable {
+        val slot = if (cutsCorners) 1 else 0
+        return jumpPointTables[slot] ?: JumpPointTable(this, cutsCorners).also { jumpPointTables[slot] = it }
+    }
 
-        val floodList = GdxArray<MapCell>()
-        var originCell: MapCell? = null
-        fun flood(x: Int, y: Int) {
-            val cell = getMapCell(x, y)
-            if (cell.floodRegion != originCell!!.floodRegion) return
-            if (cell.pathfindingFloodIndex != -1L) return
-            if (cell.isSolid != originCell!!.isSolid) return
+    /** @return the table of [getJumpPointTable] if it was already created, without creating it */
+    fun findJumpPointTable(cutsCorners: Boolean): JumpPointTable? = jumpPointTables[if (cutsCorners) 1 else 0]
 
-            unexploredCells.remove(xyToIndex(x, y))
+    private val abstractPathGraphs = arrayOfNulls<AbstractPathGraph>(2)
 
-            cell.pathfindingFloodIndex = indexFill
+    /** Graph of the map's regions for [com.dcostap.engine.utils.Pathfinder.findHierarchicalPath], created the first
+     * time and then kept up to date with the solid state of the cells */
+    fun getAbstractPathGraph(cutsCorners: Boolean): AbstractPathGraph {
+        val slot = if (cutsCorners) 1 else 0
+        return abstractPathGraphs[slot] ?: AbstractPathGraph(this, cutsCorners).also { abstractPathGraphs[slot] = it }
+    }
 
-            if (isInsideMap(x, y + 1))
-                floodList.add(getMapCell(x + 0, y + 1))
+    private var wasUpdated = false
 
-            if (isInsideMap(x + 1, y))
-                floodList.add(getMapCell(x + 1, y + 0))
+    override fun update(delta: Float) {
+        wasUpdated = true
 
-            if (isInsideMap(x - 1, y))
-                floodList.add(getMapCell(x - 1, y + 0))
+        if (doFloodFillForSolidCellsPathfinding) connectivity.update()
+        flowFields.update()
 
-            if (isInsideMap(x, y - 1))
-                floodList.add(getMapCell(x + 0, y - 1))
-        }
+        updateCameraRectangle()
+        pathfinding.update()
+        chunkStreamer?.update()
+        removeAndAddEntities()
 
-        for (i in 0 until width * height) {
-            val cell = getMapCell(indexToX(i), indexToY(i))
-            cell.floodRegion = MathUtils.floor(indexToX(i) / floodRegionSize.toFloat()) +
-                    MathUtils.floor(indexToY(i) / floodRegionSize.toFloat()) * (MathUtils.floor(width / floodRegionSize.toFloat()) + 1)
-            cell.pathfindingFloodIndex = -1L
-            unexploredCells.put(i, cell)
-        }
+        startOfFrameNotifier.notifyListeners { it.startOfFrameUpdate(delta) }
 
-        while (!unexploredCells.isEmpty) {
-            val chosen = unexploredCells.first()
-            originCell = chosen.value
+        dummyEntityArray.clear()
+        val tiers = updateTiers
+        if (tiers != null) {
+            tiers.collect(delta, dummyEntityArray)
+        } else if (deactivateEntities) {
+            dummyEntityArray.addAll(collisionTree.getPossibleCollidingEntities(getDeactivationRectangle(), true))
+            dummyEntityArray.addAll(noCulling)
+        } else
+            dummyEntityArray.addAll(entityList)
 
-            floodList.add(chosen.value)
-            while (!floodList.isEmpty) {
-                val cell = floodList.pop()
-                flood(cell.x, cell.y)
-            }
+        if (useBatchedBroadphase)
+            broadphase.update(dummyEntityArray, delta)
+
+        if (isInterpolatingDrawing()) saveTickStartPositions()
+
+        // update entities
+        if (useParallelUpdate) updateInParallel(delta)
+
+        for (ent in dummyEntityArray) {
+            if (useParallelUpdate && ent.isParallelSafe) continue
 
-            maxUsedIndex = indexFill
-            indexFill++
+            ent.update(entityDelta(ent, delta))
+            entityWasUpdated(ent)
         }
     }
 
-    fun floodFill(motherCell: MapCell) {
-        if (!didFullFloodFill) return
-        if (!doFloodFillForSolidCellsPathfinding) return
+    private fun isInterpolatingDrawing() = interpolateFixedTimestep && screen.engine.useFixedTimestep
 
-        var index = 0L
-        maxUsedIndex++
-        val startingMaxIndex = maxUsedIndex
+    private fun saveTickStartPositions() {
+        tickId++
+        for (i in 0 until dummyEntityArray.size) {
+            val ent = dummyEntityArray[i]
+            if (ent.isStatic) continue
 
-        var originIsSolid = false
-        var originRegion = -1
-        val floodList = GdxArray<MapCell>()
+            ent.tickStartPosition.set(ent.position)
+            ent.tickStartId = tickId
+        }
+    }
 
-        fun flood(x: Int, y: Int) {
-            val thisCell = getMapCell(x, y)
-            if (originRegion != thisCell.floodRegion) return
-            if (thisCell.pathfindingFloodIndex == index) return
-            if (thisCell.pathfindingFloodIndex > startingMaxIndex) return
-            if (originIsSolid != thisCell.isSolid) return
+    /** Moves the dynamic Entities to be drawn to their interpolated position, keeping the real one */
+    private fun interpolatePositions() {
+        val alpha = screen.engine.fixedTimestep.alpha
+        for (i in 0 until drawables.size) {
+            val ent = drawables[i] as? Entity ?: continue
+            if (ent.isStatic || ent.tickStartId != tickId) continue
 
-            if (Engine.DEBUG_CELL_FLOOD_FILL)
-                thisCell.debugFlashingRect.flashColor(Color.RED, 0.4f)
+            if (interpolatedRealPositions.size <= interpolatedEntities.size) interpolatedRealPositions.add(Vector2())
+            interpolatedRealPositions[interpolatedEntities.size].set(ent.position)
+            interpolatedEntities.add(ent)
 
-            thisCell.pathfindingFloodIndex = index
+            ent.position.set(ent.tickStartPosition).lerp(interpolatedRealPositions[interpolatedEntities.size - 1], alpha)
+        }
+    }
 
-            if (isInsideMap(x, y + 1))
-                floodList.add(getMapCell(x + 0, y + 1))
+    private fun restorePositions() {
+        for (i in 0 until interpolatedEntities.size) {
+            interpolatedEntities[i].position.set(interpolatedRealPositions[i])
+        }
 
-            if (isInsideMap(x + 1, y))
-                floodList.add(getMapCell(x + 1, y + 0))
+        interpolatedEntities.clear()
+    }
 
-            if (isInsideMap(x - 1, y))
-                floodList.add(getMapCell(x - 1, y + 0))
+    /** Delta the Entity is updated with, which depends on its tier when using [updateTiers] */
+    private fun entityDelta(ent: Entity, delta: Float) = if (updateTiers != null) ent.tierDelta else delta
 
-            if (isInsideMap(x, y - 1))
-                floodList.add(getMapCell(x + 0, y - 1))
+    /** Wakes up the Entity if it is sleeping in [updateTiers]. Call it when something happens that it must react to,
+     * or when moving it from outside. Can be called during the parallel update */
+    fun wakeEntity(ent: Entity) {
+        val buffer = commandBuffer
+        if (buffer != null) {
+            buffer.wakeEntity(ent)
+            return
         }
 
-        val x = motherCell.x; val y = motherCell.y
+        updateTiers?.wake(ent)
+    }
 
-        fun floodStart(x: Int, y: Int) {
-            maxUsedIndex++
-            index = maxUsedIndex
+    private fun entityWasUpdated(ent: Entity) {
+        if (useBatchedBroadphase)
+            broadphase.onEntityUpdated(ent)
 
-            if (isInsideMap(x, y)) {
-                val cell = getMapCell(x, y)
-                if (motherCell.floodRegion == cell.floodRegion) {
-                    floodList.add(cell)
-                    originIsSolid = cell.isSolid
-                    originRegion = cell.floodRegion
-                }
-            }
+        if (!ent.isStatic && ent.hasMoved()) {
+            if (ent.providesCollidingInfo)
+                collisionTreeForEntityColliding.addDynamicEntityThatMoved(ent)
 
-            while (!floodList.isEmpty) {
-                val cell = floodList.pop()
-                flood(cell.x, cell.y)
-            }
+            if (ent.providesCullingInfo)
+                collisionTree.addDynamicEntityThatMoved(ent)
         }
-
-        motherCell.pathfindingFloodIndex = maxUsedIndex
-        floodStart(x + 0, y + 1)
-        floodStart(x + 1, y + 0)
-        floodStart(x + 0, y - 1)
-        floodStart(x - 1, y - 0)
     }
 
-    private var wasUpdated = false
+    private fun updateInParallel(delta: Float) {
+        parallelEntities.clear()
+        for (ent in dummyEntityArray) {
+            if (ent.isParallelSafe) parallelEntities.add(ent)
+        }
 
-    override fun update(delta: Float) {
-        wasUpdated = true
+        if (parallelEntities.size == 0) return
+
+        val groupSize = Math.max(1, parallelUpdateGroupSize)
+        val groups = (parallelEntities.size + groupSize - 1) / groupSize
+        while (commandBuffers.size < groups) commandBuffers.add(MapCommandBuffer())
+
+        // solid changes are buffered while updating in parallel, so searches there only read this
+        updatePathfindingData()
 
-        if (!didFullFloodFill && doFloodFillForSolidCellsPathfinding) {
-            floodFillFull()
-            didFullFloodFill = true
+        // queries on the worker threads then only read the indexes, and BBs as they are now
+        collisionTreeForEntityColliding.updateDynamicEntitiesThatMoved()
+        collisionTree.updateDynamicEntitiesThatMoved()
+        for (i in 0 until dummyEntityArray.size) {
+            for (boundingBox in dummyEntityArray[i].boundingBoxes.values()) boundingBox.rect
         }
 
-        updateCameraRectangle()
-        removeAndAddEntities()
+        val pool = parallelUpdatePool ?: ForkJoinPool(Math.max(1, parallelUpdateThreads)).also { parallelUpdatePool = it }
+        isInParallelPhase = true
+        try {
+            pool.invoke(ParallelUpdateTask(0, groups, groupSize, delta))
+        } finally {
+            isInParallelPhase = false
+        }
 
-        startOfFrameNotifier.notifyListeners { it.startOfFrameUpdate(delta) }
+        for (i in 0 until groups) {
+            commandBuffers[i].applyTo(this)
+        }
 
-        dummyEntityArray.clear()
-        if (deactivateEntities) {
-            dummyEntityArray.addAll(collisionTree.getPossibleCollidingEntities(getDeactivationRectangle(), true))
-            dummyEntityArray.addAll(noCulling)
-        } else
-            dummyEntityArray.addAll(entityList)
+        for (i in 0 until parallelEntities.size) {
+            val ent = parallelEntities[i]
+            ent.updateDebugInfo()
+            entityWasUpdated(ent)
+        }
 
-//        if (updateFloodCells && doFloodFillForSolidCellsPathfinding) {
-//            updateFloodCells = false
-//            floodFillFull()
-//        }
+        parallelEntities.clear()
+    }
 
-        // update entities
-        for (ent in dummyEntityArray) {
-            ent.update(delta)
+    /** Brings [connectivity] and the jump point tables up to date with the solid state of the cells, creating the
+     * table used by [com.dcostap.engine.utils.Pathfinder.findPath] if needed */
+    private fun updatePathfindingData() {
+        if (doFloodFillForSolidCellsPathfinding) connectivity.update()
+        if (Pathfinder.searchMode == AStarSearch.Mode.JPS_PLUS) getJumpPointTable(Pathfinder.allowDiagonals)
+        for (table in jumpPointTables) table?.update()
+    }
 
-            if (!ent.isStatic && ent.hasMoved()) {
-                if (ent.providesCollidingInfo)
-                    collisionTreeForEntityColliding.addDynamicEntityThatMoved(ent)
+    /** Updates the groups of parallel Entities from [firstGroup] to [endGroup] (exclusive), splitting them in halves */
+    private inner class ParallelUpdateTask(val firstGroup: Int, val endGroup: Int, val groupSize: Int,
+                                           val delta: Float) : RecursiveAction()
+    {
+        override fun compute() {
+            if (endGroup - firstGroup > 1) {
+                val middle = (firstGroup + endGroup) / 2
+                invokeAll(ParallelUpdateTask(firstGroup, middle, groupSize, delta),
+                        ParallelUpdateTask(middle, endGroup, groupSize, delta))
+                return
+            }
 
-                if (ent.providesCullingInfo)
-                    collisionTree.addDynamicEntityThatMoved(ent)
+            currentCommandBuffer.set(commandBuffers[firstGroup])
+            try {
+                val end = Math.min(parallelEntities.size, (firstGroup + 1) * groupSize)
+                for (i in firstGroup * groupSize until end) {
+                    val ent = parallelEntities[i]
+                    currentParallelEntity.set(ent)
+                    ent.update(entityDelta(ent, delta))
+                }
+            } finally {
+                currentCommandBuffer.set(null)
+                currentParallelEntity.set(null)
             }
         }
     }
 
-    /** If true, whenever there is a change in solid state in any cell, [floodFill] once in current or next frame.
-     * Also, [floodFillFull] (performed on all cells of the map) is called at the start of
-     * @see MapCell.pathfindingFloodIndex
+    /** If true, [connectivity] is kept up to date with the solid state of the cells, and used by
+     * [com.dcostap.engine.utils.Pathfinder] to detect unreachable goals without searching
      * @see floodRegionSize */
     var doFloodFillForSolidCellsPathfinding = true
         set(value) {
             if (field != value && value) {
-                didFullFloodFill = false
+                connectivity.invalidateAll()
             }
 
             field = value
         }
 
-    /** Limits flood fill algorithm to regions, so that changes in a cell's solid will have to update at most this number ^ 2.
-     * This helps with performance in huge maps (nothing cycles through all tiles of the map).
-     * This all at the expense of pathfinding between regions not taking advantage of the flood filling optimization to detect unreachable zones */
+    /** Size of the regions of [connectivity] and [getAbstractPathGraph]: a change in a cell's solid state floods at
+     * most this number ^ 2 cells. This helps with performance in huge maps (nothing cycles through all tiles of the map) */
     var floodRegionSize = 50
+        set(value) {
+            if (value < 1) throw IllegalArgumentException("floodRegionSize must be at least 1: $value")
+            field = value
+            connectivity.invalidateAll()
+            Arrays.fill(abstractPathGraphs, null)
+        }
 
-    private var didFullFloodFill = false
+    /** Which non-solid cells can reach each other, see [doFloodFillForSolidCellsPathfinding] */
+    val connectivity = ConnectivityIndex(this)
+
+    /** Distances and directions to goals shared by many agents, see [FlowField] */
+    val flowFields = FlowFieldService(this)
+
+    /** Path searches spread over several frames, see [PathfindingService] */
+    val pathfinding = PathfindingService(this)
 
     private val dummyEntArray2 = GdxArray<Entity>()
 
+    // Entity of each handle slot, and the generation of the slot, increased each time its Entity is removed
+    private val handleEntities = GdxArray<Entity?>()
+    private val handleGenerations = GdxIntArray()
+    private val freeHandleSlots = GdxIntArray()
+
+    private fun assignHandle(ent: Entity) {
+        val slot: Int
+        if (freeHandleSlots.size > 0) {
+            slot = freeHandleSlots.pop()
+            handleEntities[slot] = ent
+        } else {
+            slot = handleEntities.size
+            handleEntities.add(ent)
+            handleGenerations.add(0)
+        }
+
+        ent.handle = (handleGenerations[slot].toLong() shl 32) or slot.toLong()
+    }
+
+    private fun freeHandle(ent: Entity) {
+        val slot = (ent.handle and 0xFFFFFFFFL).toInt()
+        handleEntities[slot] = null
+        handleGenerations.incr(slot, 1)
+        freeHandleSlots.add(slot)
+        ent.handle = -1L
+    }
+
+    /**
+     * Entity of the handle (see [Entity.handle]), or null if that Entity was removed from the map. Keep handles instead
+     * of Entities when holding them for long, so removed Entities aren't used by mistake: when an Entity is removed, its
+     * handle is never valid again, even if its slot is reused or the same Entity is added again.
+     */
+    fun getEntity(handle: Long): Entity? {
+        if (handle < 0) return null
+
+        val slot = (handle and 0xFFFFFFFFL).toInt()
+        if (slot >= handleEntities.size || handleGenerations[slot] != (handle ushr 32).toInt()) return null
+        return handleEntities[slot]
+    }
+
     /** You may call this to force update of EntityList  */
     open fun removeAndAddEntities() {
         dummyEntArray2.clear()
         dummyEntArray2.addAll(toBeRemoved)
         toBeRemoved.clear()
         for (ent in dummyEntArray2) {
-            entityList.removeValue(ent, true)
+            if (!entityList.denseRemove(ent, ENTITY_LIST) { it.mapListPositions }) continue
 
             if (!ent.providesCullingInfo) {
-                noCulling.removeValue(ent, true)
+                noCulling.denseRemove(ent, NO_CULLING_LIST) { it.mapListPositions }
             }
 
             if (ent.isStatic) {
@@ -398,15 +615,19 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
 
                 if (ent.providesCullingInfo)
                     collisionTree.removeStaticEntity(ent)
+
+                chunkStreamer?.onStaticEntityRemoved(ent)
             } else {
                 if (ent.providesCollidingInfo)
-                    dynamicEntityList.removeValue(ent, true)
+                    dynamicEntityList.denseRemove(ent, DYNAMIC_LIST) { it.mapListPositions }
 
                 if (ent.providesCullingInfo)
-                    dynamicEntityListDraw.removeValue(ent, true)
+                    dynamicEntityListDraw.denseRemove(ent, DYNAMIC_DRAW_LIST) { it.mapListPositions }
             }
 
+            freeHandle(ent)
             updateCellsDueToEntity(ent, true)
+            updateTiers?.onEntityRemoved(ent)
             ent.justRemovedFromMap()
         }
 
@@ -416,10 +637,10 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
         for (ent in dummyEntArray2) {
             if (ent.isAddedToMap) throw RuntimeException("Entity $ent was added to a map twice")
             ent.justBeforeAddingToMap()
-            entityList.add(ent)
+            entityList.denseAdd(ent, ENTITY_LIST) { it.mapListPositions }
 
             if (!ent.providesCullingInfo) {
-                noCulling.add(ent)
+                noCulling.denseAdd(ent, NO_CULLING_LIST) { it.mapListPositions }
             }
 
             if (ent.isStatic) {
@@ -428,25 +649,33 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
 
                 if (ent.providesCullingInfo)
                     collisionTree.addStaticEntity(ent)
+
+                chunkStreamer?.onStaticEntityAdded(ent)
             } else {
                 if (ent.providesCollidingInfo)
-                    dynamicEntityList.add(ent)
+                    dynamicEntityList.denseAdd(ent, DYNAMIC_LIST) { it.mapListPositions }
 
                 if (ent.providesCullingInfo)
-                    dynamicEntityListDraw.add(ent)
+                    dynamicEntityListDraw.denseAdd(ent, DYNAMIC_DRAW_LIST) { it.mapListPositions }
             }
 
+            assignHandle(ent)
             updateCellsDueToEntity(ent, false)
             ent.map = this
+            updateTiers?.wake(ent)
             ent.justAddedToMap()
         }
 
         collisionTreeForEntityColliding.resetDynamicEntities(dynamicEntityList)
         collisionTree.resetDynamicEntities(dynamicEntityListDraw)
+
+        // both trees check the same flag, so it is reset once both are updated
+        for (ent in dynamicEntityList) ent.resetHasMoved()
+        for (ent in dynamicEntityListDraw) ent.resetHasMoved()
     }
 
     private val drawables = GdxArray<DrawableSortable>()
-    private val orderComparator = ComparatorByDepthAndYPosition()
+    private val drawOrderSorter = DrawOrderSorter()
 
     /** Draws map cells and Entities; uses culling on both  */
     override fun draw(gameDrawer: GameDrawer, delta: Float) {
@@ -458,6 +687,7 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
         if (!ignoreTileDrawing)
             getTilesDrawn()
 
+        val tileCount = drawables.size
         getEntitiesDrawn()
 
         if (extraMapDrawables.size > 0)
@@ -468,20 +698,28 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
             frameDrawOrders.clear()
         }
 
-        drawables.sort(orderComparator)
+        val interpolate = isInterpolatingDrawing()
+        if (interpolate) interpolatePositions()
 
-        for (drawable in drawables) {
-            gameDrawer.reset()
-            drawable.draw(gameDrawer, delta)
-        }
+        // real positions are restored even if drawing throws
+        try {
+            drawOrderSorter.sort(drawables, tileCount)
 
-        if (Engine.DEBUG && Engine.DEBUG_ENTITIES_BB && Engine.DEBUG_ENTITIES_BB_X_RAY) {
             for (drawable in drawables) {
-                if (drawable is Entity) {
-                    gameDrawer.reset()
-                    drawable.drawDebug(gameDrawer, delta)
+                gameDrawer.reset()
+                drawable.draw(gameDrawer, delta)
+            }
+
+            if (Engine.DEBUG && Engine.DEBUG_ENTITIES_BB && Engine.DEBUG_ENTITIES_BB_X_RAY) {
+                for (drawable in drawables) {
+                    if (drawable is Entity) {
+                        gameDrawer.reset()
+                        drawable.drawDebug(gameDrawer, delta)
+                    }
                 }
             }
+        } finally {
+            if (interpolate) restorePositions()
         }
 
         gameDrawer.reset()
@@ -515,10 +753,23 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
     }
 
     private val dummyRectangle = Rectangle()
-    /** Uses culling */
+    /** Uses culling. Adds them by rows from the top, as [DrawOrderSorter] expects */
     private fun getTilesDrawn() {
-        for (cell in getCellsOccupiedByRectangle(getCameraRectangle(dummyRectangle, drawingCameraBoundsBorder))) {
-            drawables.addAll(cell.getTiles())
+        val rectangle = getCameraRectangle(dummyRectangle, drawingCameraBoundsBorder)
+        val startX = Math.max(0, MathUtils.floor(rectangle.x))
+        val startY = Math.max(0, MathUtils.floor(rectangle.y))
+        val endX = Math.min(width - 1, MathUtils.floor(rectangle.x + rectangle.width))
+        val endY = Math.min(height - 1, MathUtils.floor(rectangle.y + rectangle.height))
+
+        staticTileRenderer.ifNotNull {
+            it.addDrawables(startX, startY, endX, endY, drawables)
+            return
+        }
+
+        for (yy in endY downTo startY) {
+            for (xx in startX..endX) {
+                drawables.addAll(mapCells[xx + yy * width].getTiles())
+            }
         }
     }
 
@@ -561,12 +812,13 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
                 gameDrawer.resetColorAndAlpha()
             }
 
-            if (Engine.DEBUG_CELL_FLOOD_FILL) {
-                if (cell.pathfindingFloodIndex != -1L) {
-                    gameDrawer.alpha = Engine.DEBUG_TRANSPARENCY / (if (cell.isSolid) 1f else 3f)
-                    gameDrawer.color = Utils.colors.values().elementAt((cell.pathfindingFloodIndex % colorSize).toInt())
+            if (Engine.DEBUG_CELL_FLOOD_FILL && doFloodFillForSolidCellsPathfinding) {
+                val component = connectivity.getComponent(cell.x, cell.y)
+                if (component != -1) {
+                    gameDrawer.alpha = Engine.DEBUG_TRANSPARENCY / 3f
+                    gameDrawer.color = Utils.colors.values().elementAt(component % colorSize)
                     gameDrawer.drawRectangle(cell.x.toFloat(), cell.y.toFloat(), 1f, 1f, true, 0f)
-                    gameDrawer.drawText(cell.floodRegion.toString(), cell.middleX, cell.middleY, Engine.debugUI.debugFont, Color.BLACK)
+                    gameDrawer.drawText(connectivity.regionOf(cell.x, cell.y).toString(), cell.middleX, cell.middleY, Engine.debugUI.debugFont, Color.BLACK)
                     gameDrawer.resetColorAndAlpha()
                 }
             }
@@ -622,7 +874,7 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
             val posX: Int = startingCell.x + x
             val posY: Int = startingCell.y + y
 
-            if (isInsideMap(posX.toFloat(), posY.toFloat())) {
+            if (isInsideMap(posX, posY)) {
                 val cell = getMapCell(posX, posY)
 
                 if (isCellValid(startingCell, allowSolidCells, allowCellsWithTiledEntity)) {
@@ -666,20 +918,99 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
         return y2
     }
 
+    private val cellTraversal = GridTraversal()
+    private val cellsSegmentDirection = Vector2()
+
+    /**
+     * First MapCell crossed by the ray that passes the filter, solid cells by default (see [MapCell.isSolid]).
+     * Much cheaper than raycasting Entities with [SpatialIndex.raycast], but only sees what cells know about.
+     * Cells outside of the map are skipped.
+     *
+     * @param direction doesn't need to be normalized
+     * @param maxDistance length of the ray. Can't be infinite
+     * @param hit overwritten with the result
+     * @return whether a cell was hit
+     */
+    @JvmOverloads fun raycastCells(origin: Vector2, direction: Vector2, maxDistance: Float, hit: RaycastHit,
+                                   filter: (MapCell) -> Boolean = {it.isSolid}): Boolean {
+        if (maxDistance.isInfinite() || maxDistance.isNaN())
+            throw IllegalArgumentException("maxDistance must be finite, it was $maxDistance")
+
+        val length = direction.len()
+        if (length == 0f) throw IllegalArgumentException("Raycast direction can't be zero")
+
+        hit.reset()
+
+        val directionX = direction.x / length
+        val directionY = direction.y / length
+        cellTraversal.start(origin.x, origin.y, directionX, directionY, 1f)
+
+        while (cellTraversal.distanceEnter <= maxDistance) {
+            val x = cellTraversal.cellX
+            val y = cellTraversal.cellY
+            if (x >= 0 && y >= 0 && x < width && y < height) {
+                val cell = mapCells[x + y * width]
+                if (filter(cell)) {
+                    hit.cell = cell
+                    hit.distance = cellTraversal.distanceEnter
+                    hit.normal.set(cellTraversal.normalX.toFloat(), cellTraversal.normalY.toFloat())
+                    hit.point.set(origin.x + directionX * hit.distance, origin.y + directionY * hit.distance)
+                    return true
+                }
+            }
+
+            cellTraversal.step()
+        }
+
+        return false
+    }
+
+    /** Like [raycastCells], from [start] to [end] */
+    @JvmOverloads fun segmentQueryCells(start: Vector2, end: Vector2, hit: RaycastHit,
+                                        filter: (MapCell) -> Boolean = {it.isSolid}): Boolean {
+        cellsSegmentDirection.set(end).sub(start)
+        val length = cellsSegmentDirection.len()
+        if (length == 0f) {
+            hit.reset()
+            return false
+        }
+
+        return raycastCells(start, cellsSegmentDirection, length, hit, filter)
+    }
+
     fun isInsideMap(x: Number, y: Number): Boolean {
         return x.toFloat() >= 0 && y.toFloat() >= 0 && x.toFloat() < width && y.toFloat() < height
     }
 
+    /** Same as the other overload, without boxing the coordinates */
+    fun isInsideMap(x: Int, y: Int): Boolean {
+        return x >= 0 && y >= 0 && x < width && y < height
+    }
+
     fun addEntity(ent: Entity) {
         if (ent.isKilled) {
             throw RuntimeException("Tried to add an Entity that was killed: $ent")
         }
 
+        val buffer = commandBuffer
+        if (buffer != null) {
+            buffer.addEntity(ent)
+            return
+        }
+
         toBeAdded.add(ent)
     }
 
-    /** @param forever if false the entity may be added again to another map, otherwise it will be marked as "killed" */
+    /** @param forever if false the entity may be added again to another map, otherwise it will be marked as "killed".
+     * During the parallel update (see [useParallelUpdate]) the Entity is only removed and killed once all Entities
+     * were updated */
     fun removeEntity(ent: Entity, forever: Boolean = true) {
+        val buffer = commandBuffer
+        if (buffer != null) {
+            buffer.removeEntity(ent, forever)
+            return
+        }
+
         toBeRemoved.add(ent)
         if (forever) {
             ent.kill()
@@ -710,37 +1041,42 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
         }
     }
 
+    /** Warning: Don't keep references to the returned Array, as it is reused in this object */
     fun getCellsOccupiedByRectangle(rectangle: Rectangle): GdxArray<MapCell> {
-        val cells = dummyCellArray
-        cells.clear()
-
-        val rectangleOrigin = Pools.obtain(GridPoint2::class.java)
-        val rectangleEnd = Pools.obtain(GridPoint2::class.java)
-
-        rectangleOrigin.set(Math.floor(rectangle.x.toDouble()).toInt(), Math.floor(rectangle.y.toDouble()).toInt())
-        rectangleEnd.set(Math.floor((rectangle.x + rectangle.width).toDouble()).toInt(), Math.floor((rectangle.y + rectangle.height).toDouble()).toInt())
+        dummyCellArray.clear()
+        return getCellsOccupiedByRectangle(rectangle, dummyCellArray)
+    }
 
-        for (xx in rectangleOrigin.x..rectangleEnd.x) {
-            for (yy in rectangleOrigin.y..rectangleEnd.y) {
-                if (isInsideMap(xx.toFloat(), yy.toFloat()))
-                    cells.add(getMapCell(xx, yy))
+    /** Adds the cells inside the map that the rectangle touches to [out], which isn't cleared. Keeps no state, so it
+     * can be nested and called from several threads
+     * @return [out] */
+    fun getCellsOccupiedByRectangle(rectangle: Rectangle, out: GdxArray<MapCell>): GdxArray<MapCell> {
+        val startX = Math.max(0, MathUtils.floor(rectangle.x))
+        val startY = Math.max(0, MathUtils.floor(rectangle.y))
+        val endX = Math.min(width - 1, MathUtils.floor(rectangle.x + rectangle.width))
+        val endY = Math.min(height - 1, MathUtils.floor(rectangle.y + rectangle.height))
+
+        for (xx in startX..endX) {
+            for (yy in startY..endY) {
+                out.add(mapCells[xx + yy * width])
             }
         }
 
-        Pools.free(rectangleEnd)
-        Pools.free(rectangleOrigin)
-
-        return cells
+        return out
     }
 
     open fun resetCellTiles() {
-        for (cell in mapCells.values) {
+        for (cell in mapCells) {
             cell.getTiles().clear()
         }
+
+        staticTileRenderer?.invalidateAll()
     }
 
     override fun dispose() {
-
+        chunkStreamer?.dispose()
+        parallelUpdatePool?.shutdown()
+        parallelUpdatePool = null
     }
 
     enum class Event {
@@ -770,10 +1106,11 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
         info.addChildValue("width", width)
         info.addChildValue("height", height)
         info.addChildValue("collisionTree.cellSize", collisionTreeForEntityColliding.cellSize)
+        info.addChildValue("collisionTree.type", collisionTreeForEntityColliding.type.name)
 
         if (saveMapCells) {
             info.addChildValue("cells", JsonSavedObject().also {
-                for (cell in mapCells.values) {
+                for (cell in mapCells) {
                     it.addChild("cell", cell.save())
                 }
             })
@@ -788,7 +1125,8 @@ open class EntityTiledMap @JvmOverloads constructor(val screen: BaseScreen,
 
         initMap(savedMapInfoJson.getInt("width", 0),
                 savedMapInfoJson.getInt("height", 0),
-                savedMapInfoJson.getInt("collisionTree.cellSize", 0))
+                savedMapInfoJson.getInt("collisionTree.cellSize", 0),
+                SpatialIndexType.valueOf(savedMapInfoJson.getString("collisionTree.type", SpatialIndexType.GRID.name)))
 
         val ents = savedMapInfoJson.get("entities")
         if (ents != null) {
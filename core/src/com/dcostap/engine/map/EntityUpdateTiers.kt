@@ -0,0 +1,182 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.math.Rectangle
+import com.dcostap.engine.map.entities.BoundingBoxLayer
+import com.dcostap.engine.map.entities.Entity
+import ktx.collections.GdxArray
+
+/**
+ * Decides how often each Entity of the map is updated, depending on how far it is from the camera. Set it as the map's
+ * [EntityTiledMap.updateTiers]; it replaces the deactivation rectangle of the map.
+ *
+ * - [UpdateTier.FULL]: position less than [fullRateBorder] cells away from the camera view; updated every frame.
+ * - [UpdateTier.REDUCED]: less than [reducedRateBorder] cells away; updated once every [reducedRateInterval] frames,
+ * with the delta of all those frames. Entities are spread between the frames so each one updates a part of them.
+ * - [UpdateTier.SLEEPING]: further away; not updated at all, and their time doesn't pass.
+ *
+ * Only Entities that are awake (not sleeping) are kept, in a list. Each frame the index is only queried for the area
+ * the camera started covering since the last frame, to wake up Entities found there; awake Entities are moved between
+ * tiers, or sent to sleep, by checking their own position.
+ *
+ * Sleeping Entities don't move by themselves, but other things might move them or need them to react: use [wake]
+ * (or [EntityTiledMap.wakeEntity] while updating in parallel) then. Entities are also woken up when added to the map,
+ * and Entities with [Entity.providesCullingInfo] false never sleep, since the index can't find them.
+ */
+class EntityUpdateTiers(val map: EntityTiledMap) {
+    enum class UpdateTier {
+        FULL, REDUCED, SLEEPING
+    }
+
+    /** Cells around the camera view where Entities update every frame */
+    var fullRateBorder = 4
+
+    /** Cells around the camera view where Entities update every [reducedRateInterval] frames; further away they sleep */
+    var reducedRateBorder = 16
+
+    var reducedRateInterval = 4
+        set(value) {
+            if (value < 1) throw IllegalArgumentException("reducedRateInterval must be at least 1: $value")
+            field = value
+        }
+
+    private val awake = GdxArray<Entity>()
+    private var frame = 0L
+    private var nextPhase = 0
+
+    private val fullArea = Rectangle()
+    private val reducedArea = Rectangle()
+    private val previousReducedArea = Rectangle()
+    private var hasPreviousArea = false
+
+    private val newArea = Rectangle()
+    private val found = GdxArray<Entity>()
+
+    /** Awake Entities, in no particular order */
+    val awakeCount get() = awake.size
+
+    /**
+     * Adds to [out] the Entities to update this frame, setting the delta each one has to be updated with
+     * (see [Entity.tierDelta])
+     */
+    fun collect(delta: Float, out: GdxArray<Entity>) {
+        frame++
+        map.getCameraRectangle(fullArea, fullRateBorder)
+        map.getCameraRectangle(reducedArea, reducedRateBorder)
+
+        wakeNewlyCovered()
+
+        var i = 0
+        while (i < awake.size) {
+            val ent = awake[i]
+            val tier = tierOf(ent)
+
+            if (tier == UpdateTier.SLEEPING) {
+                removeAwake(ent)
+                continue
+            }
+
+            ent.updateTier = tier
+            if (tier == UpdateTier.FULL) {
+                ent.tierDelta = ent.pendingTierDelta + delta
+                ent.pendingTierDelta = 0f
+                out.add(ent)
+            } else {
+                ent.pendingTierDelta += delta
+                if ((frame + ent.tierPhase) % reducedRateInterval == 0L) {
+                    ent.tierDelta = ent.pendingTierDelta
+                    ent.pendingTierDelta = 0f
+                    out.add(ent)
+                }
+            }
+
+            i++
+        }
+
+        previousReducedArea.set(reducedArea)
+        hasPreviousArea = true
+    }
+
+    private fun tierOf(ent: Entity): UpdateTier {
+        val x = ent.position.x
+        val y = ent.position.y
+        if (fullArea.contains(x, y)) return UpdateTier.FULL
+        if (reducedArea.contains(x, y) || !ent.providesCullingInfo) return UpdateTier.REDUCED
+        return UpdateTier.SLEEPING
+    }
+
+    /** Wakes the Entities in the part of [reducedArea] that wasn't inside it the last frame */
+    private fun wakeNewlyCovered() {
+        val previous = previousReducedArea
+        val current = reducedArea
+        if (!hasPreviousArea || !previous.overlaps(current)) {
+            wakeInside(current)
+            return
+        }
+
+        val currentRight = current.x + current.width
+        val currentTop = current.y + current.height
+        val previousRight = previous.x + previous.width
+        val previousTop = previous.y + previous.height
+
+        // columns on the sides, with all the height
+        if (current.x < previous.x) wakeInside(newArea.set(current.x, current.y, previous.x - current.x, current.height))
+        if (currentRight > previousRight) wakeInside(newArea.set(previousRight, current.y, currentRight - previousRight, current.height))
+
+        // rows on the top and bottom, between the columns
+        val left = Math.max(current.x, previous.x)
+        val right = Math.min(currentRight, previousRight)
+        if (current.y < previous.y) wakeInside(newArea.set(left, current.y, right - left, previous.y - current.y))
+        if (currentTop > previousTop) wakeInside(newArea.set(left, previousTop, right - left, currentTop - previousTop))
+    }
+
+    private fun wakeInside(area: Rectangle) {
+        found.clear()
+        map.collisionTree.getPossibleCollidingEntities(area, true, BoundingBoxLayer.default, found)
+        for (i in 0 until found.size) {
+            val ent = found[i]
+            if (reducedArea.contains(ent.position.x, ent.position.y)) wake(ent)
+        }
+
+        found.clear()
+    }
+
+    private fun isAwake(ent: Entity): Boolean {
+        val i = ent.tierIndex
+        return i >= 0 && i < awake.size && awake[i] === ent
+    }
+
+    /** Makes the Entity be updated again, from the next frame, if it was sleeping. Call it from the main thread */
+    fun wake(ent: Entity) {
+        if (isAwake(ent)) return
+
+        ent.tierIndex = awake.size
+        ent.tierPhase = nextPhase++ % reducedRateInterval
+        ent.pendingTierDelta = 0f
+        ent.updateTier = UpdateTier.REDUCED
+        awake.add(ent)
+    }
+
+    /** Called when the Entity is removed from the map */
+    fun onEntityRemoved(ent: Entity) {
+        if (isAwake(ent)) removeAwake(ent)
+        ent.updateTier = UpdateTier.FULL
+    }
+
+    private fun removeAwake(ent: Entity) {
+        val i = ent.tierIndex
+        val last = awake.pop()
+        if (last !== ent) {
+            awake[i] = last
+            last.tierIndex = i
+        }
+
+        ent.tierIndex = -1
+        ent.pendingTierDelta = 0f
+        ent.updateTier = UpdateTier.SLEEPING
+    }
+
+    /** Wakes up all Entities of the map; the ones far away will go to sleep again on the next [collect] */
+    fun wakeAll() {
+        for (ent in map.entityList) wake(ent)
+    }
+}
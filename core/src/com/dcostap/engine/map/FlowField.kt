@@ -0,0 +1,305 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.math.MathUtils
+import com.badlogic.gdx.math.Vector2
+import com.badlogic.gdx.utils.IntArray as GdxIntArray
+import com.dcostap.engine.map.JumpPointTable.Companion.isOpen
+
+/**
+ * Distance from every cell of the map to a goal cell, and the direction to the next cell of a shortest path, kept in
+ * arrays indexed by [EntityTiledMap.cellIndex], so any number of agents going to the same goal can read them in O(1)
+ * instead of each one searching a path. Get it from [FlowFieldService.getField].
+ *
+ * Found with one Dijkstra search from the goal, with the costs of [com.dcostap.engine.utils.Pathfinder] (10 straight,
+ * 14.14 diagonal) and its corner rule. Solid cells are never entered, but the goal is always the source, even if solid.
+ *
+ * It is repaired instead of computed again when:
+ * - A cell becomes solid: only the cells whose path went through it (or cut its corner) are searched again, from the
+ * cells around them.
+ * - A cell stops being solid: only the cells that get closer through it are updated.
+ * - The goal moves ([FlowFieldService.moveGoal]): distances through the old goal are kept, adding the distance between
+ * both goals, and only the cells that get closer to the new goal are updated.
+ */
+class FlowField internal constructor(val service: FlowFieldService) {
+    val map get() = service.map
+
+    var goalX = 0
+        private set
+    var goalY = 0
+        private set
+
+    /** Whether diagonal moves can go between two solid cells, see [com.dcostap.engine.utils.Pathfinder.allowDiagonals] */
+    var cutsCorners = false
+        private set
+
+    private val distances = FloatArray(map.width * map.height)
+
+    /** Direction of each cell, as an index of [directionsX] and [directionsY]; -1 if none */
+    private val directions = ByteArray(map.width * map.height)
+
+    /** Cells that changed solid state, repaired on [FlowFieldService.update] */
+    private val changedCells = GdxIntArray()
+
+    internal var lastUsedFrame = 0L
+
+    val goalIndex get() = map.cellIndex(goalX, goalY)
+
+    /** @return the cost of the shortest path from the cell to the goal (10 each straight move), or
+     * [Float.POSITIVE_INFINITY] if it can't reach it */
+    fun getDistance(x: Int, y: Int) = distances[map.cellIndex(x, y)]
+
+    fun canReachGoal(x: Int, y: Int) = directions[map.cellIndex(x, y)] >= 0 || (x == goalX && y == goalY)
+
+    /** @return -1, 0 or 1: x direction of the next cell from this one. 0 on the goal and cells that can't reach it */
+    fun getDirectionX(x: Int, y: Int): Int {
+        val direction = directions[map.cellIndex(x, y)].toInt()
+        return if (direction < 0) 0 else directionsX[direction]
+    }
+
+    fun getDirectionY(x: Int, y: Int): Int {
+        val direction = directions[map.cellIndex(x, y)].toInt()
+        return if (direction < 0) 0 else directionsY[direction]
+    }
+
+    /** @return the unit direction to follow from the position (in map units); zero on the goal, on cells that can't
+     * reach it and outside the map */
+    fun getDirection(x: Float, y: Float, out: Vector2): Vector2 {
+        val cellX = MathUtils.floor(x)
+        val cellY = MathUtils.floor(y)
+        if (!map.isInsideMap(cellX, cellY)) return out.setZero()
+        return out.set(getDirectionX(cellX, cellY).toFloat(), getDirectionY(cellX, cellY).toFloat()).nor()
+    }
+
+    internal fun compute(goalX: Int, goalY: Int, cutsCorners: Boolean) {
+        this.goalX = goalX
+        this.goalY = goalY
+        this.cutsCorners = cutsCorners
+        changedCells.clear()
+
+        java.util.Arrays.fill(distances, Float.POSITIVE_INFINITY)
+        java.util.Arrays.fill(directions, -1)
+
+        val goal = goalIndex
+        distances[goal] = 0f
+        service.heap.add(goal, 0f)
+        propagate()
+    }
+
+    internal fun onSolidChanged(x: Int, y: Int) {
+        changedCells.add(map.cellIndex(x, y))
+    }
+
+    /** Repairs the cells that changed solid state */
+    internal fun repair() {
+        if (changedCells.size == 0) return
+
+        // so many changes that searching everything again is faster
+        if (changedCells.size > MAX_REPAIRED_CELLS) {
+            compute(goalX, goalY, cutsCorners)
+            return
+        }
+
+        for (i in 0 until changedCells.size) {
+            val cell = changedCells[i]
+            if (cell == goalIndex) {
+                compute(goalX, goalY, cutsCorners)
+                return
+            }
+
+            val x = cell % map.width
+            val y = cell / map.width
+            if (map.isSolid(x, y)) repairSolid(x, y) else repairOpen(x, y)
+        }
+
+        changedCells.clear()
+    }
+
+    /** The cells whose path went through the cell, or cut its corner, search their distance again */
+    private fun repairSolid(x: Int, y: Int) {
+        val invalid = service.stack
+        val mark = service.nextMark()
+        invalid.clear()
+
+        markSubtree(map.cellIndex(x, y), mark, invalid)
+        if (!cutsCorners) {
+            // diagonal moves of the cells beside that go by this cell's corner
+            for (side in 0 until 8 step 2) {
+                val sideX = x + directionsX[side]
+                val sideY = y + directionsY[side]
+                if (!map.isInsideMap(sideX, sideY)) continue
+
+                val direction = directions[map.cellIndex(sideX, sideY)].toInt()
+                if (direction < 0 || direction % 2 == 0) continue
+                val dx = directionsX[direction]
+                val dy = directionsY[direction]
+                if ((sideX + dx == x && sideY == y) || (sideX == x && sideY + dy == y))
+                    markSubtree(map.cellIndex(sideX, sideY), mark, invalid)
+            }
+        }
+
+        for (i in 0 until invalid.size) {
+            distances[invalid[i]] = Float.POSITIVE_INFINITY
+            directions[invalid[i]] = -1
+        }
+
+        // each invalid cell starts from its best neighbor still valid
+        val heap = service.heap
+        for (i in 0 until invalid.size) {
+            val cell = invalid[i]
+            val cellX = cell % map.width
+            val cellY = cell / map.width
+            if (map.isSolid(cellX, cellY)) continue
+
+            for (direction in 0 until 8) {
+                val xx = cellX + directionsX[direction]
+                val yy = cellY + directionsY[direction]
+                if (!canMove(cellX, cellY, direction)) continue
+                val neighbor = map.cellIndex(xx, yy)
+                if (service.marks[neighbor] == mark) continue
+
+                val distance = distances[neighbor] + directionCosts[direction]
+                if (distance < distances[cell]) {
+                    distances[cell] = distance
+                    directions[cell] = direction.toByte()
+                }
+            }
+
+            if (distances[cell] != Float.POSITIVE_INFINITY) heap.add(cell, distances[cell])
+        }
+
+        invalid.clear()
+        propagate()
+    }
+
+    /** Adds the cell, and the cells whose direction leads to it, to [out] */
+    private fun markSubtree(root: Int, mark: Int, out: GdxIntArray) {
+        if (service.marks[root] == mark) return
+        val start = out.size
+        service.marks[root] = mark
+        out.add(root)
+
+        var i = start
+        while (i < out.size) {
+            val cell = out[i++]
+            val x = cell % map.width
+            val y = cell / map.width
+            for (direction in 0 until 8) {
+                val xx = x - directionsX[direction]
+                val yy = y - directionsY[direction]
+                if (!map.isInsideMap(xx, yy)) continue
+                val child = map.cellIndex(xx, yy)
+                if (directions[child].toInt() != direction || service.marks[child] == mark) continue
+                service.marks[child] = mark
+                out.add(child)
+            }
+        }
+    }
+
+    /** Cells around continue from the cell, and the diagonals it no longer blocks */
+    private fun repairOpen(x: Int, y: Int) {
+        val heap = service.heap
+        for (offsetY in -1..1) {
+            for (offsetX in -1..1) {
+                val xx = x + offsetX
+                val yy = y + offsetY
+                if (!map.isInsideMap(xx, yy)) continue
+                val cell = map.cellIndex(xx, yy)
+                if (cell != goalIndex && map.isSolid(xx, yy)) continue
+                if (distances[cell] != Float.POSITIVE_INFINITY) heap.add(cell, distances[cell])
+            }
+        }
+
+        propagate()
+    }
+
+    /** Moves the goal to the cell, updating only the cells that get closer to it */
+    internal fun moveGoal(newX: Int, newY: Int) {
+        repair()
+        if (newX == goalX && newY == goalY) return
+
+        val newGoal = map.cellIndex(newX, newY)
+        val oldGoal = goalIndex
+        val betweenGoals = distances[newGoal]
+
+        // a solid goal can't be walked through, so paths through it aren't valid anymore
+        if (betweenGoals == Float.POSITIVE_INFINITY || map.isSolid(goalX, goalY)) {
+            compute(newX, newY, cutsCorners)
+            return
+        }
+
+        // paths through the old goal are still valid, just longer
+        for (i in 0 until distances.size) distances[i] += betweenGoals
+
+        goalX = newX
+        goalY = newY
+        distances[newGoal] = 0f
+        directions[newGoal] = -1
+        service.heap.add(newGoal, 0f)
+        propagate()
+
+        // the old goal had no direction; it goes to its best neighbor
+        val oldX = oldGoal % map.width
+        val oldY = oldGoal / map.width
+        for (direction in 0 until 8) {
+            if (!canMove(oldX, oldY, direction)) continue
+            val neighbor = map.cellIndex(oldX + directionsX[direction], oldY + directionsY[direction])
+            val distance = distances[neighbor] + directionCosts[direction]
+            if (distance <= distances[oldGoal] + EPSILON) {
+                directions[oldGoal] = direction.toByte()
+                break
+            }
+        }
+    }
+
+    /** Dijkstra from the cells in the heap, only updating cells that get closer */
+    private fun propagate() {
+        val heap = service.heap
+        val goal = goalIndex
+        while (!heap.isEmpty) {
+            val cell = heap.pop()
+            val x = cell % map.width
+            val y = cell / map.width
+            val distance = distances[cell]
+
+            for (direction in 0 until 8) {
+                // moving from the neighbor to this cell, so in the opposite direction
+                val xx = x - directionsX[direction]
+                val yy = y - directionsY[direction]
+                if (!map.isOpen(xx, yy) || !canMove(xx, yy, direction)) continue
+                val neighbor = map.cellIndex(xx, yy)
+                if (neighbor == goal) continue
+
+                val newDistance = distance + directionCosts[direction]
+                if (newDistance < distances[neighbor] - EPSILON) {
+                    distances[neighbor] = newDistance
+                    directions[neighbor] = direction.toByte()
+                    heap.add(neighbor, newDistance)
+                }
+            }
+        }
+    }
+
+    /** Whether moving from the cell in the direction is allowed, to a cell that isn't solid, or the goal */
+    private fun canMove(x: Int, y: Int, direction: Int): Boolean {
+        val dx = directionsX[direction]
+        val dy = directionsY[direction]
+        val xx = x + dx
+        val yy = y + dy
+        if (!map.isInsideMap(xx, yy)) return false
+        if (!(xx == goalX && yy == goalY) && map.isSolid(xx, yy)) return false
+        if (dx == 0 || dy == 0 || cutsCorners) return true
+        return map.isOpen(xx, y) && map.isOpen(x, yy)
+    }
+
+    private companion object {
+        val directionsX = intArrayOf(1, 1, 0, -1, -1, -1, 0, 1)
+        val directionsY = intArrayOf(0, 1, 1, 1, 0, -1, -1, -1)
+        val directionCosts = FloatArray(8) { if (it % 2 == 0) 10f else 14.14f }
+
+        /** Differences smaller than this, from adding floats in a different order, are not a shorter path */
+        const val EPSILON = 0.001f
+
+        /** More changed cells than this in a frame search the whole field again */
+        const val MAX_REPAIRED_CELLS = 64
+    }
+}
@@ -0,0 +1,117 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.utils.IntArray as GdxIntArray
+import com.dcostap.engine.utils.IndexedMinHeap
+import com.dcostap.engine.utils.Pathfinder
+import ktx.collections.GdxArray
+
+/**
+ * Keeps the [FlowField]s of the map, at most [maxFields] at once. Use the map's [EntityTiledMap.flowFields].
+ *
+ * Agents going to the same goal should ask for its field each frame with [getField] (a lookup in a short list) instead
+ * of keeping it: when a field for a new goal is needed and there are already [maxFields], the one not asked for in the
+ * longest time is reused for it.
+ *
+ * Fields are repaired of solid state changes on the map's update, before Entities are updated; and when asked for.
+ */
+class FlowFieldService(val map: EntityTiledMap) {
+    var maxFields = 8
+        set(value) {
+            if (value < 1) throw IllegalArgumentException("maxFields must be at least 1: $value")
+            field = value
+            while (fields.size > value) fields.removeIndex(leastRecentlyUsed())
+        }
+
+    private val fields = GdxArray<FlowField>()
+    private val freeFields = GdxArray<FlowField>()
+    private var frame = 0L
+
+    // shared by the fields while computing
+    internal val heap = IndexedMinHeap()
+    internal val stack = GdxIntArray()
+    internal var marks = IntArray(0)
+        private set
+    private var mark = 0
+
+    val fieldCount get() = fields.size
+
+    /**
+     * @param cutsCorners whether diagonal moves can go between two solid cells
+     * @return the field to the goal, computed if there wasn't one
+     */
+    fun getField(goal: MapCell, cutsCorners: Boolean = Pathfinder.allowDiagonals): FlowField {
+        for (i in 0 until fields.size) {
+            val field = fields[i]
+            if (field.goalX == goal.x && field.goalY == goal.y && field.cutsCorners == cutsCorners) {
+                field.repair()
+                field.lastUsedFrame = frame
+                return field
+            }
+        }
+
+        val field = obtainField()
+        field.compute(goal.x, goal.y, cutsCorners)
+        return field
+    }
+
+    /**
+     * Moves the goal of the field, updating only the cells that get closer to the new goal; cheaper than asking for a
+     * new field when the goal moves a few cells, like when it follows a moving target
+     * @return the field
+     */
+    fun moveGoal(field: FlowField, goal: MapCell): FlowField {
+        if (!fields.contains(field, true)) throw IllegalArgumentException("Field isn't kept by this service anymore")
+        field.moveGoal(goal.x, goal.y)
+        field.lastUsedFrame = frame
+        return field
+    }
+
+    fun removeField(field: FlowField) {
+        if (fields.removeValue(field, true)) freeFields.add(field)
+    }
+
+    /** Called by the map when the cell changed solid state */
+    internal fun onSolidChanged(x: Int, y: Int) {
+        for (i in 0 until fields.size) fields[i].onSolidChanged(x, y)
+    }
+
+    /** Repairs the fields. Called on the map's update */
+    fun update() {
+        frame++
+        for (i in 0 until fields.size) fields[i].repair()
+    }
+
+    private fun obtainField(): FlowField {
+        if (fields.size >= maxFields) freeFields.add(fields.removeIndex(leastRecentlyUsed()))
+
+        if (marks.size < map.width * map.height) {
+            marks = IntArray(map.width * map.height)
+            heap.ensureCapacity(map.width * map.height)
+        }
+
+        val field = if (freeFields.size > 0) freeFields.pop() else FlowField(this)
+        field.lastUsedFrame = frame
+        fields.add(field)
+        return field
+    }
+
+    private fun leastRecentlyUsed(): Int {
+        var oldest = 0
+        for (i in 1 until fields.size) {
+            if (fields[i].lastUsedFrame < fields[oldest].lastUsedFrame) oldest = i
+        }
+
+        return oldest
+    }
+
+    /** @return a new value to mark cells with, different from all values in [marks] */
+    internal fun nextMark(): Int {
+        mark++
+        if (mark == 0) { // overflow, old marks could be mistaken for this one
+            java.util.Arrays.fill(marks, 0)
+            mark = 1
+        }
+
+        return mark
+    }
+}
@@ -0,0 +1,134 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.utils.IntArray as GdxIntArray
+
+/**
+ * Precomputed jump distances used by [com.dcostap.engine.utils.AStarSearch.Mode.JPS_PLUS], for moving straight
+ * (right, left, up and down) from each cell that isn't solid. Get it with [EntityTiledMap.getJumpPointTable].
+ *
+ * The map is split in square regions of [regionSize] cells, and distances stop at the edge of the region: a change in a
+ * cell's solid state only computes again the region of the cell, and the regions beside if the cell is on their edge.
+ * The search continues a jump that reached the edge with the table of the next region. Regions are computed on the
+ * next search after the change.
+ *
+ * Diagonal jumps aren't kept: they depend on straight jumps from each cell of the diagonal, which may end far away in
+ * other regions, so a change in one cell could change them in all the map. The search steps diagonals one cell at a
+ * time, using the table for the straight jumps from each cell.
+ *
+ * @param cutsCorners whether diagonal moves can go between two solid cells, see
+ * [com.dcostap.engine.utils.Pathfinder.allowDiagonals]. Changes which cells are jump points
+ */
+class JumpPointTable(val map: EntityTiledMap, val cutsCorners: Boolean, val regionSize: Int = 32) {
+    init {
+        if (regionSize < 1 || regionSize > 127) throw IllegalArgumentException("regionSize must be between 1 and 127: $regionSize")
+    }
+
+    private val regionsX = (map.width + regionSize - 1) / regionSize
+    private val regionsY = (map.height + regionSize - 1) / regionSize
+
+    /**
+     * For each cell and direction (see [directionOf]): positive, distance to the next jump point; otherwise, minus the
+     * number of cells that can be walked before a solid cell or the edge of the region, with no jump point
+     */
+    private val distances = ByteArray(map.width * map.height * 4)
+
+    private val isRegionDirty = BooleanArray(regionsX * regionsY) { true }
+    private val dirtyRegions = GdxIntArray().also { for (i in 0 until regionsX * regionsY) it.add(i) }
+
+    /** Called by the map when the cell changed solid state */
+    fun onSolidChanged(x: Int, y: Int) {
+        // jump points are found by looking at the cells around, so cells beside the region also change it
+        for (offsetY in -1..1) {
+            for (offsetX in -1..1) {
+                val xx = x + offsetX
+                val yy = y + offsetY
+                if (!map.isInsideMap(xx, yy)) continue
+                val region = xx / regionSize + (yy / regionSize) * regionsX
+                if (isRegionDirty[region]) continue
+                isRegionDirty[region] = true
+                dirtyRegions.add(region)
+            }
+        }
+    }
+
+    /** Computes the regions that changed. Called before each search */
+    fun update() {
+        if (dirtyRegions.size == 0) return
+        for (i in 0 until dirtyRegions.size) {
+            val region = dirtyRegions[i]
+            isRegionDirty[region] = false
+            computeRegion(region)
+        }
+
+        dirtyRegions.clear()
+    }
+
+    /** @return see [distances]; unknown for solid cells */
+    fun getDistance(x: Int, y: Int, dx: Int, dy: Int) = distances[map.cellIndex(x, y) * 4 + directionOf(dx, dy)].toInt()
+
+    private fun computeRegion(region: Int) {
+        val startX = (region % regionsX) * regionSize
+        val startY = (region / regionsX) * regionSize
+        val endX = Math.min(map.width, startX + regionSize) - 1
+        val endY = Math.min(map.height, startY + regionSize) - 1
+
+        for (y in startY..endY) {
+            for (x in endX downTo startX) computeCell(x, y, 1, 0, x == endX)
+            for (x in startX..endX) computeCell(x, y, -1, 0, x == startX)
+        }
+
+        for (x in startX..endX) {
+            for (y in endY downTo startY) computeCell(x, y, 0, 1, y == endY)
+            for (y in startY..endY) computeCell(x, y, 0, -1, y == startY)
+        }
+    }
+
+    /** Distance from the cell, using the distance of the next cell in the direction, already computed */
+    private fun computeCell(x: Int, y: Int, dx: Int, dy: Int, isOnEdge: Boolean) {
+        val index = map.cellIndex(x, y) * 4 + directionOf(dx, dy)
+        val nextX = x + dx
+        val nextY = y + dy
+        if (isOnEdge || !map.isOpen(nextX, nextY)) {
+            distances[index] = 0
+            return
+        }
+
+        val next = distances[map.cellIndex(nextX, nextY) * 4 + directionOf(dx, dy)]
+        distances[index] = when {
+            isStraightJumpPoint(map, nextX, nextY, dx, dy, cutsCorners) -> 1
+            next > 0 -> (next + 1).toByte()
+            else -> (next - 1).toByte()
+        }
+    }
+
+    companion object {
+        private fun directionOf(dx: Int, dy: Int) = when {
+            dx > 0 -> 0
+            dx < 0 -> 1
+            dy > 0 -> 2
+            else -> 3
+        }
+
+        /** Inside the map and not solid */
+        internal fun EntityTiledMap.isOpen(x: Int, y: Int) = isInsideMap(x, y) && !isSolid(x, y)
+
+        /** Whether moving straight into the cell, the path may need to turn there: a cell beside is open, but wasn't
+         * reachable without going through this one */
+        internal fun isStraightJumpPoint(map: EntityTiledMap, x: Int, y: Int, dx: Int, dy: Int, cutsCorners: Boolean): Boolean {
+            return if (cutsCorners) {
+                if (dx != 0) (map.isOpen(x + dx, y + 1) && !map.isOpen(x, y + 1)) || (map.isOpen(x + dx, y - 1) && !map.isOpen(x, y - 1))
+                else (map.isOpen(x + 1, y + dy) && !map.isOpen(x + 1, y)) || (map.isOpen(x - 1, y + dy) && !map.isOpen(x - 1, y))
+            } else {
+                if (dx != 0) (map.isOpen(x, y + 1) && !map.isOpen(x - dx, y + 1)) || (map.isOpen(x, y - 1) && !map.isOpen(x - dx, y - 1))
+                else (map.isOpen(x + 1, y) && !map.isOpen(x + 1, y - dy)) || (map.isOpen(x - 1, y) && !map.isOpen(x - 1, y - dy))
+            }
+        }
+
+        /** Whether moving diagonally into the cell, the path may need to turn there. Only when cutting corners; else
+         * diagonals only turn where a straight jump from the cell finds a jump point */
+        internal fun isDiagonalJumpPoint(map: EntityTiledMap, x: Int, y: Int, dx: Int, dy: Int, cutsCorners: Boolean): Boolean {
+            if (!cutsCorners) return false
+            return (map.isOpen(x - dx, y + dy) && !map.isOpen(x - dx, y)) || (map.isOpen(x + dx, y - dy) && !map.isOpen(x, y - dy))
+        }
+    }
+}
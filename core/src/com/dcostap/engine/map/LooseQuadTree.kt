@@ -0,0 +1,275 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.graphics.Color
+import com.badlogic.gdx.math.Rectangle
+import com.dcostap.engine.map.entities.BoundingBoxLayer
+import com.dcostap.engine.map.entities.Entity
+import com.dcostap.engine.utils.GameDrawer
+import ktx.collections.GdxArray
+import java.util.*
+
+/**
+ * [SpatialIndex] where each BB is held by exactly one node of a quadtree, whatever its size: tiny and huge BBs share
+ * the tree without big ones filling many cells nor small ones crowding few.
+ *
+ * Nodes are loose: each one accepts BBs with the center inside of it and up to its size, since its bounds for queries
+ * are twice its size. So the node of a BB is found directly from its size and center, and moving BBs rarely change node.
+ *
+ * The root covers the map (rounded up to a power of two of [cellSize]); [cellSize] is the size of the smallest nodes.
+ * All nodes exist, stored by level in flat arrays. BBs whose center is outside of the root, or too big for it, are kept
+ * in a separate bucket always checked.
+ */
+class LooseQuadTree(override val cellSize: Int, mapSizeX: Int, mapSizeY: Int, entityTiledMap: EntityTiledMap,
+                    treeSlot: Int = 0) : BaseSpatialIndex(entityTiledMap, treeSlot)
+{
+    override val type get() = SpatialIndexType.LOOSE_QUADTREE
+
+    private val rootSize: Int
+    private val maxDepth: Int
+
+    /** Index of the first node of each level; the last one is the number of nodes */
+    private val levelOffset: IntArray
+
+    private val nodeCount: Int
+    private val outsideNode: Int
+
+    init {
+        var size = cellSize
+        var depth = 0
+        while (size < Math.max(mapSizeX, mapSizeY)) {
+            size *= 2
+            depth++
+        }
+
+        rootSize = size
+        maxDepth = depth
+
+        levelOffset = IntArray(maxDepth + 2)
+        for (level in 1..maxDepth + 1) {
+            val nodesPerSide = 1 shl (level - 1)
+            levelOffset[level] = levelOffset[level - 1] + nodesPerSide * nodesPerSide
+        }
+
+        nodeCount = levelOffset[maxDepth + 1]
+        outsideNode = nodeCount
+    }
+
+    /** Nodes of each layer, indexed by [BoundingBoxLayer.id] */
+    private val layerNodes = GdxArray<LayerNodes?>()
+
+    /** Node holding each id */
+    private var boxNode = IntArray(boxCapacity)
+
+    // bounds of each id, to discard BBs of the nodes visited that don't touch the query
+    private var boxMinX = FloatArray(boxCapacity)
+    private var boxMinY = FloatArray(boxCapacity)
+    private var boxMaxX = FloatArray(boxCapacity)
+    private var boxMaxY = FloatArray(boxCapacity)
+
+    override fun onBoxCapacityChanged(capacity: Int) {
+        boxNode = Arrays.copyOf(boxNode, capacity)
+        boxMinX = Arrays.copyOf(boxMinX, capacity)
+        boxMinY = Arrays.copyOf(boxMinY, capacity)
+        boxMaxX = Arrays.copyOf(boxMaxX, capacity)
+        boxMaxY = Arrays.copyOf(boxMaxY, capacity)
+    }
+
+    private fun layerNodesOrNull(layer: BoundingBoxLayer): LayerNodes? {
+        return if (layer.id < layerNodes.size) layerNodes[layer.id] else null
+    }
+
+    private fun layerNodes(layer: BoundingBoxLayer): LayerNodes {
+        if (layerNodes.size <= layer.id) layerNodes.setSize(layer.id + 1)
+        return layerNodes[layer.id] ?: LayerNodes(nodeCount + 1).also { layerNodes[layer.id] = it }
+    }
+
+    private fun nodeIndex(depth: Int, nodeX: Int, nodeY: Int) = levelOffset[depth] + nodeX + nodeY * (1 shl depth)
+
+    private fun depthOfNode(node: Int): Int {
+        var depth = 0
+        while (levelOffset[depth + 1] <= node) depth++
+        return depth
+    }
+
+    /** Deepest node with size >= the BB's biggest side, and the BB's center inside */
+    private fun nodeOf(rectangle: Rectangle): Int {
+        val centerX = rectangle.x + rectangle.width / 2f
+        val centerY = rectangle.y + rectangle.height / 2f
+        if (centerX < 0 || centerY < 0 || centerX >= rootSize || centerY >= rootSize) return outsideNode
+
+        val extent = Math.max(rectangle.width, rectangle.height)
+        if (extent > rootSize) return outsideNode
+
+        var depth = maxDepth
+        var size = cellSize.toFloat()
+        while (depth > 0 && size < extent) {
+            size *= 2
+            depth--
+        }
+
+        val nodesPerSide = 1 shl depth
+        return nodeIndex(depth, Math.min((centerX / size).toInt(), nodesPerSide - 1),
+                Math.min((centerY / size).toInt(), nodesPerSide - 1))
+    }
+
+    override fun queryBoxes(x: Float, y: Float, width: Float, height: Float, layer: BoundingBoxLayer,
+                            excludeDynamicEntities: Boolean, excludeStaticEntities: Boolean,
+                            entityArrayToPopulate: GdxArray<Entity>) {
+        val nodes = layerNodesOrNull(layer) ?: return
+
+        // each id is in one node only, so no duplicates are found
+        queryNodeBoxes(nodes, outsideNode, x, y, x + width, y + height, excludeDynamicEntities, excludeStaticEntities,
+                entityArrayToPopulate)
+        queryNode(nodes, 0, 0, 0, x, y, x + width, y + height, excludeDynamicEntities, excludeStaticEntities,
+                entityArrayToPopulate)
+    }
+
+    private fun queryNode(nodes: LayerNodes, depth: Int, nodeX: Int, nodeY: Int, minX: Float, minY: Float,
+                          maxX: Float, maxY: Float, excludeDynamicEntities: Boolean, excludeStaticEntities: Boolean,
+                          entityArrayToPopulate: GdxArray<Entity>) {
+        val node = nodeIndex(depth, nodeX, nodeY)
+        if (nodes.subtreeCount[node] == 0) return
+
+        val size = rootSize.toFloat() / (1 shl depth)
+        val looseMargin = size / 2f
+        if (minX > (nodeX + 1) * size + looseMargin || maxX < nodeX * size - looseMargin ||
+                minY > (nodeY + 1) * size + looseMargin || maxY < nodeY * size - looseMargin)
+            return
+
+        queryNodeBoxes(nodes, node, minX, minY, maxX, maxY, excludeDynamicEntities, excludeStaticEntities,
+                entityArrayToPopulate)
+
+        if (depth == maxDepth) return
+        for (child in 0..3) {
+            queryNode(nodes, depth + 1, nodeX * 2 + (child and 1), nodeY * 2 + (child shr 1), minX, minY, maxX, maxY,
+                    excludeDynamicEntities, excludeStaticEntities, entityArrayToPopulate)
+        }
+    }
+
+    private fun queryNodeBoxes(nodes: LayerNodes, node: Int, minX: Float, minY: Float, maxX: Float, maxY: Float,
+                               excludeDynamicEntities: Boolean, excludeStaticEntities: Boolean,
+                               entityArrayToPopulate: GdxArray<Entity>) {
+        val bucket = nodes.boxes[node]
+        for (i in 0 until nodes.count[node]) {
+            val id = bucket[i]
+            if (boxMinX[id] > maxX || boxMaxX[id] < minX || boxMinY[id] > maxY || boxMaxY[id] < minY)
+                continue
+
+            reportBox(id, (maxX - minX) * (maxY - minY), excludeDynamicEntities, excludeStaticEntities,
+                    entityArrayToPopulate)
+        }
+    }
+
+    private fun setBounds(id: Int, rectangle: Rectangle) {
+        boxMinX[id] = rectangle.x
+        boxMinY[id] = rectangle.y
+        boxMaxX[id] = rectangle.x + rectangle.width
+        boxMaxY[id] = rectangle.y + rectangle.height
+    }
+
+    override fun insertBox(id: Int, rectangle: Rectangle) {
+        setBounds(id, rectangle)
+        boxNode[id] = nodeOf(rectangle)
+        addToNode(layerNodes(boxes[id]!!.layer), boxNode[id], id)
+    }
+
+    override fun moveBox(id: Int, rectangle: Rectangle) {
+        setBounds(id, rectangle)
+        val node = nodeOf(rectangle)
+        if (node == boxNode[id]) return
+
+        val nodes = layerNodes(boxes[id]!!.layer)
+        removeFromNode(nodes, boxNode[id], id)
+        boxNode[id] = node
+        addToNode(nodes, node, id)
+    }
+
+    override fun removeBox(id: Int) {
+        removeFromNode(layerNodes(boxes[id]!!.layer), boxNode[id], id)
+    }
+
+    private fun addToNode(nodes: LayerNodes, node: Int, id: Int) {
+        nodes.add(node, id)
+        updateSubtreeCounts(nodes, node, 1)
+    }
+
+    private fun removeFromNode(nodes: LayerNodes, node: Int, id: Int) {
+        nodes.remove(node, id)
+        updateSubtreeCounts(nodes, node, -1)
+    }
+
+    /** Updates the count of BBs of the node and all its parents, used to skip empty branches when querying */
+    private fun updateSubtreeCounts(nodes: LayerNodes, node: Int, change: Int) {
+        if (node == outsideNode) return
+
+        var depth = depthOfNode(node)
+        val nodesPerSide = 1 shl depth
+        var nodeX = (node - levelOffset[depth]) % nodesPerSide
+        var nodeY = (node - levelOffset[depth]) / nodesPerSide
+
+        while (depth >= 0) {
+            nodes.subtreeCount[nodeIndex(depth, nodeX, nodeY)] += change
+            depth--
+            nodeX = nodeX shr 1
+            nodeY = nodeY shr 1
+        }
+    }
+
+    /** Draws the nodes holding BBs */
+    override fun debugDrawCellBounds(gameDrawer: GameDrawer) {
+        gameDrawer.color = Color.RED
+        gameDrawer.alpha = 0.3f
+
+        for (depth in 0..maxDepth) {
+            val nodesPerSide = 1 shl depth
+            val size = rootSize.toFloat() / nodesPerSide
+            for (nodeY in 0 until nodesPerSide) {
+                for (nodeX in 0 until nodesPerSide) {
+                    val node = nodeIndex(depth, nodeX, nodeY)
+                    if (layerNodes.none { it != null && it.count[node] > 0 }) continue
+                    gameDrawer.drawRectangle(nodeX * size, nodeY * size, size, size, false, 0.06f)
+                }
+            }
+        }
+
+        gameDrawer.resetColor()
+        gameDrawer.resetAlpha()
+    }
+
+    /** Ids of the BBs of one layer in each node; only the first [count] ids of each bucket are valid */
+    private class LayerNodes(nodeCount: Int) {
+        val boxes = Array(nodeCount) { emptyBucket }
+        val count = IntArray(nodeCount)
+        /** BBs in the node and all its children */
+        val subtreeCount = IntArray(nodeCount)
+
+        fun add(node: Int, id: Int) {
+            var bucket = boxes[node]
+            val size = count[node]
+            if (size == bucket.size) {
+                bucket = Arrays.copyOf(bucket, Math.max(4, size * 2))
+                boxes[node] = bucket
+            }
+
+            bucket[size] = id
+            count[node] = size + 1
+        }
+
+        /** Order inside the bucket isn't kept: last id is swapped into the removed position */
+        fun remove(node: Int, id: Int) {
+            val bucket = boxes[node]
+            val last = count[node] - 1
+            for (i in 0..last) {
+                if (bucket[i] == id) {
+                    bucket[i] = bucket[last]
+                    count[node] = last
+                    return
+                }
+            }
+        }
+    }
+
+    private companion object {
+        val emptyBucket = IntArray(0)
+    }
+}
@@ -10,15 +10,27 @@ import com.dcostap.engine.utils.addChildValue
 
 /**
  * Created by Darius on 14/09/2017.
+ *
+ * Cells are stored by the map in a flat array (see [EntityTiledMap.cellIndex]), and whether they are solid is also kept
+ * in a bitset of the map, see [EntityTiledMap.isSolid]
  */
 open class MapCell(val x: Int, val y: Int, private val cellSize: Int, val map: EntityTiledMap) {
-    /** Use to directly mark the cell itself as solid*/
+    /** Use to directly mark the cell itself as solid. When changed during the map's parallel update the change is
+     * only done once all Entities were updated, see [EntityTiledMap.useParallelUpdate] */
     var markedAsSolid = false
         set(value) {
+            val buffer = map.commandBuffer
+            if (buffer != null) {
+                buffer.setMarkedAsSolid(this, value)
+                return
+            }
+
             val orig = field
             field = value
 
-            if (value != orig) map.floodFill(this)
+            if (value != orig) {
+                map.updateSolidBit(this)
+            }
         }
 
     private var hasSolid = false
@@ -36,10 +48,17 @@ open class MapCell(val x: Int, val y: Int, private val cellSize: Int, val map: E
     /** Each cell may have several tiles (graphical information) */
     private val tiles = Array<Tile>()
 
+    /** If you change the tiles directly, tell the map's [EntityTiledMap.staticTileRenderer], if any */
     fun getTiles(): Array<Tile> = tiles
     fun addTile(tile: Tile) {
         tiles.add(tile)
         tile.cell = this
+        map.staticTileRenderer?.invalidateCell(x, y)
+    }
+
+    fun clearTiles() {
+        tiles.clear()
+        map.staticTileRenderer?.invalidateCell(x, y)
     }
 
     internal fun updateHasSolid() {
@@ -52,16 +71,14 @@ open class MapCell(val x: Int, val y: Int, private val cellSize: Int, val map: E
             }
         }
 
-        if (orig != hasSolid) map.floodFill(this)
+        if (orig != hasSolid) {
+            map.updateSolidBit(this)
+        }
     }
 
     val middleX: Float get() = x + cellSize.toFloat() / 2f
     val middleY: Float get() = y + cellSize.toFloat() / 2f
 
-    /** Different numbers means you can't path-find from one cell to another. -1 means flood fill wasn't performed, so the optimization won't be used */
-    var pathfindingFloodIndex = -1L
-    var floodRegion = 0
-
     inner class PathfindingNode {
         var g: Float = 0f
         var f: Float = 0f
@@ -0,0 +1,67 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.utils.IntArray as GdxIntArray
+import com.dcostap.engine.map.entities.Entity
+import ktx.collections.GdxArray
+
+/**
+ * Changes to the map asked for by Entities while they are updated in parallel (see [EntityTiledMap.useParallelUpdate]).
+ * They are kept here and done later on the main thread, in the order they were asked for.
+ *
+ * Each parallel task has its own buffer, so they need no locking.
+ */
+internal class MapCommandBuffer {
+    private val commands = GdxIntArray()
+    private val targets = GdxArray<Any>()
+
+    fun addEntity(ent: Entity) {
+        commands.add(ADD_ENTITY)
+        targets.add(ent)
+    }
+
+    fun removeEntity(ent: Entity, forever: Boolean) {
+        commands.add(if (forever) REMOVE_ENTITY_FOREVER else REMOVE_ENTITY)
+        targets.add(ent)
+    }
+
+    fun wakeEntity(ent: Entity) {
+        commands.add(WAKE_ENTITY)
+        targets.add(ent)
+    }
+
+    fun setMarkedAsSolid(cell: MapCell, value: Boolean) {
+        commands.add(if (value) MARK_SOLID else UNMARK_SOLID)
+        targets.add(cell)
+    }
+
+    /** Does the changes on the map, then clears the buffer. Call it from the main thread */
+    fun applyTo(map: EntityTiledMap) {
+        for (i in 0 until commands.size) {
+            val target = targets[i]
+            when (commands[i]) {
+                ADD_ENTITY -> map.addEntity(target as Entity)
+                REMOVE_ENTITY -> map.removeEntity(target as Entity, false)
+                REMOVE_ENTITY_FOREVER -> map.removeEntity(target as Entity, true)
+                MARK_SOLID -> (target as MapCell).markedAsSolid = true
+                UNMARK_SOLID -> (target as MapCell).markedAsSolid = false
+                WAKE_ENTITY -> map.wakeEntity(target as Entity)
+            }
+        }
+
+        clear()
+    }
+
+    fun clear() {
+        commands.clear()
+        targets.clear()
+    }
+
+    private companion object {
+        const val ADD_ENTITY = 0
+        const val REMOVE_ENTITY = 1
+        const val REMOVE_ENTITY_FOREVER = 2
+        const val MARK_SOLID = 3
+        const val UNMARK_SOLID = 4
+        const val WAKE_ENTITY = 5
+    }
+}
@@ -0,0 +1,40 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.utils.Array
+import com.dcostap.engine.utils.AStarSearch
+import com.dcostap.engine.utils.MapCellValidator
+import ktx.collections.GdxArray
+
+/**
+ * Path asked for with [PathfindingService.request]. Keep it to check [isDone] and read [path], or wait for the
+ * callbacks, called on the map's update once the path is found.
+ */
+class PathRequest internal constructor(val start: MapCell, val goal: MapCell, val validator: MapCellValidator,
+                                       val allowDiagonals: Boolean, val mode: AStarSearch.Mode) {
+    enum class State {
+        PENDING, SEARCHING, DONE, CANCELLED
+    }
+
+    var state = State.PENDING
+        internal set
+
+    /** Lower is searched first. Lowered by [PathfindingService.priorityAging] each frame it waits */
+    var priority = 0f
+        internal set
+
+    /** Cells of the path, without the start, like [com.dcostap.engine.utils.Pathfinder.findPath]; filled when [isDone] */
+    val path = Array<MapCell>()
+
+    /** Times the search started again because cells changed solid state while it was being done */
+    internal var restarts = 0
+
+    internal val callbacks = GdxArray<(PathRequest) -> Unit>()
+
+    val isDone get() = state == State.DONE
+
+    internal fun isSameSearch(start: MapCell, goal: MapCell, validator: MapCellValidator, allowDiagonals: Boolean,
+                              mode: AStarSearch.Mode): Boolean {
+        return this.start === start && this.goal === goal && this.validator === validator
+                && this.allowDiagonals == allowDiagonals && this.mode == mode
+    }
+}
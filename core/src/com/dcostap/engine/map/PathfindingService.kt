@@ -0,0 +1,172 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.math.Rectangle
+import com.dcostap.engine.utils.AStarSearch
+import com.dcostap.engine.utils.MapCellValidator
+import com.dcostap.engine.utils.Pathfinder
+import ktx.collections.GdxArray
+
+/**
+ * Queue of path searches of the map, done on the map's update a part at a time, for up to [searchBudgetMillis] each
+ * frame, so an expensive search (or its retry to get the closest path) is spread over several frames instead of
+ * stopping the game in one. Use the map's [EntityTiledMap.pathfinding].
+ *
+ * Agents ask for a path with [request] and get a [PathRequest], done after some frames; Entities that all go to the
+ * same place each frame get the same request instead of searching it again. The request with the lowest priority
+ * is searched first: by default its distance to the camera, so agents on screen get their paths first.
+ *
+ * Searches find the same paths as [Pathfinder.findPath], with the settings of [Pathfinder] when the request is done.
+ * If cells change solid state while a search is in progress, it starts again, up to [maxRestarts] times; then it
+ * finishes with what it had, so the path should still be checked when followed.
+ */
+class PathfindingService(val map: EntityTiledMap) {
+    /** Time spent searching each frame; the search in progress always does at least [expansionsPerCheck] cells */
+    var searchBudgetMillis = 2f
+
+    /** Cells expanded between checks of the time spent */
+    var expansionsPerCheck = 256
+        set(value) {
+            if (value < 1) throw IllegalArgumentException("expansionsPerCheck must be at least 1: $value")
+            field = value
+        }
+
+    /** Priority lost each frame a request waits, so requests far from the camera are searched eventually */
+    var priorityAging = 1f
+
+    var maxRestarts = 2
+
+    private val pending = GdxArray<PathRequest>()
+    private var current: PathRequest? = null
+    private var solidChanged = false
+
+    /** Own search, so the one of [Pathfinder.search] can still be used while this one is in progress */
+    private val search = AStarSearch()
+
+    private val dummyRectangle = Rectangle()
+
+    /** Requests not done yet, including the one being searched */
+    val pendingCount get() = pending.size + if (current != null) 1 else 0
+
+    /**
+     * Asks for the path between the cells. If an equal request isn't done yet, that one is returned instead, with the
+     * lowest of both priorities
+     * @param priority lower is searched first; null for the distance in cells from the start to the camera
+     * @param callback called on the map's update when the path is found
+     */
+    fun request(start: MapCell, goal: MapCell, validator: MapCellValidator = Pathfinder.defaultValidator(),
+                priority: Float? = null, callback: ((PathRequest) -> Unit)? = null): PathRequest {
+        if (start.map !== map || goal.map !== map) throw IllegalArgumentException("Cells aren't from this map")
+
+        val allowDiagonals = Pathfinder.allowDiagonals
+        val mode = Pathfinder.searchMode
+        val newPriority = priority ?: getDistanceToCamera(start)
+
+        val existing = findRequest(start, goal, validator, allowDiagonals, mode)
+        if (existing != null) {
+            existing.priority = Math.min(existing.priority, newPriority)
+            if (callback != null) existing.callbacks.add(callback)
+            return existing
+        }
+
+        val request = PathRequest(start, goal, validator, allowDiagonals, mode)
+        request.priority = newPriority
+        if (callback != null) request.callbacks.add(callback)
+        pending.add(request)
+        return request
+    }
+
+    /** Removes the request if it isn't done; its callbacks aren't called */
+    fun cancel(request: PathRequest) {
+        if (request.state == PathRequest.State.DONE || request.state == PathRequest.State.CANCELLED) return
+
+        if (request === current) {
+            search.cancel()
+            current = null
+        } else {
+            pending.removeValue(request, true)
+        }
+
+        request.path.clear()
+        request.state = PathRequest.State.CANCELLED
+    }
+
+    /** Removes all requests not done */
+    fun cancelAll() {
+        current?.let { cancel(it) }
+        while (pending.size > 0) cancel(pending.peek())
+    }
+
+    /** Called by the map when the cell changed solid state */
+    internal fun onSolidChanged() {
+        if (current != null) solidChanged = true
+    }
+
+    /** Searches until the time of the frame runs out. Called on the map's update */
+    fun update() {
+        for (i in 0 until pending.size) pending[i].priority -= priorityAging
+
+        val budgetNanos = (searchBudgetMillis * 1000000).toLong()
+        val deadline = System.nanoTime() + budgetNanos
+
+        while (true) {
+            val request = current ?: startNext() ?: return
+
+            // what was searched so far may not be valid anymore
+            if (solidChanged) {
+                solidChanged = false
+                if (request.restarts < maxRestarts) {
+                    request.restarts++
+                    begin(request)
+                }
+            }
+
+            if (search.step(expansionsPerCheck)) finish(request)
+            if (System.nanoTime() >= deadline) return
+        }
+    }
+
+    private fun startNext(): PathRequest? {
+        if (pending.size == 0) return null
+
+        var next = 0
+        for (i in 1 until pending.size) {
+            if (pending[i].priority < pending[next].priority) next = i
+        }
+
+        val request = pending.removeIndex(next)
+        request.state = PathRequest.State.SEARCHING
+        current = request
+        solidChanged = false
+        begin(request)
+        return request
+    }
+
+    private fun begin(request: PathRequest) {
+        search.begin(request.start, request.goal, request.path, request.validator,
+                allowDiagonals = request.allowDiagonals, mode = request.mode)
+    }
+
+    private fun finish(request: PathRequest) {
+        current = null
+        request.state = PathRequest.State.DONE
+        for (i in 0 until request.callbacks.size) request.callbacks[i](request)
+        request.callbacks.clear()
+    }
+
+    private fun findRequest(start: MapCell, goal: MapCell, validator: MapCellValidator, allowDiagonals: Boolean,
+                            mode: AStarSearch.Mode): PathRequest? {
+        current?.let { if (it.isSameSearch(start, goal, validator, allowDiagonals, mode)) return it }
+        for (i in 0 until pending.size) {
+            if (pending[i].isSameSearch(start, goal, validator, allowDiagonals, mode)) return pending[i]
+        }
+
+        return null
+    }
+
+    private fun getDistanceToCamera(cell: MapCell): Float {
+        val camera = map.getCameraRectangle(dummyRectangle, 0)
+        val x = camera.x + camera.width / 2 - (cell.x + 0.5f)
+        val y = camera.y + camera.height / 2 - (cell.y + 0.5f)
+        return Math.sqrt((x * x + y * y).toDouble()).toFloat()
+    }
+}
@@ -0,0 +1,101 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.math.Vector2
+import com.dcostap.engine.map.entities.Entity
+
+/**
+ * Result of a raycast or segment query, see [SpatialIndex.raycast] and [EntityTiledMap.raycastCells].
+ * Create one and reuse it: queries overwrite it instead of allocating.
+ */
+class RaycastHit {
+    /** Entity hit, when searching Entities */
+    var entity: Entity? = null
+    /** MapCell hit, when searching MapCells */
+    var cell: MapCell? = null
+
+    /** Where the ray entered the Entity's BB or the cell */
+    val point = Vector2()
+    /** Normal of the side hit; 0, 0 when the ray started inside */
+    val normal = Vector2()
+    /** Distance from the origin of the ray to [point] */
+    var distance = 0f
+
+    val hasHit get() = entity != null || cell != null
+
+    fun reset() {
+        entity = null
+        cell = null
+        point.setZero()
+        normal.setZero()
+        distance = 0f
+    }
+}
+
+/** Walks the cells of a uniform grid crossed by a ray, in order, using a DDA. Cells are squares of [cellSize] */
+internal class GridTraversal {
+    var cellX = 0
+        private set
+    var cellY = 0
+        private set
+
+    /** Distance along the ray where it enters the current cell */
+    var distanceEnter = 0f
+        private set
+    /** Distance along the ray where it leaves the current cell */
+    val distanceExit get() = Math.min(nextBorderX, nextBorderY)
+
+    /** Normal of the side of the current cell the ray entered through; 0, 0 for the first cell */
+    var normalX = 0
+        private set
+    var normalY = 0
+        private set
+
+    private var stepX = 0
+    private var stepY = 0
+    private var nextBorderX = 0f
+    private var nextBorderY = 0f
+    private var borderDistanceX = 0f
+    private var borderDistanceY = 0f
+
+    /** @param directionX direction must be normalized */
+    fun start(originX: Float, originY: Float, directionX: Float, directionY: Float, cellSize: Float) {
+        cellX = Math.floor(originX / cellSize.toDouble()).toInt()
+        cellY = Math.floor(originY / cellSize.toDouble()).toInt()
+        distanceEnter = 0f
+        normalX = 0
+        normalY = 0
+
+        stepX = Math.signum(directionX).toInt()
+        stepY = Math.signum(directionY).toInt()
+
+        borderDistanceX = if (stepX == 0) Float.MAX_VALUE else cellSize / Math.abs(directionX)
+        borderDistanceY = if (stepY == 0) Float.MAX_VALUE else cellSize / Math.abs(directionY)
+
+        nextBorderX = when {
+            stepX > 0 -> ((cellX + 1) * cellSize - originX) / directionX
+            stepX < 0 -> (cellX * cellSize - originX) / directionX
+            else -> Float.MAX_VALUE
+        }
+        nextBorderY = when {
+            stepY > 0 -> ((cellY + 1) * cellSize - originY) / directionY
+            stepY < 0 -> (cellY * cellSize - originY) / directionY
+            else -> Float.MAX_VALUE
+        }
+    }
+
+    fun step() {
+        if (nextBorderX < nextBorderY) {
+            cellX += stepX
+            distanceEnter = nextBorderX
+            nextBorderX += borderDistanceX
+            normalX = -stepX
+            normalY = 0
+        } else {
+            cellY += stepY
+            distanceEnter = nextBorderY
+            nextBorderY += borderDistanceY
+            normalX = 0
+            normalY = -stepY
+        }
+    }
+}
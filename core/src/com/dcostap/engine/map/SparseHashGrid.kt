@@ -0,0 +1,247 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.graphics.Color
+import com.badlogic.gdx.math.MathUtils
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.utils.LongMap
+import com.dcostap.engine.map.entities.BoundingBoxLayer
+import com.dcostap.engine.map.entities.Entity
+import com.dcostap.engine.utils.GameDrawer
+import ktx.collections.GdxArray
+import java.util.*
+
+/**
+ * [SpatialIndex] with a uniform grid of cells of size [cellSize], like [CollisionTree], but only the cells with BBs
+ * exist: they are kept in a hash map keyed by the cell coordinates. Nothing is allocated up front and memory doesn't
+ * depend on the map's size, so it suits huge or procedurally growing worlds.
+ *
+ * Queries covering more cells than the occupied ones loop through the occupied cells instead. Like in [CollisionTree],
+ * a BB in several cells is only reported from the first cell of the query it occupies.
+ */
+class SparseHashGrid(override val cellSize: Int, entityTiledMap: EntityTiledMap, treeSlot: Int = 0)
+    : BaseSpatialIndex(entityTiledMap, treeSlot)
+{
+    override val type get() = SpatialIndexType.SPARSE_HASH_GRID
+
+    /** Cells of each layer, indexed by [BoundingBoxLayer.id] */
+    private val layerCells = GdxArray<SparseCells?>()
+
+    // range of cells occupied by each id
+    private var boxMinX = IntArray(boxCapacity)
+    private var boxMinY = IntArray(boxCapacity)
+    private var boxMaxX = IntArray(boxCapacity)
+    private var boxMaxY = IntArray(boxCapacity)
+
+    override fun onBoxCapacityChanged(capacity: Int) {
+        boxMinX = Arrays.copyOf(boxMinX, capacity)
+        boxMinY = Arrays.copyOf(boxMinY, capacity)
+        boxMaxX = Arrays.copyOf(boxMaxX, capacity)
+        boxMaxY = Arrays.copyOf(boxMaxY, capacity)
+    }
+
+    private fun layerCellsOrNull(layer: BoundingBoxLayer): SparseCells? {
+        return if (layer.id < layerCells.size) layerCells[layer.id] else null
+    }
+
+    private fun layerCells(layer: BoundingBoxLayer): SparseCells {
+        if (layerCells.size <= layer.id) layerCells.setSize(layer.id + 1)
+        return layerCells[layer.id] ?: SparseCells().also { layerCells[layer.id] = it }
+    }
+
+    private fun cellCoord(value: Float) = MathUtils.floor(value / cellSize)
+
+    /** Whether the cell is the first one of the query range occupied by the id; the only one it is reported from */
+    private fun isFirstCellOfQuery(id: Int, x: Int, y: Int, minX: Int, minY: Int): Boolean {
+        return x == Math.max(minX, boxMinX[id]) && y == Math.max(minY, boxMinY[id])
+    }
+
+    override fun queryBoxes(x: Float, y: Float, width: Float, height: Float, layer: BoundingBoxLayer,
+                            excludeDynamicEntities: Boolean, excludeStaticEntities: Boolean,
+                            entityArrayToPopulate: GdxArray<Entity>) {
+        val cells = layerCellsOrNull(layer) ?: return
+
+        val area = width * height
+        val minX = cellCoord(x)
+        val minY = cellCoord(y)
+        val maxX = cellCoord(x + width)
+        val maxY = cellCoord(y + height)
+
+        if ((maxX - minX + 1).toLong() * (maxY - minY + 1) > cells.size) {
+            for (b in 0 until cells.size) {
+                val bucket = cells.bucketAt(b)
+                val cellX = SparseCells.keyX(bucket.key)
+                val cellY = SparseCells.keyY(bucket.key)
+                if (cellX < minX || cellX > maxX || cellY < minY || cellY > maxY) continue
+
+                for (i in 0 until bucket.size) {
+                    val id = bucket.ids[i]
+                    if (!isFirstCellOfQuery(id, cellX, cellY, minX, minY)) continue
+                    reportBox(id, area, excludeDynamicEntities, excludeStaticEntities, entityArrayToPopulate)
+                }
+            }
+        } else {
+            for (cellY in minY..maxY) {
+                for (cellX in minX..maxX) {
+                    val bucket = cells.get(cellX, cellY) ?: continue
+                    for (i in 0 until bucket.size) {
+                        val id = bucket.ids[i]
+                        if (!isFirstCellOfQuery(id, cellX, cellY, minX, minY)) continue
+                        reportBox(id, area, excludeDynamicEntities, excludeStaticEntities, entityArrayToPopulate)
+                    }
+                }
+            }
+        }
+    }
+
+    override fun insertBox(id: Int, rectangle: Rectangle) {
+        boxMinX[id] = cellCoord(rectangle.x)
+        boxMinY[id] = cellCoord(rectangle.y)
+        boxMaxX[id] = cellCoord(rectangle.x + rectangle.width)
+        boxMaxY[id] = cellCoord(rectangle.y + rectangle.height)
+
+        val cells = layerCells(boxes[id]!!.layer)
+        for (y in boxMinY[id]..boxMaxY[id]) {
+            for (x in boxMinX[id]..boxMaxX[id]) {
+                cells.add(x, y, id)
+            }
+        }
+    }
+
+    /** Removes the id only from the cells it left and adds it only to the cells it entered */
+    override fun moveBox(id: Int, rectangle: Rectangle) {
+        val minX = cellCoord(rectangle.x)
+        val minY = cellCoord(rectangle.y)
+        val maxX = cellCoord(rectangle.x + rectangle.width)
+        val maxY = cellCoord(rectangle.y + rectangle.height)
+
+        val oldMinX = boxMinX[id]
+        val oldMinY = boxMinY[id]
+        val oldMaxX = boxMaxX[id]
+        val oldMaxY = boxMaxY[id]
+
+        if (minX == oldMinX && minY == oldMinY && maxX == oldMaxX && maxY == oldMaxY) return
+
+        val cells = layerCells(boxes[id]!!.layer)
+        for (y in oldMinY..oldMaxY) {
+            for (x in oldMinX..oldMaxX) {
+                if (x in minX..maxX && y in minY..maxY) continue
+                cells.remove(x, y, id)
+            }
+        }
+
+        for (y in minY..maxY) {
+            for (x in minX..maxX) {
+                if (x in oldMinX..oldMaxX && y in oldMinY..oldMaxY) continue
+                cells.add(x, y, id)
+            }
+        }
+
+        boxMinX[id] = minX
+        boxMinY[id] = minY
+        boxMaxX[id] = maxX
+        boxMaxY[id] = maxY
+    }
+
+    override fun removeBox(id: Int) {
+        val cells = layerCells(boxes[id]!!.layer)
+        for (y in boxMinY[id]..boxMaxY[id]) {
+            for (x in boxMinX[id]..boxMaxX[id]) {
+                cells.remove(x, y, id)
+            }
+        }
+    }
+
+    /** Draws the occupied cells */
+    override fun debugDrawCellBounds(gameDrawer: GameDrawer) {
+        gameDrawer.color = Color.RED
+        gameDrawer.alpha = 0.3f
+
+        for (cells in layerCells) {
+            if (cells == null) continue
+            for (b in 0 until cells.size) {
+                val key = cells.bucketAt(b).key
+                gameDrawer.drawRectangle((SparseCells.keyX(key) * cellSize).toFloat(),
+                        (SparseCells.keyY(key) * cellSize).toFloat(), cellSize.toFloat(), cellSize.toFloat(),
+                        false, 0.06f)
+            }
+        }
+
+        gameDrawer.resetColor()
+        gameDrawer.resetAlpha()
+    }
+}
+
+/**
+ * Buckets of BB ids of cells with any int coordinates; only the cells with ids exist. Empty buckets are reused.
+ * Occupied buckets are also kept in a list, so they can be looped by index without the shared iterators of the map.
+ */
+internal class SparseCells {
+    class Bucket {
+        var ids = IntArray(4)
+        var size = 0
+        var key = 0L
+            internal set
+        /** Position in the list of occupied buckets */
+        internal var index = 0
+    }
+
+    private val buckets = LongMap<Bucket>()
+    private val occupied = GdxArray<Bucket>()
+    private val freeBuckets = GdxArray<Bucket>()
+
+    /** Number of cells with ids */
+    val size get() = occupied.size
+
+    fun get(x: Int, y: Int): Bucket? = buckets.get(key(x, y))
+
+    /** Occupied bucket number [index], from 0 until [size]; don't modify the buckets while looping */
+    fun bucketAt(index: Int): Bucket = occupied[index]
+
+    fun add(x: Int, y: Int, id: Int) {
+        val key = key(x, y)
+        var bucket = buckets.get(key)
+        if (bucket == null) {
+            bucket = if (freeBuckets.size > 0) freeBuckets.pop() else Bucket()
+            bucket.key = key
+            bucket.index = occupied.size
+            buckets.put(key, bucket)
+            occupied.add(bucket)
+        }
+
+        if (bucket.size == bucket.ids.size)
+            bucket.ids = Arrays.copyOf(bucket.ids, bucket.size * 2)
+
+        bucket.ids[bucket.size++] = id
+    }
+
+    /** Order inside the bucket isn't kept: last id is swapped into the removed position */
+    fun remove(x: Int, y: Int, id: Int) {
+        val key = key(x, y)
+        val bucket = buckets.get(key) ?: return
+        val last = bucket.size - 1
+        for (i in 0..last) {
+            if (bucket.ids[i] == id) {
+                bucket.ids[i] = bucket.ids[last]
+                bucket.size = last
+                break
+            }
+        }
+
+        if (bucket.size == 0) {
+            buckets.remove(key)
+
+            val moved = occupied.peek()
+            occupied[bucket.index] = moved
+            moved.index = bucket.index
+            occupied.pop()
+
+            freeBuckets.add(bucket)
+        }
+    }
+
+    companion object {
+        fun key(x: Int, y: Int) = (x.toLong() shl 32) or (y.toLong() and 0xffffffffL)
+        fun keyX(key: Long) = (key shr 32).toInt()
+        fun keyY(key: Long) = key.toInt()
+    }
+}
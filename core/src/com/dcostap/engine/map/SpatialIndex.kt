@@ -0,0 +1,171 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.math.Vector2
+import com.dcostap.engine.map.entities.BoundingBoxLayer
+import com.dcostap.engine.map.entities.Entity
+import com.dcostap.engine.utils.GameDrawer
+import ktx.collections.GdxArray
+
+/**
+ * Holds the bounding boxes of the Entities of a map to answer where they are, without looping through all of them.
+ * [EntityTiledMap] keeps two, see [EntityTiledMap.collisionTree] and [EntityTiledMap.collisionTreeForEntityColliding].
+ *
+ * Holds dynamic and static entities as separate groups
+ * - Dynamic entities _that moved_ are updated on each frame, with [resetDynamicEntities]
+ * - Static entities are added only when created, until they are removed
+ * - Note: Dynamic entities can move, Static entities can't!
+ *
+ * Query methods accept the [BoundingBoxLayer] of the BBs to search for, or its name. Entities without a BB of that layer
+ * are ignored. Returned Arrays are reused by the index, so don't keep references to them.
+ *
+ * Queries taking an `out` Array (like [nearest]) or a [RaycastHit] write the results there, and keep their buffers per
+ * thread instead of in the index: they can be nested (for example, called from
+ * the filter of another query) and called from several threads at the same time, as long as the index isn't modified
+ * meanwhile. Queries including dynamic Entities first update the ones that moved, which modifies the index: so they
+ * can only run on several threads when no dynamic Entity moved since the last [resetDynamicEntities], or during the
+ * map's parallel update, see [updateDynamicEntitiesThatMoved].
+ *
+ * All coordinates are in game units
+ *
+ * @see SpatialIndexType for the available implementations
+ */
+interface SpatialIndex {
+    val type: SpatialIndexType
+
+    /** Size the space is split by; smallest node size in trees */
+    val cellSize: Int
+
+    /** Possible colliding Entities: the ones whose BB may touch the rectangle. Includes Entities outside of the map */
+    fun getPossibleCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                     filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    fun getPossibleCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, boundingBoxesName: String = "default",
+                                     filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    /** Not really exact, point is replicated with a rectangle of size 1x1 pixels; point being the origin */
+    fun getPossibleCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                     filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    fun getPossibleCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, boundingBoxesName: String = "default",
+                                     filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    fun getPossibleCollidingEntities(point: Vector2, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                     filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    fun getPossibleCollidingEntities(point: Vector2, includeDynamicEntities: Boolean, boundingBoxesName: String = "default",
+                                     filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    /** Like the other overloads, but adds the Entities to [out], which isn't cleared
+     * @return [out] */
+    fun getPossibleCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                     out: GdxArray<Entity>, filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    fun getPossibleCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                                     out: GdxArray<Entity>, filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    /** Entities whose BB overlaps the rectangle */
+    fun getCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                             filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    fun getCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, boundingBoxesName: String = "default",
+                             filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    fun getCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                             filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    fun getCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, boundingBoxesName: String = "default",
+                             filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    fun getCollidingEntities(point: Vector2, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                             filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    fun getCollidingEntities(point: Vector2, includeDynamicEntities: Boolean, boundingBoxesName: String = "default",
+                             filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    /** Like the other overloads, but adds the Entities to [out], which isn't cleared
+     * @return [out] */
+    fun getCollidingEntities(rectangle: Rectangle, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                             out: GdxArray<Entity>, filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    fun getCollidingEntities(x: Float, y: Float, includeDynamicEntities: Boolean, layer: BoundingBoxLayer,
+                             out: GdxArray<Entity>, filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    /** Entities around the rectangle up to around maxDistance, ordered from (possibly) closest to farthest.
+     * Use another method for collision-checking, and [nearest] when the order must be exact */
+    fun getClosestEntities(rectangle: Rectangle, maxDistance: Int, layer: BoundingBoxLayer): GdxArray<Entity>
+
+    fun getClosestEntities(rectangle: Rectangle, maxDistance: Int, boundingBoxName: String = "default"): GdxArray<Entity>
+
+    /**
+     * Exact k nearest Entities to the point, measuring the distance from the point to their BB of the layer (0 when
+     * the point is inside). Includes dynamic Entities.
+     *
+     * @param maxDistance Entities farther than this are ignored. Can't be infinite
+     * @param out cleared, then filled with up to [k] Entities ordered from closest to farthest
+     * @return [out]
+     */
+    fun nearest(k: Int, point: Vector2, maxDistance: Float, layer: BoundingBoxLayer, out: GdxArray<Entity>,
+                filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    fun nearest(k: Int, point: Vector2, maxDistance: Float, boundingBoxName: String, out: GdxArray<Entity>,
+                filter: (Entity) -> Boolean = {true}): GdxArray<Entity>
+
+    /**
+     * First Entity hit by the ray, walking the cells it crosses in order and stopping at the first one with a hit.
+     * Includes dynamic Entities.
+     *
+     * @param direction doesn't need to be normalized
+     * @param maxDistance length of the ray. Can't be infinite
+     * @param hit overwritten with the result
+     * @return whether an Entity was hit
+     */
+    fun raycast(origin: Vector2, direction: Vector2, maxDistance: Float, layer: BoundingBoxLayer, hit: RaycastHit,
+                filter: (Entity) -> Boolean = {true}): Boolean
+
+    fun raycast(origin: Vector2, direction: Vector2, maxDistance: Float, boundingBoxName: String, hit: RaycastHit,
+                filter: (Entity) -> Boolean = {true}): Boolean
+
+    /** Like [raycast], from [start] to [end] */
+    fun segmentQuery(start: Vector2, end: Vector2, layer: BoundingBoxLayer, hit: RaycastHit,
+                     filter: (Entity) -> Boolean = {true}): Boolean
+
+    fun segmentQuery(start: Vector2, end: Vector2, boundingBoxName: String, hit: RaycastHit,
+                     filter: (Entity) -> Boolean = {true}): Boolean
+
+    fun addStaticEntity(ent: Entity)
+
+    fun removeStaticEntity(ent: Entity)
+
+    /** Dynamic Entity that moved after the last [resetDynamicEntities]; updated before the next query that includes
+     * dynamic Entities */
+    fun addDynamicEntityThatMoved(entity: Entity)
+
+    /** Updates the dynamic Entities added with [addDynamicEntityThatMoved]. Done by the queries that include dynamic
+     * Entities, except while the map updates Entities in parallel (see [EntityTiledMap.useParallelUpdate]), so queries
+     * there don't modify the index */
+    fun updateDynamicEntitiesThatMoved()
+
+    /** Removes the dynamic Entities no longer in the map, adds the new ones and updates the ones that moved */
+    fun resetDynamicEntities(updatedDynamicEntityList: GdxArray<Entity>)
+
+    fun debugDrawCellBounds(gameDrawer: GameDrawer)
+}
+
+/** Implementations of [SpatialIndex] a map may use, see [EntityTiledMap.initMap] */
+enum class SpatialIndexType {
+    /** [CollisionTree]: uniform grid of cells covering the map. Best when BBs have similar sizes, around the cell size */
+    GRID,
+    /** [LooseQuadTree]: each BB is held by one node of a size fit to it. Best when BB sizes vary a lot */
+    LOOSE_QUADTREE,
+    /** [SparseHashGrid]: uniform grid that only allocates occupied cells. Best for huge or mostly empty maps */
+    SPARSE_HASH_GRID;
+
+    fun create(cellSize: Int, mapSizeX: Int, mapSizeY: Int, entityTiledMap: EntityTiledMap, treeSlot: Int): SpatialIndex {
+        return when (this) {
+            GRID -> CollisionTree(cellSize, mapSizeX, mapSizeY, entityTiledMap, treeSlot)
+            LOOSE_QUADTREE -> LooseQuadTree(cellSize, mapSizeX, mapSizeY, entityTiledMap, treeSlot)
+            SPARSE_HASH_GRID -> SparseHashGrid(cellSize, entityTiledMap, treeSlot)
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.dcostap.engine.map
+
+import com.badlogic.gdx.graphics.Color
+import com.badlogic.gdx.graphics.Texture
+import com.badlogic.gdx.graphics.g2d.Sprite
+import com.badlogic.gdx.utils.FloatArray as GdxFloatArray
+import com.badlogic.gdx.utils.IntArray as GdxIntArray
+import com.dcostap.engine.utils.GameDrawer
+import com.dcostap.engine.utils.input.InputController
+import ktx.collections.GdxArray
+
+/**
+ * Draws the map's tiles from vertices built once, instead of resolving each tile's texture and computing its vertices
+ * every frame. Set it as the map's [EntityTiledMap.staticTileRenderer].
+ *
+ * The map is split in square chunks of [chunkSize] cells. In each chunk, the tiles of each row and depth are baked
+ * together into one [TileStrip]: it is drawn with one call to the batch, and has the depth and y of those tiles, so
+ * Entities are still drawn in between tiles like before. Strips are also added row by row from the top, as
+ * [DrawOrderSorter] expects from tiles.
+ *
+ * A chunk is baked again the next time it is drawn after [MapCell.addTile] or [MapCell.clearTiles] on any of its
+ * cells. Other changes to tiles (their depth, texture name or rotation, or changing [MapCell.getTiles] directly) need
+ * [invalidateCell]; and reloading the texture atlas needs [invalidateAll].
+ *
+ * Only tiles whose class is [Tile] are baked. Subclasses may draw in other ways, so they are drawn one by one as usual,
+ * after the strip of their row and depth.
+ */
+class StaticTileRenderer(val map: EntityTiledMap, val chunkSize: Int = 16) {
+    val chunksX = (map.width + chunkSize - 1) / chunkSize
+    val chunksY = (map.height + chunkSize - 1) / chunkSize
+
+    private val chunks = Array(chunksX * chunksY) { Chunk(it % chunksX, it / chunksX) }
+
+    private val sprite = Sprite()
+
+    private inner class Chunk(val x: Int, val y: Int) {
+        var isDirty = true
+
+        /** Drawables of each row of the chunk, from the bottom one */
+        val rows = Array(chunkSize) { GdxArray<DrawableSortable>() }
+
+        val startX get() = x * chunkSize
+        val startY get() = y * chunkSize
+        val endX get() = Math.min(map.width, startX + chunkSize)
+        val endY get() = Math.min(map.height, startY + chunkSize)
+    }
+
+    /** Tiles of one depth in one row of a chunk, with their vertices ready for the batch */
+    class TileStrip internal constructor(val depth: Int, val y: Int) : DrawableSortable {
+        internal val vertices = GdxFloatArray()
+        internal val textures = GdxArray<Texture>()
+
+        /** Where the vertices of each texture in [textures] end */
+        internal val textureEnds = GdxIntArray()
+
+        val tileCount get() = vertices.size / SPRITE_SIZE
+
+        internal fun add(sprite: Sprite) {
+            val texture = sprite.texture
+            if (textures.size == 0 || textures.peek() !== texture) {
+                textures.add(texture)
+                textureEnds.add(vertices.size)
+            }
+
+            vertices.addAll(sprite.vertices, 0, SPRITE_SIZE)
+            textureEnds[textureEnds.size - 1] = vertices.size
+        }
+
+        override fun draw(gameDrawer: GameDrawer, delta: Float) {
+            var start = 0
+            for (i in 0 until textures.size) {
+                val end = textureEnds[i]
+                gameDrawer.batch.draw(textures[i], vertices.items, start, end - start)
+                start = end
+            }
+        }
+
+        override fun getDrawingRepresentativeDepth() = depth
+
+        override fun getDrawingRepresentativeY() = y.toFloat()
+
+        override fun getDrawingRepresentativeYDepth() = 0
+
+        override fun handleTouchInput(inputController: InputController, stageInputController: InputController?) = false
+
+        private companion object {
+            /** Floats of the 4 vertices of a sprite: position, color and texture coordinates */
+            const val SPRITE_SIZE = 20
+        }
+    }
+
+    /** Adds the strips and tiles of the cells inside the limits (inclusive) to [out], by rows from the top */
+    fun addDrawables(startX: Int, startY: Int, endX: Int, endY: Int, out: GdxArray<DrawableSortable>) {
+        if (startX > endX || startY > endY) return
+
+        val firstChunkX = startX / chunkSize
+        val lastChunkX = endX / chunkSize
+        for (yy in endY downTo startY) {
+            val chunkY = yy / chunkSize
+            for (chunkX in firstChunkX..lastChunkX) {
+                val chunk = chunks[chunkX + chunkY * chunksX]
+                if (chunk.isDirty) bake(chunk)
+                out.addAll(chunk.rows[yy - chunk.startY])
+            }
+        }
+    }
+
+    private fun bake(chunk: Chunk) {
+        chunk.isDirty = false
+
+        val gameDrawer = map.screen.gameDrawer
+        for (yy in chunk.startY until chunk.endY) {
+            val row = chunk.rows[yy - chunk.startY]
+            row.clear()
+
+            // strips first, then tiles drawn one by one
+            var strips = 0
+            for (xx in chunk.startX until chunk.endX) {
+                for (tile in map.getMapCell(xx, yy).getTiles()) {
+                    if (tile.javaClass != Tile::class.java) continue
+
+                    val region = tile.sprite
+                    sprite.setRegion(region)
+                    sprite.setBounds(xx.toFloat(), yy.toFloat(), gameDrawer.getUnitWidth(region), gameDrawer.getUnitHeight(region))
+                    sprite.setOrigin(0f, 0f)
+                    sprite.rotation = tile.rotation.toFloat()
+                    sprite.color = Color.WHITE
+
+                    var strip: TileStrip? = null
+                    for (i in 0 until strips) {
+                        if ((row[i] as TileStrip).depth == tile.depth) {
+                            strip = row[i] as TileStrip
+                            break
+                        }
+                    }
+
+                    if (strip == null) {
+                        strip = TileStrip(tile.depth, yy)
+                        row.insert(strips++, strip)
+                    }
+
+                    strip.add(sprite)
+                }
+            }
+
+            for (xx in chunk.startX until chunk.endX) {
+                for (tile in map.getMapCell(xx, yy).getTiles()) {
+                    if (tile.javaClass != Tile::class.java) row.add(tile)
+                }
+            }
+        }
+    }
+
+    /** Bakes again the chunk of the cell the next time it is drawn */
+    fun invalidateCell(x: Int, y: Int) {
+        if (!map.isInsideMap(x, y)) return
+        chunks[x / chunkSize + (y / chunkSize) * chunksX].isDirty = true
+    }
+
+    fun invalidateAll() {
+        for (chunk in chunks) chunk.isDirty = true
+    }
+}
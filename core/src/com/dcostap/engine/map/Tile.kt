@@ -10,13 +10,25 @@ import com.dcostap.engine.utils.input.InputController
 /**
  * Created by Darius on 11/01/2018
  */
-open class Tile(val map: EntityTiledMap, var depth: Int, var tileSprName: String) : DrawableSortable {
+open class Tile(val map: EntityTiledMap, var depth: Int, tileSprName: String) : DrawableSortable {
     var rotation: Int = 0
     lateinit var cell: MapCell
 
+    var tileSprName = tileSprName
+        set(value) {
+            field = value
+            textureHandle = -1
+        }
+
+    /** Handle of [tileSprName] in the screen's Assets, found the first time it is drawn.
+     * @see com.dcostap.engine.Assets.getTextureHandle */
+    var textureHandle = -1
+
     val sprite: TextureRegion
         get() {
-            return map.screen.assets.getTexture(tileSprName)
+            val assets = map.screen.assets
+            if (textureHandle == -1) textureHandle = assets.getTextureHandle(tileSprName)
+            return assets.getTexture(textureHandle)
         }
 
     override fun draw(gameDrawer: GameDrawer, delta: Float) {
@@ -4,6 +4,7 @@ import com.badlogic.gdx.math.Rectangle
 import com.badlogic.gdx.utils.Json
 import com.badlogic.gdx.utils.JsonValue
 import com.dcostap.Engine
+import com.dcostap.engine.map.BaseSpatialIndex
 import com.dcostap.engine.utils.JsonSavedObject
 import com.dcostap.engine.utils.Saveable
 import com.dcostap.engine.utils.addChildValue
@@ -15,7 +16,8 @@ import java.lang.RuntimeException
  *
  * Holds information about the BB's width, height and offset in [internalRect].
  *
- * [rect] represents the BB in world, adapted to offset and entity's position.
+ * [rect] represents the BB in world, adapted to offset and entity's position. It is only recalculated when the
+ * Entity moved or the BB was modified since the last access.
  *
  * Modifying the relative BB (the only way to modify the actual BB) raises
  * exception if it is marked as [isStatic].
@@ -27,20 +29,49 @@ open class BoundingBox(val entity: Entity, @Transient val name: String) : Saveab
     private val internalRect = Rectangle(0f, 0f, 0f, 0f)
     private val internalRectInWorld = Rectangle(0f, 0f, 0f, 0f)
 
+    /** Interned [name], used to filter BBs without comparing Strings */
+    @Transient val layer = BoundingBoxLayer.get(name)
+
     val isStatic get() = entity.isStatic
 
-    /** The BB rectangle positioned in the world according to [internalRect] */
+    /** Id assigned to this BB by each [com.dcostap.engine.map.SpatialIndex] it is added to, -1 when not added.
+     * Index is the tree's [BaseSpatialIndex.treeSlot] */
+    @Transient internal val treeIds = IntArray(maxTreeSlots) { -1 }
+
+    /** The BB rectangle positioned in the world according to [internalRect].
+     *
+     * While the map updates Entities in parallel (see [com.dcostap.engine.map.EntityTiledMap.useParallelUpdate]) it
+     * isn't written: other Entities get it as it was when the parallel update started, and the Entity being updated
+     * gets a rectangle of its own, placed where the Entity is now */
     val rect: Rectangle get() {
-        updateAbsoluteBB()
+        if (worldRectOutdated || entity.x != worldRectEntityX || entity.y != worldRectEntityY) {
+            val map = entity.map
+            if (map != null && map.isInParallelPhase) {
+                if (!map.isUpdatedOnThisThread(entity)) return internalRectInWorld
+                return rectWhileUpdatingInParallel.set(entity.x + internalRect.x, entity.y + internalRect.y,
+                        internalRect.width, internalRect.height)
+            }
+
+            updateAbsoluteBB()
+        }
+
         return internalRectInWorld
     }
 
+    @Transient private val rectWhileUpdatingInParallel = Rectangle()
+
+    // Entity's position used the last time internalRectInWorld was calculated
+    private var worldRectEntityX = 0f
+    private var worldRectEntityY = 0f
+    private var worldRectOutdated = true
+
     private var stopAdjustments = false
 
     var width get() = internalRect.width
         set(value) {
             checkIfAllowedToModify()
             internalRect.width = value
+            worldRectOutdated = true
             if (!stopAdjustments) {
                 adjustBBSize()
                 updateAbsoluteBB()
@@ -51,6 +82,7 @@ open class BoundingBox(val entity: Entity, @Transient val name: String) : Saveab
         set(value) {
             checkIfAllowedToModify()
             internalRect.height = value
+            worldRectOutdated = true
             if (!stopAdjustments) {
                 adjustBBSize()
                 updateAbsoluteBB()
@@ -61,6 +93,7 @@ open class BoundingBox(val entity: Entity, @Transient val name: String) : Saveab
         set(value) {
             checkIfAllowedToModify()
             internalRect.x = value
+            worldRectOutdated = true
             if (!stopAdjustments) {
                 adjustBBSize()
                 updateAbsoluteBB()
@@ -70,6 +103,7 @@ open class BoundingBox(val entity: Entity, @Transient val name: String) : Saveab
         set(value) {
             checkIfAllowedToModify()
             internalRect.y = value
+            worldRectOutdated = true
             if (!stopAdjustments) {
                 adjustBBSize()
                 updateAbsoluteBB()
@@ -95,11 +129,17 @@ open class BoundingBox(val entity: Entity, @Transient val name: String) : Saveab
     }
 
     /** world coordinates, when applying [offsetX] to [Entity.x] */
-    val x get() = internalRectInWorld.x
+    val x get() = rect.x
     /** world coordinates, when applying [offsetY] to [Entity.y] */
-    val y get() = internalRectInWorld.x
+    val y get() = rect.y
 
     private fun updateAbsoluteBB() {
+        // done by the main thread after the parallel update, see rect
+        if (entity.map?.isInParallelPhase == true) return
+
+        worldRectEntityX = entity.x
+        worldRectEntityY = entity.y
+        worldRectOutdated = false
         internalRectInWorld.x = entity.x + internalRect.x
         internalRectInWorld.y = entity.y + internalRect.y
         internalRectInWorld.width = internalRect.width
@@ -137,5 +177,11 @@ open class BoundingBox(val entity: Entity, @Transient val name: String) : Saveab
         val libgdxJson = Engine.libgdxJson
         internalRect.set(libgdxJson.fromJson(Rectangle::class.java, json.getString("internalRect")))
         internalRectInWorld.set(libgdxJson.fromJson(Rectangle::class.java, json.getString("internalRectInWorld")))
+        worldRectOutdated = true
+    }
+
+    companion object {
+        /** Max number of [com.dcostap.engine.map.SpatialIndex] a BB can be added to at the same time */
+        const val maxTreeSlots = 2
     }
 }
@@ -0,0 +1,34 @@
+package com.dcostap.engine.map.entities
+
+import ktx.collections.GdxArray
+import ktx.collections.GdxMap
+
+/**
+ * Interned name of a [BoundingBox]. Each different name is registered once and gets a small int [id], so code that
+ * filters BBs by name (like [com.dcostap.engine.map.CollisionTree] queries) compares ints or indexes arrays instead of
+ * comparing Strings.
+ *
+ * Get the layer with [get]; keep the returned object around instead of looking it up each time when possible.
+ */
+class BoundingBoxLayer private constructor(val name: String, val id: Int) {
+    override fun toString() = name
+
+    companion object {
+        private val layersByName = GdxMap<String, BoundingBoxLayer>()
+        private val layers = GdxArray<BoundingBoxLayer>()
+
+        /** Layer of the BB every Entity has, named "default" */
+        @JvmField val default = get("default")
+
+        /** @return the layer with that name, registered the first time it is asked for */
+        @JvmStatic @Synchronized fun get(name: String): BoundingBoxLayer {
+            return layersByName.get(name) ?: BoundingBoxLayer(name, layers.size).also {
+                layers.add(it)
+                layersByName.put(name, it)
+            }
+        }
+
+        /** Number of registered layers; ids go from 0 to count - 1 */
+        @JvmStatic val count get() = layers.size
+    }
+}
@@ -76,8 +76,14 @@ abstract class CollidingEntity @JvmOverloads constructor(position: Vector2 = Vec
     var onlyCollideAgainstMapCells = false
 
     var collidingBB: String = "default"
+        set(value) {field = value; collidingLayer = BoundingBoxLayer.get(value)}
     /** will check collision with other Entities which have this BB */
     var othersCollidingBB: String = "default"
+        set(value) {field = value; othersCollidingLayer = BoundingBoxLayer.get(value)}
+
+    internal var collidingLayer = BoundingBoxLayer.default
+        private set
+    private var othersCollidingLayer = BoundingBoxLayer.default
 
     override fun update(delta: Float) {
         super.update(delta)
@@ -100,7 +106,7 @@ abstract class CollidingEntity @JvmOverloads constructor(position: Vector2 = Vec
 
         // collision response with collision tree
         if (!onlyCollideAgainstMapCells) {
-            updateCollidingState(collisionResponseIncludeDynamicEnts, collidingBB)
+            updateCollidingState(collisionResponseIncludeDynamicEnts, collidingLayer)
 
             if (isCollidingWithOneEntityValidForCollisionResponse(delta)) {
                 hasCollided = true
@@ -132,7 +138,7 @@ abstract class CollidingEntity @JvmOverloads constructor(position: Vector2 = Vec
 
     private fun isCollidingWithOneEntityValidForCollisionResponse(delta: Float): Boolean {
         for (entity in possibleCollidingEntities) {
-            if (filterEntityForPossibleCollision(entity) && this.isCollidingWith(entity, collidingBB, othersCollidingBB)
+            if (filterEntityForPossibleCollision(entity) && this.isCollidingWith(entity, collidingLayer, othersCollidingLayer)
                     && filterEntityThatIsColliding(entity)) {
                 return true
             }
@@ -143,7 +149,7 @@ abstract class CollidingEntity @JvmOverloads constructor(position: Vector2 = Vec
 
     private fun findAllCollidingEntitiesValidForCollisionResponse(arrayToPopulate: Array<Entity>, delta: Float) {
         for (entity in possibleCollidingEntities) {
-            if (filterEntityForPossibleCollision(entity) && this.isCollidingWith(entity, collidingBB, othersCollidingBB)
+            if (filterEntityForPossibleCollision(entity) && this.isCollidingWith(entity, collidingLayer, othersCollidingLayer)
                     && filterEntityThatIsColliding(entity)) {
                 arrayToPopulate.add(entity)
             }
@@ -8,8 +8,10 @@ import com.badlogic.gdx.scenes.scene2d.ui.Table
 import com.badlogic.gdx.utils.*
 import com.badlogic.gdx.utils.Array
 import com.dcostap.Engine
+import com.dcostap.engine.map.BatchedBroadphase
 import com.dcostap.engine.map.DrawableSortable
 import com.dcostap.engine.map.EntityTiledMap
+import com.dcostap.engine.map.EntityUpdateTiers
 import com.dcostap.engine.map.MapCell
 import com.dcostap.engine.map.map_loading.CustomProperties
 import com.dcostap.engine.utils.ui.ExtLabel
@@ -133,14 +135,68 @@ open class Entity @JvmOverloads constructor(val position: Vector2 = Vector2(), b
     /** Use [updateCollidingState] to update the Array */
     val possibleCollidingEntities = Array<Entity>()
 
+    /**
+     * If true, and the map has [EntityTiledMap.useParallelUpdate] enabled, this Entity is updated on a worker thread at
+     * the same time as other parallel-safe Entities. Its [update] may then read the cells of the map and query the
+     * spatial indexes for the Entities around it, and change only itself: other changes to the map are kept and done
+     * after all Entities were updated (see [EntityTiledMap.useParallelUpdate]).
+     *
+     * Queries of the indexes must be the ones that write to an Array or [com.dcostap.engine.map.RaycastHit] given to
+     * them (like [com.dcostap.engine.map.SpatialIndex.nearest] and [com.dcostap.engine.map.SpatialIndex.raycast]), not
+     * the ones returning Arrays reused by the index. The BBs of other Entities are seen as they were when the parallel
+     * update started (see [BoundingBox.rect]); their positions may be changing on another thread, so it must not read
+     * them. It may search paths with [com.dcostap.engine.utils.Pathfinder.findPath], but not use
+     * [EntityTiledMap.pathfinding], [EntityTiledMap.flowFields] nor
+     * [com.dcostap.engine.utils.Pathfinder.findHierarchicalPath], which keep state shared by the map. It shouldn't touch
+     * the UI or anything of libGDX that isn't thread-safe.
+     */
+    var isParallelSafe = false
+
+    /** Position at the start of the map's last tick, used to interpolate drawing, see
+     * [EntityTiledMap.interpolateFixedTimestep]. Only valid if [tickStartId] is the map's last tick */
+    internal val tickStartPosition = Vector2()
+    internal var tickStartId = -1L
+
+    /** Last frame the Entity was sorted for drawing, and by which sorter, so its order is reused the next frame */
+    internal var drawOrderSorter: Any? = null
+    internal var drawOrderFrame = -1L
+
+    /** How often the Entity is being updated, if the map uses [EntityTiledMap.updateTiers]; otherwise always FULL */
+    var updateTier = EntityUpdateTiers.UpdateTier.FULL
+        internal set
+
+    // state of the Entity in the map's EntityUpdateTiers
+    internal var tierIndex = -1
+    internal var tierPhase = 0
+    internal var pendingTierDelta = 0f
+    /** Delta of the frames since the Entity was last updated, for its update this frame */
+    internal var tierDelta = 0f
+
+    /** Handle of the Entity in its map, -1 if not added. It changes each time the Entity is added.
+     * @see EntityTiledMap.getEntity */
+    var handle = -1L
+        internal set
+
+    /** Position of the Entity in each list of its map, see [EntityTiledMap.entityList] */
+    internal val mapListPositions = IntArray(EntityTiledMap.mapListCount) { -1 }
+
+    /** Position in the list of dynamic Entities of each spatial index it is in, by [com.dcostap.engine.map.BaseSpatialIndex.treeSlot] */
+    internal val dynamicIndexPositions = IntArray(BoundingBox.maxTreeSlots) { -1 }
+
+    /** Index of the Entity on the map's [BatchedBroadphase] this frame, if it is one of its movers */
+    internal var broadphaseIndex = -1
+
     val debugFlashingRect = FlashingRect()
 
     var boundingBoxes: ObjectMap<String, BoundingBox>
         protected set
 
+    /** Same BBs as [boundingBoxes], indexed by [BoundingBoxLayer.id] */
+    private val boundingBoxesByLayer = GdxArray<BoundingBox?>()
+
     /** @return The **default** absolute positioned Rectangle that represents the bounding box */
     val boundingBox: Rectangle
-        get() = getBoundingBox("default")
+        get() = getBoundingBox(BoundingBoxLayer.default)
 
     private val debugTable = ResizableActorTable()
     private var debugTableMouseOver = true
@@ -266,6 +322,15 @@ open class Entity @JvmOverloads constructor(val position: Vector2 = Vector2(), b
                 throw RuntimeException("Moved a static entity which is already added to a mapNumber: " + javaClass.simpleName)
         }
 
+        previousPosition.set(position)
+
+        actions.update(delta)
+
+        // the debug UI isn't thread-safe; the map calls it once the parallel update finishes
+        if (map?.isUpdatingInParallel != true) updateDebugInfo()
+    }
+
+    internal fun updateDebugInfo() {
         if (initDebug) {
             initDebug = false
 
@@ -279,10 +344,6 @@ open class Entity @JvmOverloads constructor(val position: Vector2 = Vector2(), b
             ExtLabel.defaultColor = previousColor
         }
 
-        previousPosition.set(position)
-
-        actions.update(delta)
-
         if (debugTableTempInvisible && !Engine.DEBUG_UI_ENTITY_INFO_ABOVE) debugTableTempInvisible = false
 
         debugTable.isVisible = debugInfoIsVisible()
@@ -345,21 +406,42 @@ open class Entity @JvmOverloads constructor(val position: Vector2 = Vector2(), b
         return boundingBoxes.get(name).rect
     }
 
+    /** Same as [getBoundingBox] without the String lookup */
+    fun getBoundingBox(layer: BoundingBoxLayer): Rectangle {
+        return getActualBoundingBox(layer).rect
+    }
+
     fun addBoundingBox(name: String, rectangle: Rectangle): BoundingBox {
         val newBB = BoundingBox(this, name)
         newBB.modify(rectangle)
-        boundingBoxes.put(name, newBB)
+        putBoundingBox(newBB)
         return newBB
     }
 
+    private fun putBoundingBox(bb: BoundingBox) {
+        boundingBoxes.put(bb.name, bb)
+        if (boundingBoxesByLayer.size <= bb.layer.id) boundingBoxesByLayer.setSize(bb.layer.id + 1)
+        boundingBoxesByLayer[bb.layer.id] = bb
+    }
+
     fun removeBoundingBox(name: String) {
-        boundingBoxes.remove(name)
+        boundingBoxes.remove(name)?.let { boundingBoxesByLayer[it.layer.id] = null }
     }
 
     @JvmOverloads fun getActualBoundingBox(name: String = "default"): BoundingBox {
         return boundingBoxes.get(name)
     }
 
+    fun getActualBoundingBox(layer: BoundingBoxLayer): BoundingBox {
+        return getActualBoundingBoxOrNull(layer)
+                ?: throw IllegalArgumentException("Entity $this doesn't have a BoundingBox named ${layer.name}")
+    }
+
+    /** @return null if this Entity doesn't have a BB of that layer */
+    fun getActualBoundingBoxOrNull(layer: BoundingBoxLayer): BoundingBox? {
+        return if (layer.id < boundingBoxesByLayer.size) boundingBoxesByLayer[layer.id] else null
+    }
+
     /**
      * Call each frame to update the list of possible colliding entities
      *
@@ -369,13 +451,21 @@ open class Entity @JvmOverloads constructor(val position: Vector2 = Vector2(), b
      *  * when dynamic entities, including this one, might have moved
      */
     @JvmOverloads fun updateCollidingState(includeDynamicEntities: Boolean, boundingBoxName: String = "default") {
+        updateCollidingState(includeDynamicEntities, BoundingBoxLayer.get(boundingBoxName))
+    }
+
+    /** @param layer BB of this Entity used to search; others are searched by their **default** BB */
+    fun updateCollidingState(includeDynamicEntities: Boolean, layer: BoundingBoxLayer) {
         possibleCollidingEntities.clear()
 
         map.ifNotNull {
-            for (entity in it.collisionTreeForEntityColliding.getPossibleCollidingEntities(getBoundingBox(boundingBoxName), includeDynamicEntities)) {
-                if (entity === this) continue
-                possibleCollidingEntities.add(entity)
-            }
+            if (it.useBatchedBroadphase
+                    && it.broadphase.getCandidates(this, layer, includeDynamicEntities, possibleCollidingEntities))
+                return
+
+            it.collisionTreeForEntityColliding.getPossibleCollidingEntities(getBoundingBox(layer), includeDynamicEntities,
+                    BoundingBoxLayer.default, possibleCollidingEntities)
+            possibleCollidingEntities.removeValue(this, true)
         }
     }
 
@@ -383,6 +473,10 @@ open class Entity @JvmOverloads constructor(val position: Vector2 = Vector2(), b
         return getBoundingBox(thisBB).overlaps(otherEntity.getBoundingBox(otherBB))
     }
 
+    fun isCollidingWith(otherEntity: Entity, thisLayer: BoundingBoxLayer, otherLayer: BoundingBoxLayer): Boolean {
+        return getBoundingBox(thisLayer).overlaps(otherEntity.getBoundingBox(otherLayer))
+    }
+
     private val dummyCellArray = Array<MapCell>()
 
     /**
@@ -398,13 +492,24 @@ open class Entity @JvmOverloads constructor(val position: Vector2 = Vector2(), b
      */
     @JvmOverloads fun getCollidingMapCells(thisBB: String = "default", filter: (MapCell) -> Boolean = {true}): GdxArray<MapCell> {
         dummyCellArray.clear()
-        for (mapCell in map!!.getCellsOccupiedByRectangle(getBoundingBox(thisBB))) {
-            if (filter(mapCell)) {
-                dummyCellArray.add(mapCell)
-            }
+        return getCollidingMapCells(BoundingBoxLayer.get(thisBB), dummyCellArray, filter)
+    }
+
+    /** Like the other overload, but adds the cells to [out], which isn't cleared
+     * @return [out] */
+    @JvmOverloads fun getCollidingMapCells(layer: BoundingBoxLayer, out: GdxArray<MapCell>,
+                                           filter: (MapCell) -> Boolean = {true}): GdxArray<MapCell> {
+        val start = out.size
+        map!!.getCellsOccupiedByRectangle(getBoundingBox(layer), out)
+
+        var kept = start
+        for (i in start until out.size) {
+            val mapCell = out[i]
+            if (filter(mapCell)) out[kept++] = mapCell
         }
+        out.truncate(kept)
 
-        return dummyCellArray
+        return out
     }
 
     private val dummyEntityArray = Array<Entity>()
@@ -416,14 +521,22 @@ open class Entity @JvmOverloads constructor(val position: Vector2 = Vector2(), b
      */
     @JvmOverloads fun getCollidingEntities(thisBB: String = "default", otherBB: String = "default", filter: (Entity) -> Boolean = {true}): GdxArray<Entity> {
         dummyEntityArray.clear()
+        return getCollidingEntities(BoundingBoxLayer.get(thisBB), BoundingBoxLayer.get(otherBB), dummyEntityArray, filter)
+    }
 
-        for (entity in possibleCollidingEntities) {
-            if (filter(entity) && isCollidingWith(entity, thisBB, otherBB)) {
-                dummyEntityArray.add(entity)
+    /** Like the other overload, but adds the Entities to [out], which isn't cleared
+     * @return [out] */
+    @JvmOverloads fun getCollidingEntities(thisLayer: BoundingBoxLayer, otherLayer: BoundingBoxLayer, out: GdxArray<Entity>,
+                                           filter: (Entity) -> Boolean = {true}): GdxArray<Entity> {
+        // by index: iterators of Arrays are shared, so they can't be nested
+        for (i in 0 until possibleCollidingEntities.size) {
+            val entity = possibleCollidingEntities[i]
+            if (filter(entity) && isCollidingWith(entity, thisLayer, otherLayer)) {
+                out.add(entity)
             }
         }
 
-        return dummyEntityArray
+        return out
     }
 
     fun hasMoved(): Boolean {
@@ -538,10 +651,11 @@ open class Entity @JvmOverloads constructor(val position: Vector2 = Vector2(), b
 
     open fun loadEntity(jsonSavedObject: JsonValue, saveVersion: String) {
         boundingBoxes.clear()
+        boundingBoxesByLayer.clear()
 
         for (bb in jsonSavedObject.get("bbs")) {
             val name = bb.getString("name")
-            boundingBoxes.put(name, BoundingBox(this, name).also {
+            putBoundingBox(BoundingBox(this, name).also {
                 it.load(bb, "0")
             })
         }
@@ -0,0 +1,40 @@
+package com.dcostap.engine.map.map_loading
+
+import com.badlogic.gdx.files.FileHandle
+import com.badlogic.gdx.utils.JsonReader
+import com.badlogic.gdx.utils.JsonValue
+import com.badlogic.gdx.utils.JsonWriter
+
+/**
+ * Storage of the chunks of a map streamed by a [com.dcostap.engine.map.ChunkStreamer].
+ *
+ * Both methods are called from the streamer's worker thread, never from the main thread, so they must not touch
+ * the map, Entities or anything of libGDX besides files.
+ */
+interface ChunkProvider {
+    /**
+     * @return the state of the chunk saved by [writeChunk] (or built some other way, for example from a Tiled map),
+     * or null if the chunk has nothing: no Entities, no tiles nor solid cells
+     */
+    fun readChunk(chunkX: Int, chunkY: Int): JsonValue?
+
+    /** Saves the state of a chunk leaving the camera, to be returned by [readChunk] when it is loaded again */
+    fun writeChunk(chunkX: Int, chunkY: Int, data: JsonValue)
+}
+
+/** Keeps each chunk in a .json file inside [folder] */
+class FileChunkProvider(val folder: FileHandle) : ChunkProvider {
+    private val reader = JsonReader()
+
+    private fun file(chunkX: Int, chunkY: Int) = folder.child("chunk_${chunkX}_$chunkY.json")
+
+    override fun readChunk(chunkX: Int, chunkY: Int): JsonValue? {
+        val file = file(chunkX, chunkY)
+        if (!file.exists()) return null
+        return reader.parse(file)
+    }
+
+    override fun writeChunk(chunkX: Int, chunkY: Int, data: JsonValue) {
+        file(chunkX, chunkY).writeString(data.toJson(JsonWriter.OutputType.json), false)
+    }
+}
@@ -7,6 +7,7 @@ import com.badlogic.gdx.utils.Json
 import com.badlogic.gdx.utils.JsonValue
 import com.dcostap.Engine
 import com.dcostap.engine.map.EntityTiledMap
+import com.dcostap.engine.map.SpatialIndexType
 import com.dcostap.engine.map.Tile
 import com.dcostap.engine.map.entities.Entity
 import com.dcostap.engine.utils.Utils
@@ -83,9 +84,10 @@ class JsonMapLoader(mapName: String, mapFolder: String, objectTemplatesJsonFolde
     val loadingOffset = GridPoint2(0, 0)
 
     /** @param savedMapInfoJson Pass a JsonValue from saving the map so that properties of entities and the map itself can be loaded */
-    fun loadMap(map: EntityTiledMap, entityLoaderFromString: EntityLoaderFromString? = null,
+    @JvmOverloads fun loadMap(map: EntityTiledMap, entityLoaderFromString: EntityLoaderFromString? = null,
                 tileLoaderFromString: TileLoaderFromString? = null, savedMapInfoJson: JsonValue? = null,
-                collisionTreeCellSize: Int = EntityTiledMap.defaultCollTreeCellSize) {
+                collisionTreeCellSize: Int = EntityTiledMap.defaultCollTreeCellSize,
+                spatialIndexType: SpatialIndexType = SpatialIndexType.GRID) {
         this.layerDepth = layerDepthStarting
         this.savedMapInfoJson = savedMapInfoJson
         this.entityLoaderFromString = entityLoaderFromString
@@ -94,7 +96,7 @@ class JsonMapLoader(mapName: String, mapFolder: String, objectTemplatesJsonFolde
         val height = mapInfo.jsonMapFile.get("height").asInt()
         val width = mapInfo.jsonMapFile.get("width").asInt()
 
-        map.initMap(width, height, collisionTreeCellSize)
+        map.initMap(width, height, collisionTreeCellSize, spatialIndexType)
 
         if (savedMapInfoJson == null || !loadMapProps(map)) {
             map.customProperties = getCustomPropertiesFromMapJson()
@@ -326,9 +328,9 @@ class JsonMapLoader(mapName: String, mapFolder: String, objectTemplatesJsonFolde
                 }
 
                 if (doNormalLoading) {
-                    mapCell.getTiles().add(Tile(map, currentLayerDepth, imageName).also {
-                        it.cell = mapCell
+                    mapCell.addTile(Tile(map, currentLayerDepth, imageName).also {
                         it.rotation = 0 //todo: don't ignore rotation
+                        it.textureHandle = map.screen.assets.getTextureHandle(imageName)
                     })
                 }
             }
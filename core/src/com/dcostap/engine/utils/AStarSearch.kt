@@ -0,0 +1,566 @@
+package com.dcostap.engine.utils
+
+import com.badlogic.gdx.graphics.Color
+import com.badlogic.gdx.utils.Array
+import com.badlogic.gdx.utils.IntArray as GdxIntArray
+import com.dcostap.Engine
+import com.dcostap.engine.map.EntityTiledMap
+import com.dcostap.engine.map.JumpPointTable
+import com.dcostap.engine.map.JumpPointTable.Companion.isDiagonalJumpPoint
+import com.dcostap.engine.map.JumpPointTable.Companion.isOpen
+import com.dcostap.engine.map.JumpPointTable.Companion.isStraightJumpPoint
+import com.dcostap.engine.map.MapCell
+import com.dcostap.printDebug
+
+/**
+ * A* search on the cells of a map, finding the same paths as [Pathfinder.findPathLegacy] (same costs, heuristic,
+ * diagonal rules and fallback to the closest path), but keeping its state in arrays indexed by
+ * [EntityTiledMap.cellIndex] instead of in [MapCell.node]:
+ * - The open list is a binary heap of cell indexes, which knows the position of each cell in it, so the cell with the
+ * lowest f is taken, and a cell whose f improves is moved up, in O(log n).
+ * - Closed cells are bits of a bitset.
+ * - Cells reached in a search are marked with the number of the search, so the arrays don't need to be cleared.
+ *
+ * Arrays grow to the size of the biggest map searched, then nothing is allocated. Each instance can only do one search
+ * at a time. [begin] brings the map's [EntityTiledMap.connectivity] and jump point tables up to date, which is only
+ * safe on the main thread; during the map's parallel update they were already updated, so different instances (like
+ * the one per thread of [Pathfinder]) only read them and can search the same map at once. A search can also be done a
+ * part at a time with [begin] and [step], see [com.dcostap.engine.map.PathfindingService].
+ *
+ * See [Mode] for Jump Point Search, much faster on open maps where A* expands many paths of the same cost.
+ */
+class AStarSearch {
+    enum class Mode {
+        /** Expands each neighbor of each cell */
+        A_STAR,
+
+        /**
+         * Jump Point Search: from each cell, only the directions an optimal path could continue in are followed, and
+         * they are followed in a straight line (or diagonal) until a cell where the path might turn, a jump point. Only
+         * jump points enter the open list. Paths have the same cost as with [A_STAR], but may be a different one of
+         * the same cost.
+         *
+         * Only used with [Pathfinder.solidValidator], since costs must be the same in all cells, and when the goal can
+         * be reached: otherwise [A_STAR] is used, also to get the closest path. [maximumTries] counts jump points.
+         */
+        JPS,
+
+        /** [JPS], using the straight jump distances kept by [EntityTiledMap.getJumpPointTable] instead of walking
+         * through each cell */
+        JPS_PLUS
+    }
+
+    /** Cells taken from the open list in the last search, including the retry ignoring invalid cells */
+    var lastExpandedCount = 0
+        private set
+
+    private var g = FloatArray(0)
+    private var f = FloatArray(0)
+    private var parent = IntArray(0)
+    private var heapIndex = IntArray(0)
+    private var searchIds = IntArray(0)
+    private var closed = LongArray(0)
+    private var heap = IntArray(0)
+    private var heapSize = 0
+    private var searchId = 0
+
+    /** Cells reached in the current search, to clear their closed bits afterwards */
+    private val reached = GdxIntArray()
+
+    private lateinit var map: EntityTiledMap
+    private var goalIndex = 0
+    private var goalX = 0
+    private var goalY = 0
+
+    // current Jump Point Search
+    private var cutsCorners = false
+    private var jumpPointTable: JumpPointTable? = null
+
+    // current search, see begin
+    private lateinit var start: MapCell
+    private lateinit var goalCell: MapCell
+    private lateinit var out: Array<MapCell>
+    private lateinit var validator: MapCellValidator
+    private var ignoreInvalidCells = false
+    private var maximumTries = 0
+    private var allowDiagonals = false
+    private var useJumpPoints = false
+    private var isRetry = false
+    private var count = 0
+
+    /** Whether a search was started with [begin] and isn't finished */
+    var isSearching = false
+        private set
+
+    /**
+     * Finds the path between the cells, like [Pathfinder.findPath]
+     * @param out cleared, then filled with the cells of the path, without [start] (only the goal if both are the same).
+     * Empty if there is no path at all
+     * @return [out]
+     */
+    fun findPath(start: MapCell, goalCell: MapCell, out: Array<MapCell>,
+                 validator: MapCellValidator = Pathfinder.solidValidator, ignoreInvalidCells: Boolean = false,
+                 maximumTries: Int = Pathfinder.maximumTries, allowDiagonals: Boolean = Pathfinder.allowDiagonals,
+                 mode: Mode = Pathfinder.searchMode): Array<MapCell> {
+        begin(start, goalCell, out, validator, ignoreInvalidCells, maximumTries, allowDiagonals, mode)
+        while (!step(Int.MAX_VALUE)) { }
+        return out
+    }
+
+    /**
+     * Starts a search like [findPath], to be done a part at a time with [step], so it can be spread over several
+     * frames. Stops the previous search if it wasn't finished
+     */
+    fun begin(start: MapCell, goalCell: MapCell, out: Array<MapCell>,
+              validator: MapCellValidator = Pathfinder.solidValidator, ignoreInvalidCells: Boolean = false,
+              maximumTries: Int = Pathfinder.maximumTries, allowDiagonals: Boolean = Pathfinder.allowDiagonals,
+              mode: Mode = Pathfinder.searchMode) {
+        cancel()
+        out.clear()
+        lastExpandedCount = 0
+
+        var ignoresInvalidCells = ignoreInvalidCells
+        if (!validator.isMapCellValid(start) || !validator.isMapCellValid(goalCell)) ignoresInvalidCells = true
+
+        // goal can't be reached: don't search through all reachable cells, directly get the closest path
+        if (start.map.doFloodFillForSolidCellsPathfinding
+                && !start.map.connectivity.areConnected(start, goalCell, allowDiagonals)) {
+            ignoresInvalidCells = true
+        }
+
+        this.start = start
+        this.goalCell = goalCell
+        this.out = out
+        this.validator = validator
+        this.ignoreInvalidCells = ignoresInvalidCells
+        this.maximumTries = maximumTries
+        this.allowDiagonals = allowDiagonals
+        useJumpPoints = mode != Mode.A_STAR && validator === Pathfinder.solidValidator && !ignoresInvalidCells
+        isRetry = false
+
+        startSearch()
+        if (useJumpPoints) {
+            cutsCorners = allowDiagonals
+            jumpPointTable = when {
+                mode != Mode.JPS_PLUS -> null
+                // tables are only created and updated on the main thread; without one this is a plain JPS
+                map.isUpdatingInParallel -> map.findJumpPointTable(cutsCorners)
+                else -> map.getJumpPointTable(cutsCorners).also { it.update() }
+            }
+        }
+
+        isSearching = true
+    }
+
+    /**
+     * Continues the search started with [begin]
+     * @param maxExpansions cells (or jump points) to take from the open list at most
+     * @return true if the search is finished: the path is in the Array given to [begin]
+     */
+    fun step(maxExpansions: Int): Boolean {
+        if (!isSearching) return true
+
+        var expansions = 0
+        while (expansions < maxExpansions) {
+            if (heapSize == 0 || (maximumTries >= 0 && count >= maximumTries)) {
+                if (!searchFailed()) return true
+                continue
+            }
+
+            count++
+            lastExpandedCount++
+            expansions++
+
+            val current = pop()
+            if (current == goalIndex) {
+                constructPath(start, validator, ignoreInvalidCells, out)
+                cancel()
+                return true
+            }
+
+            closed[current ushr 6] = closed[current ushr 6] or (1L shl current)
+            if (useJumpPoints) expandJumpPoint(current) else expand(current)
+        }
+
+        return false
+    }
+
+    /** Stops the current search, if any; its path is left empty */
+    fun cancel() {
+        if (!isSearching) return
+        clearSearch()
+        isSearching = false
+    }
+
+    /** @return true if the search continues, ignoring invalid cells to get the closest path */
+    private fun searchFailed(): Boolean {
+        clearSearch()
+        if (!isRetry) printDebug("SEARCH OF PATH FAILED!! count is $lastExpandedCount")
+
+        if (ignoreInvalidCells) {
+            isSearching = false
+            return false
+        }
+
+        // pathfinding failed, try again ignoring invalid cells to get the closest path before hitting invalid cells
+        ignoreInvalidCells = true
+        useJumpPoints = false
+        isRetry = true
+        startSearch()
+        return true
+    }
+
+    private fun startSearch() {
+        map = start.map
+        ensureCapacity(map.width * map.height)
+        nextSearch()
+        count = 0
+
+        goalX = goalCell.x
+        goalY = goalCell.y
+        goalIndex = map.cellIndex(goalX, goalY)
+        val startIndex = map.cellIndex(start.x, start.y)
+        reach(startIndex)
+        g[startIndex] = 0f
+        f[startIndex] = getHeuristic(startIndex)
+        push(startIndex)
+    }
+
+    /** Adds the neighbors of the cell to the open list */
+    private fun expand(current: Int) {
+        val x = current % map.width
+        val y = current / map.width
+
+        // cost of the whole path gets higher when walking out of an invalid cell
+        val penalty = if (ignoreInvalidCells && !validator.isMapCellValidRawCoords(x, y, map)) 1.7f else 1f
+
+        for (offsetY in -1..1) {
+            for (offsetX in -1..1) {
+                if (offsetX == 0 && offsetY == 0) continue
+
+                val xx = x + offsetX
+                val yy = y + offsetY
+                if (!map.isInsideMap(xx, yy)) continue
+
+                val neighbor = map.cellIndex(xx, yy)
+                if (closed[neighbor ushr 6] and (1L shl neighbor) != 0L) continue
+                if (!ignoreInvalidCells && !validator.isMapCellValid(map.getMapCellAt(neighbor))) continue
+
+                val isDiagonal = offsetX != 0 && offsetY != 0
+
+                // diagonals can't go through the corner of invalid cells
+                if (isDiagonal && !allowDiagonals) {
+                    if (!validator.isMapCellValidRawCoords(x, yy, map) || !validator.isMapCellValidRawCoords(xx, y, map))
+                        continue
+                }
+
+                val newG = (g[current] + if (isDiagonal) 14.14f else 10f) * penalty
+
+                reach(neighbor)
+                if (newG < g[neighbor]) {
+                    parent[neighbor] = current
+                    g[neighbor] = newG
+                    f[neighbor] = newG + getHeuristic(neighbor)
+
+                    if (heapIndex[neighbor] == -1) push(neighbor)
+                    else siftUp(heapIndex[neighbor])
+                }
+            }
+        }
+    }
+
+    /** Jump Point Search, see [Mode.JPS]: adds the jump points found from the cell to the open list. Cells are valid
+     * when not solid */
+    private fun expandJumpPoint(current: Int) {
+        val width = map.width
+        val x = current % width
+        val y = current / width
+        val from = parent[current]
+        if (from == -1) {
+            for (dy in -1..1) {
+                for (dx in -1..1) {
+                    if (dx != 0 || dy != 0) jumpTo(current, x, y, dx, dy)
+                }
+            }
+
+            return
+        }
+
+        // only the directions an optimal path coming from the parent can continue in
+        val dx = Integer.signum(x - from % width)
+        val dy = Integer.signum(y - from / width)
+        if (dx != 0 && dy != 0) {
+            jumpTo(current, x, y, 0, dy)
+            jumpTo(current, x, y, dx, 0)
+            jumpTo(current, x, y, dx, dy)
+            if (cutsCorners) {
+                if (!map.isOpen(x - dx, y)) jumpTo(current, x, y, -dx, dy)
+                if (!map.isOpen(x, y - dy)) jumpTo(current, x, y, dx, -dy)
+            }
+        } else if (cutsCorners) {
+            jumpTo(current, x, y, dx, dy)
+            if (dx != 0) {
+                if (!map.isOpen(x, y + 1)) jumpTo(current, x, y, dx, 1)
+                if (!map.isOpen(x, y - 1)) jumpTo(current, x, y, dx, -1)
+            } else {
+                if (!map.isOpen(x + 1, y)) jumpTo(current, x, y, 1, dy)
+                if (!map.isOpen(x - 1, y)) jumpTo(current, x, y, -1, dy)
+            }
+        } else {
+            // without cutting corners, sides are followed whenever open, diagonals only if they don't cut corners
+            jumpTo(current, x, y, dx, dy)
+            if (dx != 0) {
+                jumpTo(current, x, y, dx, 1)
+                jumpTo(current, x, y, dx, -1)
+                jumpTo(current, x, y, 0, 1)
+                jumpTo(current, x, y, 0, -1)
+            } else {
+                jumpTo(current, x, y, 1, dy)
+                jumpTo(current, x, y, -1, dy)
+                jumpTo(current, x, y, 1, 0)
+                jumpTo(current, x, y, -1, 0)
+            }
+        }
+    }
+
+    /** Jumps from the cell in the direction and adds the jump point found to the open list */
+    private fun jumpTo(current: Int, x: Int, y: Int, dx: Int, dy: Int) {
+        val jumpPoint = if (dx != 0 && dy != 0) jumpDiagonal(x, y, dx, dy) else jumpStraight(x, y, dx, dy)
+        if (jumpPoint == -1) return
+        if (closed[jumpPoint ushr 6] and (1L shl jumpPoint) != 0L) return
+
+        val width = map.width
+        val xDistance = Math.abs(jumpPoint % width - x)
+        val yDistance = Math.abs(jumpPoint / width - y)
+        val diagonal = Math.min(xDistance, yDistance)
+        val newG = g[current] + diagonal * 14.14f + (Math.max(xDistance, yDistance) - diagonal) * 10f
+
+        reach(jumpPoint)
+        if (newG < g[jumpPoint]) {
+            parent[jumpPoint] = current
+            g[jumpPoint] = newG
+            f[jumpPoint] = newG + getHeuristic(jumpPoint)
+
+            if (heapIndex[jumpPoint] == -1) push(jumpPoint)
+            else siftUp(heapIndex[jumpPoint])
+        }
+    }
+
+    /** @return the cell index of the jump point found moving straight from the cell, or -1 */
+    private fun jumpStraight(x: Int, y: Int, dx: Int, dy: Int): Int {
+        val table = jumpPointTable
+        if (table != null) return jumpStraightWithTable(table, x, y, dx, dy)
+
+        var xx = x
+        var yy = y
+        while (true) {
+            xx += dx
+            yy += dy
+            if (!map.isOpen(xx, yy)) return -1
+            if ((xx == goalX && yy == goalY) || isStraightJumpPoint(map, xx, yy, dx, dy, cutsCorners))
+                return map.cellIndex(xx, yy)
+        }
+    }
+
+    private fun jumpStraightWithTable(table: JumpPointTable, x: Int, y: Int, dx: Int, dy: Int): Int {
+        var xx = x
+        var yy = y
+        while (true) {
+            val distance = table.getDistance(xx, yy, dx, dy)
+            val reach = Math.abs(distance)
+
+            // goal is in the way
+            val goalDistance = if (dx != 0) (goalX - xx) * dx else (goalY - yy) * dy
+            val isGoalInLine = if (dx != 0) goalY == yy else goalX == xx
+            if (isGoalInLine && goalDistance > 0 && goalDistance <= reach) return goalIndex
+
+            if (distance > 0) return map.cellIndex(xx + dx * distance, yy + dy * distance)
+
+            // stopped by a solid cell, or by the edge of the region: continue in the next one
+            xx += dx * (reach + 1)
+            yy += dy * (reach + 1)
+            if (!map.isOpen(xx, yy)) return -1
+            if ((xx == goalX && yy == goalY) || isStraightJumpPoint(map, xx, yy, dx, dy, cutsCorners))
+                return map.cellIndex(xx, yy)
+        }
+    }
+
+    /** @return the cell index of the jump point found moving diagonally from the cell, or -1 */
+    private fun jumpDiagonal(x: Int, y: Int, dx: Int, dy: Int): Int {
+        var xx = x
+        var yy = y
+        while (true) {
+            if (!map.isOpen(xx + dx, yy + dy)) return -1
+            if (!cutsCorners && (!map.isOpen(xx + dx, yy) || !map.isOpen(xx, yy + dy))) return -1
+
+            xx += dx
+            yy += dy
+            if ((xx == goalX && yy == goalY) || isDiagonalJumpPoint(map, xx, yy, dx, dy, cutsCorners))
+                return map.cellIndex(xx, yy)
+
+            // the path may turn here to follow a straight line to a jump point
+            if (jumpStraight(xx, yy, dx, 0) != -1 || jumpStraight(xx, yy, 0, dy) != -1)
+                return map.cellIndex(xx, yy)
+        }
+    }
+
+    private fun constructPath(start: MapCell, validator: MapCellValidator, ignoreInvalidCells: Boolean, out: Array<MapCell>) {
+        // going through the parents from the goal, without the start. Jump points are joined by straight lines or
+        // diagonals, whose cells are added too
+        val width = map.width
+        var cell = goalIndex
+        while (parent[cell] != -1) {
+            val from = parent[cell]
+            val fromX = from % width
+            val fromY = from / width
+            var x = cell % width
+            var y = cell / width
+            val stepX = Integer.signum(fromX - x)
+            val stepY = Integer.signum(fromY - y)
+            while (x != fromX || y != fromY) {
+                out.add(map.getMapCellAt(map.cellIndex(x, y)))
+                x += stepX
+                y += stepY
+            }
+
+            cell = from
+        }
+
+        // already on the goal: the path is the goal, like in findPathLegacy, so it isn't mistaken for an unreachable one
+        if (parent[goalIndex] == -1) out.add(goalCell)
+
+        out.reverse()
+
+        if (ignoreInvalidCells) {
+            // skip the rest of the path when you hit the first invalid cell
+            // this might happen when ignoring invalid cells, and allows you to construct the closest path even if you can't reach the goal
+            var startValid = validator.isMapCellValid(start)
+            var size = 0
+            for (i in 0 until out.size) {
+                val pathCell = out[i]
+                if (!validator.isMapCellValid(pathCell)) {
+                    if (startValid) break
+                } else startValid = true
+                out[size++] = pathCell
+            }
+
+            out.truncate(size)
+        }
+    }
+
+    private fun getHeuristic(index: Int): Float {
+        // more expensive than manhattan
+        // but this takes into account diagonal movement
+        val width = map.width
+        val xDistance = Math.abs(index % width - goalIndex % width).toFloat()
+        val yDistance = Math.abs(index / width - goalIndex / width).toFloat()
+        return if (xDistance > yDistance) {
+            14 * yDistance + 10 * (xDistance - yDistance)
+        } else {
+            14 * xDistance + 10 * (yDistance - xDistance)
+        }
+    }
+
+    private fun ensureCapacity(cells: Int) {
+        if (cells <= g.size) return
+        g = FloatArray(cells)
+        f = FloatArray(cells)
+        parent = IntArray(cells)
+        heapIndex = IntArray(cells)
+        searchIds = IntArray(cells)
+        closed = LongArray((cells + 63) / 64)
+        heap = IntArray(cells)
+        searchId = 0
+    }
+
+    private fun nextSearch() {
+        searchId++
+        if (searchId == 0) { // overflow, old marks could be mistaken for this search
+            java.util.Arrays.fill(searchIds, 0)
+            searchId = 1
+        }
+
+        heapSize = 0
+    }
+
+    /** Initializes the cell the first time this search reaches it */
+    private fun reach(index: Int) {
+        if (searchIds[index] == searchId) return
+        searchIds[index] = searchId
+        g[index] = Float.POSITIVE_INFINITY
+        f[index] = Float.POSITIVE_INFINITY
+        parent[index] = -1
+        heapIndex[index] = -1
+        reached.add(index)
+    }
+
+    private fun clearSearch() {
+        for (i in 0 until reached.size) {
+            val index = reached[i]
+            closed[index ushr 6] = closed[index ushr 6] and (1L shl index).inv()
+
+            // flash affected cells
+            if (Engine.DEBUG_PATHFINDING)
+                map.getMapCellAt(index).debugFlashingRect.flashColor(Color.GREEN, 1f)
+        }
+
+        reached.clear()
+        heapSize = 0
+    }
+
+    private fun push(index: Int) {
+        heap[heapSize] = index
+        heapIndex[index] = heapSize
+        heapSize++
+        siftUp(heapSize - 1)
+    }
+
+    private fun pop(): Int {
+        val top = heap[0]
+        heapIndex[top] = -1
+        heapSize--
+        if (heapSize > 0) {
+            heap[0] = heap[heapSize]
+            heapIndex[heap[0]] = 0
+            siftDown(0)
+        }
+
+        return top
+    }
+
+    private fun siftUp(position: Int) {
+        var i = position
+        val index = heap[i]
+        val value = f[index]
+        while (i > 0) {
+            val parentPosition = (i - 1) ushr 1
+            val parentIndex = heap[parentPosition]
+            if (f[parentIndex] <= value) break
+            heap[i] = parentIndex
+            heapIndex[parentIndex] = i
+            i = parentPosition
+        }
+
+        heap[i] = index
+        heapIndex[index] = i
+    }
+
+    private fun siftDown(position: Int) {
+        var i = position
+        val index = heap[i]
+        val value = f[index]
+        while (true) {
+            var child = i * 2 + 1
+            if (child >= heapSize) break
+            if (child + 1 < heapSize && f[heap[child + 1]] < f[heap[child]]) child++
+            if (f[heap[child]] >= value) break
+
+            heap[i] = heap[child]
+            heapIndex[heap[i]] = i
+            i = child
+        }
+
+        heap[i] = index
+        heapIndex[index] = i
+    }
+}
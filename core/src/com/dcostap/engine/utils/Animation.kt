@@ -5,6 +5,9 @@ import ktx.collections.GdxArray
 
 /**
  * Created by Darius on 17/01/2018
+ *
+ * Frames may be texture handles ([com.dcostap.engine.Assets.getTextureHandles]) instead of regions: draw them with
+ * [com.dcostap.engine.Assets.getTexture], and the Animation keeps working after the atlas is reloaded
  */
 open class Animation<T> @JvmOverloads constructor(frames: GdxArray<T>, frameDuration: Float = 1f, animType: AnimType = AnimType.LOOP) {
     var elapsedTime = 0f
@@ -0,0 +1,60 @@
+package com.dcostap.engine.utils
+
+/**
+ * Splits the time of each frame in ticks of fixed length, keeping the time left for the next frames.
+ *
+ * Used by [com.dcostap.Engine] when [com.dcostap.Engine.useFixedTimestep] is true: each frame,
+ * [com.dcostap.engine.utils.screens.BaseScreen.fixedUpdate] is called [ticksThisFrame] times with [tickDelta], and
+ * drawing can use [alpha] to interpolate between the last two ticks.
+ *
+ * @param ticksPerSecond can be lower than the frame rate, for example on weak machines
+ */
+class FixedTimestep(ticksPerSecond: Float = 60f) {
+    var ticksPerSecond = ticksPerSecond
+        set(value) {
+            if (value <= 0f) throw IllegalArgumentException("ticksPerSecond must be positive: $value")
+            field = value
+        }
+
+    val tickDelta get() = 1f / ticksPerSecond
+
+    /** If a frame takes so long that more ticks than this are due, the rest of the time is dropped, so a slow frame
+     * doesn't make the next ones even slower */
+    var maxTicksPerFrame = 5
+
+    /** Ticks to do this frame, set by [advance] */
+    var ticksThisFrame = 0
+        private set
+
+    /** Time since the last tick, as a fraction of [tickDelta]: 0 when drawing right at the last tick, close to 1 just
+     * before the next one */
+    var alpha = 0f
+        private set
+
+    private var accumulator = 0f
+
+    /** Adds the frame's time and sets [ticksThisFrame] and [alpha]
+     * @return [ticksThisFrame] */
+    fun advance(frameDelta: Float): Int {
+        val tickDelta = tickDelta
+        accumulator += frameDelta
+
+        var ticks = (accumulator / tickDelta).toInt()
+        accumulator -= ticks * tickDelta
+
+        if (ticks > maxTicksPerFrame) {
+            ticks = maxTicksPerFrame
+            accumulator = 0f
+        }
+
+        ticksThisFrame = ticks
+        alpha = Math.min(1f, Math.max(0f, accumulator / tickDelta))
+        return ticks
+    }
+
+    fun reset() {
+        accumulator = 0f
+        ticksThisFrame = 0
+        alpha = 0f
+    }
+}
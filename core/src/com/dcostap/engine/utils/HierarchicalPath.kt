@@ -0,0 +1,53 @@
+package com.dcostap.engine.utils
+
+import com.badlogic.gdx.utils.Array
+import com.dcostap.engine.map.MapCell
+
+/**
+ * Path found by [Pathfinder.findHierarchicalPath]: the cells to go through are known from the start ([waypoints]),
+ * but the cells between them are only found when asked for, with [refineNextSegment]. So an agent only pays for the
+ * part of the path it is about to walk, and if the map changes further ahead it can search again instead.
+ *
+ * Reuse it for later searches to avoid allocating.
+ */
+class HierarchicalPath {
+    /** The start, the transitions between regions to go through, and the goal */
+    val waypoints = Array<MapCell>()
+
+    /** Index in [waypoints] where the next segment ends */
+    var nextWaypoint = 1
+        private set
+
+    internal var allowDiagonals = false
+
+    private val segment = Array<MapCell>()
+
+    val isFinished get() = nextWaypoint >= waypoints.size
+
+    /**
+     * Finds the cells from the last waypoint reached to the next one, with [Pathfinder.search]
+     * @param out the cells are added to it, without the waypoint where the segment starts
+     * @return false if there are no segments left
+     */
+    fun refineNextSegment(out: Array<MapCell>): Boolean {
+        if (isFinished) return false
+
+        Pathfinder.search.findPath(waypoints[nextWaypoint - 1], waypoints[nextWaypoint], segment,
+                allowDiagonals = allowDiagonals)
+        out.addAll(segment)
+        segment.clear()
+        nextWaypoint++
+        return true
+    }
+
+    /** Finds all the segments left, giving the whole path like [Pathfinder.findPath] does */
+    fun refineAll(out: Array<MapCell>): Array<MapCell> {
+        while (refineNextSegment(out)) { }
+        return out
+    }
+
+    fun clear() {
+        waypoints.clear()
+        nextWaypoint = 1
+    }
+}
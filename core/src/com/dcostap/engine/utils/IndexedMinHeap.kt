@@ -0,0 +1,98 @@
+package com.dcostap.engine.utils
+
+/**
+ * Binary min-heap of int ids (0 until capacity) by a float priority, which knows where each id is, so the priority of
+ * an id already in it can be lowered in O(log n). Grows with [ensureCapacity]; nothing is allocated otherwise.
+ */
+internal class IndexedMinHeap {
+    private var heap = IntArray(0)
+    private var positions = IntArray(0)
+    private var priorities = FloatArray(0)
+
+    var size = 0
+        private set
+
+    val isEmpty get() = size == 0
+
+    fun ensureCapacity(ids: Int) {
+        if (ids <= positions.size) return
+        val capacity = Math.max(ids, positions.size * 2)
+        heap = heap.copyOf(capacity)
+        priorities = priorities.copyOf(capacity)
+        val oldSize = positions.size
+        positions = positions.copyOf(capacity)
+        java.util.Arrays.fill(positions, oldSize, capacity, -1)
+    }
+
+    operator fun contains(id: Int) = positions[id] != -1
+
+    /** Adds the id, or changes its priority if already in */
+    fun add(id: Int, priority: Float) {
+        val position = positions[id]
+        priorities[id] = priority
+        if (position == -1) {
+            heap[size] = id
+            positions[id] = size
+            size++
+            siftUp(size - 1)
+        } else {
+            siftUp(position)
+            siftDown(positions[id])
+        }
+    }
+
+    /** Removes and returns the id with the lowest priority */
+    fun pop(): Int {
+        val top = heap[0]
+        positions[top] = -1
+        size--
+        if (size > 0) {
+            heap[0] = heap[size]
+            positions[heap[0]] = 0
+            siftDown(0)
+        }
+
+        return top
+    }
+
+    fun clear() {
+        for (i in 0 until size) positions[heap[i]] = -1
+        size = 0
+    }
+
+    private fun siftUp(position: Int) {
+        var i = position
+        val id = heap[i]
+        val priority = priorities[id]
+        while (i > 0) {
+            val parent = (i - 1) ushr 1
+            val parentId = heap[parent]
+            if (priorities[parentId] <= priority) break
+            heap[i] = parentId
+            positions[parentId] = i
+            i = parent
+        }
+
+        heap[i] = id
+        positions[id] = i
+    }
+
+    private fun siftDown(position: Int) {
+        var i = position
+        val id = heap[i]
+        val priority = priorities[id]
+        while (true) {
+            var child = i * 2 + 1
+            if (child >= size) break
+            if (child + 1 < size && priorities[heap[child + 1]] < priorities[heap[child]]) child++
+            if (priorities[heap[child]] >= priority) break
+
+            heap[i] = heap[child]
+            positions[heap[i]] = i
+            i = child
+        }
+
+        heap[i] = id
+        positions[id] = i
+    }
+}
@@ -15,17 +15,20 @@ abstract class MapCellValidator {
     abstract fun isMapCellValid(mapCell: MapCell): Boolean
 
     open fun isMapCellValidRawCoords(x:Int, y: Int, map: EntityTiledMap): Boolean {
-        return map.isInsideMap(x.toFloat(), y.toFloat()) && isMapCellValid(map.getMapCell(x, y))
+        return map.isInsideMap(x, y) && isMapCellValid(map.getMapCell(x, y))
     }
 }
 
 object Pathfinder {
-    fun defaultValidator(): MapCellValidator = object : MapCellValidator() {
+    /** Cells are valid when not solid */
+    val solidValidator: MapCellValidator = object : MapCellValidator() {
         override fun isMapCellValid(mapCell: MapCell): Boolean {
             return !mapCell.isSolid
         }
     }
 
+    fun defaultValidator(): MapCellValidator = solidValidator
+
     /** Max number of cells checked before giving up searching. -1 to never give up, so maximum cells checked = number of cells in map.
      * This can avoid looping through the entire map when the destination is unreachable,
      * but it might cause the algorithm to not find a complex but successful path */
@@ -33,16 +36,52 @@ object Pathfinder {
 
     var allowDiagonals = false
 
+    /** How [findPath] searches, see [AStarSearch.Mode]. Jump Point Search is only used with [solidValidator] */
+    var searchMode = AStarSearch.Mode.A_STAR
+
+    private val searches = object : ThreadLocal<AStarSearch>() {
+        override fun initialValue() = AStarSearch()
+    }
+
+    /** Search of the current thread, to call [AStarSearch.findPath] directly and reuse the output Array */
+    val search: AStarSearch get() = searches.get()
+
+    /** Finds the path from start to the goal, without the start (so only the goal if both are the same). If the goal
+     * can't be reached, returns the path to the closest cell found, stopping before the first invalid cell.
+     * See [AStarSearch] */
     fun findPath(start: MapCell, goalCell: MapCell, validator: MapCellValidator = defaultValidator(), ignoreInvalidCells: Boolean = false): Array<MapCell>? {
+        return search.findPath(start, goalCell, Array(), validator, ignoreInvalidCells)
+    }
+
+    /**
+     * Hierarchical search (HPA*) on the regions of the map, see [com.dcostap.engine.map.AbstractPathGraph]: costs about
+     * the same for any distance, and the cells of the path are found a part at a time, when needed. Paths may be a bit
+     * longer than the ones of [findPath]. Cells are valid when not solid.
+     *
+     * If the graph can't join the cells (they can't reach each other, or are solid) the path has one segment from the
+     * start to the goal, which gives the closest path like [findPath]
+     */
+    fun findHierarchicalPath(start: MapCell, goalCell: MapCell, out: HierarchicalPath = HierarchicalPath()): HierarchicalPath {
+        out.clear()
+        out.allowDiagonals = allowDiagonals
+        if (!start.map.getAbstractPathGraph(allowDiagonals).findPath(start, goalCell, out.waypoints)) {
+            out.waypoints.add(start)
+            out.waypoints.add(goalCell)
+        }
+
+        return out
+    }
+
+    /** Older implementation of [findPath], keeping the state of the search in [MapCell.node]. Only one search can run
+     * at a time. Kept for comparing, see [com.dcostap.engine.benchmarks.PathfindingBenchmark] */
+    fun findPathLegacy(start: MapCell, goalCell: MapCell, validator: MapCellValidator = defaultValidator(), ignoreInvalidCells: Boolean = false): Array<MapCell>? {
         var ignoreInvalidCells = ignoreInvalidCells
         if (!validator.isMapCellValid(start)) ignoreInvalidCells = true //throw RuntimeException("Pathfinding fatal error: start position is invalid")
         if (!validator.isMapCellValid(goalCell)) ignoreInvalidCells = true
 
-        // todo: right now the flood fill optimization is not compatible with diagonals
-        if (!allowDiagonals && start.map.doFloodFillForSolidCellsPathfinding
-                && start.floodRegion == goalCell.floodRegion
-                && start.pathfindingFloodIndex != goalCell.pathfindingFloodIndex
-                && start.pathfindingFloodIndex != -1L && goalCell.pathfindingFloodIndex != -1L) {
+        // goal can't be reached: don't search through all reachable cells, directly get the closest path
+        if (start.map.doFloodFillForSolidCellsPathfinding
+                && !start.map.connectivity.areConnected(start, goalCell, allowDiagonals)) {
             ignoreInvalidCells = true
         }
 
@@ -182,7 +221,7 @@ object Pathfinder {
         if (ignoreInvalidCells) return Array()
 
         // pathfinding failed, try again ignoring invalid cells to get the closest path before hitting invalid cells
-        return findPath(start, goalCell, validator, true)
+        return findPathLegacy(start, goalCell, validator, true)
     }
 
     private fun getCellNeighbors(cell: MapCell, goalCell: MapCell?, validator: MapCellValidator, ignoreInvalidCells: Boolean): Array<MapCell> {
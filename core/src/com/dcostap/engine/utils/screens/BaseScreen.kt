@@ -7,6 +7,7 @@ import com.badlogic.gdx.graphics.OrthographicCamera
 import com.badlogic.gdx.utils.viewport.ExtendViewport
 import com.badlogic.gdx.utils.viewport.Viewport
 import com.dcostap.engine.utils.Drawable
+import com.dcostap.engine.utils.FixedTimestep
 import com.dcostap.engine.utils.GameDrawer
 import com.dcostap.engine.utils.Updatable
 import com.dcostap.engine.utils.actions.ActionsUpdater
@@ -104,9 +105,21 @@ abstract class BaseScreen(val engine : Engine) : Screen, Drawable, Updatable {
         actions.update(delta)
     }
 
+    /** Called when [Engine.useFixedTimestep] is true, [FixedTimestep.ticksThisFrame] times each frame after [update],
+     * with the fixed delta. Update the simulation here (for example [com.dcostap.engine.map.EntityTiledMap.update]),
+     * and input or the UI in [update] */
+    open fun fixedUpdate(delta: Float) {
+
+    }
+
     override fun render(delta: Float) {
         update(delta)
 
+        if (engine.useFixedTimestep) {
+            val timestep = engine.fixedTimestep
+            for (i in 0 until timestep.ticksThisFrame) fixedUpdate(timestep.tickDelta)
+        }
+
         draw(gameDrawer, delta)
 
         lateDrawing(gameDrawer, delta)